@@ -77,13 +77,12 @@ public class CircleOfFifths extends Activity implements OnClickListener {
 	}
 
 	private void initPd() throws IOException {
-		if (AudioParameters.suggestSampleRate() < SAMPLE_RATE) {
-			throw new IOException("required sample rate not available");
-		}
+		AudioParameters.init(this);  // loads cached device parameters, or probes and caches them
 		int nOut = Math.min(AudioParameters.suggestOutputChannels(), 2);
 		if (nOut == 0) {
 			throw new IOException("audio output not available");
 		}
+		PdAudio.setResampling(true, Resampler.QUALITY_HIGH);  // the patch needs 44100, whatever the device runs at
 		PdAudio.initAudio(SAMPLE_RATE, 0, nOut, 1, true);
 		
 		File dir = getFilesDir();
@@ -99,16 +98,16 @@ public class CircleOfFifths extends Activity implements OnClickListener {
 	}
 
 	public void playChord(boolean major, int n) {
-		PdBase.sendList("playchord", option + (major ? 1 : 0), n);
+		PdAudio.getCommandQueue().sendList("playchord", option + (major ? 1 : 0), n);
 	}
 	
 	public void endChord() {
-		PdBase.sendBang("endchord");
+		PdAudio.getCommandQueue().sendBang("endchord");
 		resetOptions();
 	}
 
 	public void setTop(int top) {
-		PdBase.sendFloat("shift", top);
+		PdAudio.getCommandQueue().sendFloat("shift", top);
 		getPreferences(MODE_PRIVATE).edit().putInt(TOP, top).commit();
 	}
 
@@ -42,9 +42,10 @@ public class GuitarTunerActivity extends Activity implements OnClickListener {
     }
     
     private void initPd() throws IOException {
+    	AudioParameters.init(this);  // loads cached device parameters, or probes and caches them
     	int sampleRate = AudioParameters.suggestSampleRate();
     	PdAudio.initAudio(sampleRate,0,2,8,true);
-    	dispatcher = new PdUiDispatcher();
+    	dispatcher = new PdUiDispatcher(true, PdUiDispatcher.DEFAULT_CAPACITY);  // coalesce tuner updates to one per frame
     	PdBase.setReceiver(dispatcher);
     	
     	eButton = (Button) findViewById(R.id.e_button);
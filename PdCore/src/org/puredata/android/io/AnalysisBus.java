@@ -0,0 +1,284 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * AnalysisBus computes the magnitude spectrum of the input or output of {@link AudioWrapper} once, for any number of
+ * consumers such as visualizers, tuners, or feature extractors, rather than once per consumer inside Pure Data.  The
+ * audio thread only mixes each buffer down to mono and writes it into a lock-free sample ring; a background thread
+ * takes one Hann-windowed real FFT per hop and hands the magnitudes to the listeners.
+ *
+ * If the analysis thread falls behind, it skips ahead to the most recent samples, and the skipped hops are counted.
+ * The audio thread never waits for the analysis thread.
+ *
+ */
+public final class AnalysisBus {
+
+	/**
+	 * Receives magnitude spectra from an analysis bus
+	 */
+	public interface Listener {
+
+		/**
+		 * Invoked on the analysis thread for every hop; the array is shared by all listeners and reused for the next
+		 * hop, i.e., it must not be modified and it's only valid for the duration of the call
+		 *
+		 * @param magnitudes  magnitudes of bins 0 to fftSize/2, scaled so that a full-scale sine wave has magnitude 1
+		 * @param sampleRate  sample rate of the analyzed audio; bin k has the frequency k * sampleRate / fftSize
+		 * @param position    number of samples written to the bus up to the end of the analyzed window
+		 */
+		void onSpectrum(float magnitudes[], int sampleRate, long position);
+	}
+
+	private static final long PARK_NANOS = 20000000;  // fallback in case a wakeup is missed
+	private final int fftSize;
+	private final int hopSize;
+	private final float ring[];
+	private final int mask;
+	private volatile long head = 0;  // number of samples written; only written by the audio thread
+	private long nextWakeup;  // only used by the audio thread
+	private volatile int sampleRate = 0;
+	private volatile long dropped = 0;
+	private volatile Listener listeners[] = new Listener[0];
+	private volatile Thread analysisThread = null;
+	private final FFT fft;
+	private final float window[];
+	private final float re[];
+	private final float im[];
+	private final float cos[];
+	private final float sin[];
+	private final float magnitudes[];
+
+	/**
+	 * Constructor
+	 *
+	 * @param fftSize  size of the analysis window; must be a power of two, at least 4
+	 * @param hopSize  number of samples between successive windows, e.g., fftSize / 2
+	 */
+	public AnalysisBus(int fftSize, int hopSize) {
+		if (fftSize < 4 || (fftSize & (fftSize - 1)) != 0 || hopSize <= 0 || hopSize > fftSize) {
+			throw new IllegalArgumentException("bad analysis parameters: " + fftSize + ", " + hopSize);
+		}
+		this.fftSize = fftSize;
+		this.hopSize = hopSize;
+		ring = new float[4 * Math.max(fftSize, 4096)];  // room for the window plus the largest buffers of the audio thread
+		mask = ring.length - 1;
+		nextWakeup = fftSize;
+		fft = new FFT(fftSize / 2);  // real transform of size n as a complex transform of size n/2
+		window = new float[fftSize];
+		float sum = 0;
+		for (int i = 0; i < fftSize; i++) {
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+			sum += window[i];
+		}
+		for (int i = 0; i < fftSize; i++) {
+			window[i] *= 2 / sum;
+		}
+		re = new float[fftSize / 2];
+		im = new float[fftSize / 2];
+		cos = new float[fftSize / 2];
+		sin = new float[fftSize / 2];
+		for (int k = 0; k < fftSize / 2; k++) {
+			double phi = -2 * Math.PI * k / fftSize;
+			cos[k] = (float) Math.cos(phi);
+			sin[k] = (float) Math.sin(phi);
+		}
+		magnitudes = new float[fftSize / 2 + 1];
+	}
+
+	/**
+	 * @return size of the analysis window
+	 */
+	public int getFftSize() {
+		return fftSize;
+	}
+
+	/**
+	 * @return number of samples between successive windows
+	 */
+	public int getHopSize() {
+		return hopSize;
+	}
+
+	/**
+	 * @return number of hops skipped because the analysis thread fell behind
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Adds a listener; may be called while the bus is running
+	 *
+	 * @param listener
+	 */
+	public synchronized void addListener(Listener listener) {
+		Listener l[] = new Listener[listeners.length + 1];
+		System.arraycopy(listeners, 0, l, 0, listeners.length);
+		l[listeners.length] = listener;
+		listeners = l;
+	}
+
+	/**
+	 * Removes a listener; may be called while the bus is running
+	 *
+	 * @param listener
+	 */
+	public synchronized void removeListener(Listener listener) {
+		Listener l[] = listeners;
+		for (int i = 0; i < l.length; i++) {
+			if (l[i] == listener) {
+				Listener rest[] = new Listener[l.length - 1];
+				System.arraycopy(l, 0, rest, 0, i);
+				System.arraycopy(l, i + 1, rest, i, rest.length - i);
+				listeners = rest;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts the analysis thread; samples that were written before are discarded
+	 */
+	public synchronized void start() {
+		if (analysisThread != null) return;
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				analyze();
+			}
+		};
+		t.setDaemon(true);
+		analysisThread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the analysis thread
+	 */
+	public synchronized void stop() {
+		Thread t = analysisThread;
+		if (t == null) return;
+		analysisThread = null;
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sets the sample rate of the audio that is written to the bus
+	 */
+	void attach(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Audio thread; mixes interleaved 16bit samples down to mono and writes them into the ring
+	 *
+	 * @param buffer    samples
+	 * @param n         number of samples
+	 * @param channels  number of channels
+	 */
+	void write(short buffer[], int n, int channels) {
+		if (channels <= 0) return;
+		long h = head;
+		float q = 1.0f / (32768.0f * channels);
+		for (int i = 0; i < n; h++) {
+			int sum = 0;
+			for (int c = 0; c < channels; c++) sum += buffer[i++];
+			ring[(int) (h & mask)] = sum * q;
+		}
+		publish(h);
+	}
+
+	/**
+	 * Audio thread; mixes interleaved float samples down to mono and writes them into the ring
+	 *
+	 * @param buffer    samples
+	 * @param n         number of samples
+	 * @param channels  number of channels
+	 */
+	void write(float buffer[], int n, int channels) {
+		if (channels <= 0) return;
+		long h = head;
+		float q = 1.0f / channels;
+		for (int i = 0; i < n; h++) {
+			float sum = 0;
+			for (int c = 0; c < channels; c++) sum += buffer[i++];
+			ring[(int) (h & mask)] = sum * q;
+		}
+		publish(h);
+	}
+
+	// Wakes up the analysis thread at most once per hop; a wakeup that comes in while the analysis thread is busy
+	// makes its next park return right away, so none are lost.
+	private void publish(long h) {
+		head = h;
+		if (h < nextWakeup) return;
+		nextWakeup = h + hopSize;
+		Thread t = analysisThread;
+		if (t != null) LockSupport.unpark(t);
+	}
+
+	private void analyze() {
+		long pos = head + fftSize;  // end of the next window
+		while (!Thread.interrupted()) {
+			long h = head;
+			if (h < pos) {
+				LockSupport.parkNanos(PARK_NANOS);
+				continue;
+			}
+			if (h - (pos - fftSize) > ring.length - hopSize) {  // about to be overwritten; skip to the latest window
+				long skip = (h - pos) / hopSize;
+				dropped += skip;
+				pos += skip * hopSize;
+			}
+			for (int i = 0; i < fftSize / 2; i++) {
+				long k = pos - fftSize + 2 * i;
+				re[i] = ring[(int) (k & mask)] * window[2 * i];
+				im[i] = ring[(int) ((k + 1) & mask)] * window[2 * i + 1];
+			}
+			if (head - (pos - fftSize) > ring.length) {  // overwritten while copying
+				dropped++;
+				pos += hopSize;
+				continue;
+			}
+			spectrum();
+			Listener l[] = listeners;
+			int sr = sampleRate;
+			for (int i = 0; i < l.length; i++) {
+				l[i].onSpectrum(magnitudes, sr, pos);
+			}
+			pos += hopSize;
+		}
+	}
+
+	// Real FFT of size n from the complex FFT of size n/2 of the even samples as real parts and the odd samples as
+	// imaginary parts: X[k] = E[k] + W^k O[k], with E and O recovered from Z[k] and conj(Z[n/2-k]).
+	private void spectrum() {
+		fft.transform(re, im, false);
+		int half = fftSize / 2;
+		magnitudes[0] = Math.abs(re[0] + im[0]);
+		magnitudes[half] = Math.abs(re[0] - im[0]);
+		for (int k = 1; k < half; k++) {
+			float zr = re[k], zi = im[k];
+			float cr = re[half - k], ci = -im[half - k];
+			float er = 0.5f * (zr + cr), ei = 0.5f * (zi + ci);
+			float or = 0.5f * (zi - ci), oi = -0.5f * (zr - cr);
+			float xr = er + cos[k] * or - sin[k] * oi;
+			float xi = ei + cos[k] * oi + sin[k] * or;
+			magnitudes[k] = (float) Math.sqrt(xr * xr + xi * xi);
+		}
+	}
+}
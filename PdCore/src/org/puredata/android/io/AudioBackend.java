@@ -0,0 +1,119 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+/**
+ *
+ * AudioBackend is the interface between the rendering loop of {@link AudioWrapper} and whatever consumes and produces
+ * audio samples, e.g., {@link AudioTrackBackend} for the audio device, {@link WavFileBackend} for files, or
+ * {@link NullBackend} for a free-running sink without any audio hardware.
+ *
+ * Samples are interleaved, same as in {@link AudioWrapper#process(short[], short[])}.  Except for {@link #open},
+ * {@link #release()}, and the getters of static properties, all methods are invoked on the audio thread.
+ *
+ */
+public interface AudioBackend {
+
+	/**
+	 * Opens the backend; invoked once, before any other method
+	 *
+	 * @param sampleRate       sample rate in Hz
+	 * @param inChannels       number of input channels
+	 * @param outChannels      number of output channels
+	 * @param framesPerBuffer  number of frames per read and write
+	 * @param maxQueueFrames   largest number of frames that the audio thread may want to keep queued up in the backend
+	 * @param preferFloat      flag indicating whether float samples are preferred, if the backend supports them
+	 * @throws IOException if the backend cannot handle the given parameters
+	 */
+	void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxQueueFrames, boolean preferFloat)
+			throws IOException;
+
+	/**
+	 * @return true if and only if the backend works on float samples rather than 16bit samples
+	 */
+	boolean usesFloatSamples();
+
+	/**
+	 * @return smallest number of frames that the backend needs to keep queued up in order to play without glitches
+	 */
+	int getMinQueueFrames();
+
+	/**
+	 * @return largest number of frames that the backend can keep queued up, i.e., its buffer size
+	 */
+	int getMaxQueueFrames();
+
+	/**
+	 * Limits the number of frames that the backend will queue up before a write blocks
+	 *
+	 * @param frames  requested queue size in frames
+	 * @return actual queue size in frames, or a negative value if the backend cannot limit its queue, in which case
+	 *             the audio thread throttles itself based on {@link #getFramesPlayed()}
+	 */
+	int setQueueFrames(int frames);
+
+	/**
+	 * Starts streaming; invoked on the audio thread before the first read or write
+	 */
+	void start();
+
+	/**
+	 * Stops streaming; invoked on the audio thread after the last read or write
+	 */
+	void stop();
+
+	/**
+	 * Releases all resources held by the backend
+	 */
+	void release();
+
+	/**
+	 * Reads one buffer of input samples without blocking
+	 *
+	 * @param buffer  input buffer of framesPerBuffer * inChannels samples
+	 * @return true if the buffer was filled, false if no input was available
+	 */
+	boolean read(short buffer[]);
+
+	/**
+	 * Float version of {@link #read(short[])}; only invoked if the backend uses float samples
+	 */
+	boolean read(float buffer[]);
+
+	/**
+	 * Writes output samples; may block until the backend is ready to accept them
+	 *
+	 * @param buffer  output samples
+	 * @param offset  offset of the first sample to write
+	 * @param size    number of samples to write
+	 * @return number of samples written, or a negative value if the backend failed, in which case the audio thread stops
+	 */
+	int write(short buffer[], int offset, int size);
+
+	/**
+	 * Float version of {@link #write(short[], int, int)}; only invoked if the backend uses float samples
+	 */
+	int write(float buffer[], int offset, int size);
+
+	/**
+	 * @return clock of the backend, i.e., the number of frames that it has consumed since it was started
+	 */
+	long getFramesPlayed();
+
+	/**
+	 * @return number of underruns reported by the backend, or a negative value if the backend cannot tell
+	 */
+	int getUnderrunCount();
+
+	/**
+	 * @return number of input buffers that the backend had to drop because the audio thread fell behind
+	 */
+	long getDroppedInput();
+}
@@ -0,0 +1,218 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * AudioMeter measures the levels of the input or output of {@link AudioWrapper}: peak and RMS per channel over a
+ * short window, as well as the number of clipped samples per channel.  The thread that touches the buffers, i.e., the
+ * audio thread, or the render thread in pipelined mode, accumulates levels without locking or allocating and
+ * publishes them at the end of each window; other threads read them by taking a {@link Snapshot}, e.g., once per
+ * frame for drawing a meter.
+ *
+ * Levels are relative to full scale, i.e., they range from 0 to 1 unless float samples exceed full scale.
+ *
+ */
+public final class AudioMeter {
+
+	private final int channels;
+	private final int windowFrames;
+	private final float peaks[];
+	private final float squares[];
+	private final long clips[];
+	private int frames = 0;
+	private final AtomicIntegerArray published;  // peak and RMS per channel, as raw float bits
+	private final AtomicLongArray publishedClips;
+	private volatile int version = 0;  // odd while levels are being published
+
+	/**
+	 * Constructor
+	 *
+	 * @param channels      number of channels
+	 * @param windowFrames  number of frames over which levels are measured
+	 */
+	AudioMeter(int channels, int windowFrames) {
+		this.channels = channels;
+		this.windowFrames = Math.max(1, windowFrames);
+		peaks = new float[channels];
+		squares = new float[channels];
+		clips = new long[channels];
+		published = new AtomicIntegerArray(2 * channels);
+		publishedClips = new AtomicLongArray(channels);
+	}
+
+	/**
+	 * Discards the levels of the current window, e.g., when the audio thread restarts
+	 */
+	void restart() {
+		for (int c = 0; c < channels; c++) {
+			peaks[c] = 0;
+			squares[c] = 0;
+		}
+		frames = 0;
+	}
+
+	/**
+	 * Measures a buffer of interleaved 16bit samples
+	 *
+	 * @param buffer  samples
+	 * @param n       number of samples, a multiple of the number of channels
+	 */
+	void measure(short buffer[], int n) {
+		for (int i = 0; i < n; ) {
+			for (int c = 0; c < channels; c++, i++) {
+				int s = buffer[i];
+				float x = s * (1.0f / 32768.0f);
+				float a = Math.abs(x);
+				if (a > peaks[c]) peaks[c] = a;
+				squares[c] += x * x;
+				if (s >= Short.MAX_VALUE || s <= Short.MIN_VALUE) clips[c]++;
+			}
+			if (++frames >= windowFrames) publish();
+		}
+	}
+
+	/**
+	 * Measures a buffer of interleaved float samples
+	 *
+	 * @param buffer  samples
+	 * @param n       number of samples, a multiple of the number of channels
+	 */
+	void measure(float buffer[], int n) {
+		for (int i = 0; i < n; ) {
+			for (int c = 0; c < channels; c++, i++) {
+				float x = buffer[i];
+				float a = Math.abs(x);
+				if (a > peaks[c]) peaks[c] = a;
+				squares[c] += x * x;
+				if (a >= 1.0f) clips[c]++;
+			}
+			if (++frames >= windowFrames) publish();
+		}
+	}
+
+	private void publish() {
+		int ver = version;
+		version = ver + 1;
+		for (int c = 0; c < channels; c++) {
+			published.set(2 * c, Float.floatToRawIntBits(peaks[c]));
+			published.set(2 * c + 1, Float.floatToRawIntBits((float) Math.sqrt(squares[c] / frames)));
+			publishedClips.set(c, clips[c]);
+			peaks[c] = 0;
+			squares[c] = 0;
+		}
+		version = ver + 2;
+		frames = 0;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Takes a snapshot of the levels of the most recent window; may be called from any thread
+	 *
+	 * @return snapshot of the current levels
+	 */
+	public Snapshot snapshot() {
+		float p[] = new float[channels];
+		float r[] = new float[channels];
+		long k[] = new long[channels];
+		int ver;
+		do {
+			while (((ver = version) & 1) != 0) Thread.yield();
+			for (int c = 0; c < channels; c++) {
+				p[c] = Float.intBitsToFloat(published.get(2 * c));
+				r[c] = Float.intBitsToFloat(published.get(2 * c + 1));
+				k[c] = publishedClips.get(c);
+			}
+		} while (version != ver);  // torn read; the audio thread published in the meantime
+		return new Snapshot(p, r, k);
+	}
+
+	/**
+	 * Immutable snapshot of audio levels
+	 */
+	public static final class Snapshot {
+
+		private final float peaks[];
+		private final float rms[];
+		private final long clips[];
+
+		private Snapshot(float peaks[], float rms[], long clips[]) {
+			this.peaks = peaks;
+			this.rms = rms;
+			this.clips = clips;
+		}
+
+		/**
+		 * @return number of channels
+		 */
+		public int getChannels() {
+			return peaks.length;
+		}
+
+		/**
+		 * @param channel
+		 * @return peak level of the given channel in the most recent window
+		 */
+		public float getPeak(int channel) {
+			return peaks[channel];
+		}
+
+		/**
+		 * @param channel
+		 * @return RMS level of the given channel in the most recent window
+		 */
+		public float getRms(int channel) {
+			return rms[channel];
+		}
+
+		/**
+		 * @param channel
+		 * @return number of clipped samples of the given channel since audio was initialized
+		 */
+		public long getClips(int channel) {
+			return clips[channel];
+		}
+
+		/**
+		 * @return highest peak level of all channels, 0 if there are no channels
+		 */
+		public float getMaxPeak() {
+			float p = 0;
+			for (float x: peaks) p = Math.max(p, x);
+			return p;
+		}
+
+		/**
+		 * @param level  level relative to full scale
+		 * @return level in dBFS, or negative infinity for silence
+		 */
+		public static float toDecibels(float level) {
+			return (float) (20.0 * Math.log10(level));
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int c = 0; c < peaks.length; c++) {
+				if (c > 0) sb.append(", ");
+				sb.append("ch").append(c).append(" peak/rms: ").append(toDecibels(peaks[c])).append('/')
+					.append(toDecibels(rms[c])).append("dB, clips: ").append(clips[c]);
+			}
+			return sb.toString();
+		}
+	}
+}
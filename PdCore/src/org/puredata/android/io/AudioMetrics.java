@@ -0,0 +1,282 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * AudioMetrics collects timing statistics of the audio thread of {@link AudioWrapper}: histograms of the time spent
+ * in the process callback, of the time spent waiting for the audio device, and of the deviation of the callback
+ * period from its nominal value, as well as counts of input starvation and output underruns.
+ *
+ * Each metric is updated by one thread only, i.e., the audio thread, or the render thread for process times and input
+ * starvation in pipelined mode; updates are lock-free and do not allocate.  Other threads read metrics by taking a
+ * {@link Snapshot}.
+ *
+ */
+public final class AudioMetrics {
+
+	/**
+	 * Number of histogram buckets; bucket 0 counts durations below 1us, bucket i > 0 counts durations from
+	 * 2^(i-1)us up to 2^i us, and the last bucket also counts everything beyond
+	 */
+	public static final int BUCKETS = 24;
+	private final AtomicLongArray processHistogram = new AtomicLongArray(BUCKETS);
+	private final AtomicLongArray writeHistogram = new AtomicLongArray(BUCKETS);
+	private final AtomicLongArray jitterHistogram = new AtomicLongArray(BUCKETS);
+	private final AtomicLong cycles = new AtomicLong();
+	private final AtomicLong maxProcessNanos = new AtomicLong();
+	private final AtomicLong maxJitterNanos = new AtomicLong();
+	private final AtomicLong inputStarvations = new AtomicLong();
+	private final AtomicLong outputUnderruns = new AtomicLong();
+	private final long periodNanos;
+	private long lastStart = -1;
+
+	/**
+	 * Constructor
+	 *
+	 * @param sampleRate       sample rate in Hz
+	 * @param framesPerBuffer  number of frames rendered per process callback
+	 */
+	AudioMetrics(int sampleRate, int framesPerBuffer) {
+		periodNanos = 1000000000L * framesPerBuffer / sampleRate;
+	}
+
+	/**
+	 * Marks the beginning of a new run of the audio thread, so that the gap between runs does not show up as jitter
+	 */
+	void restart() {
+		lastStart = -1;
+	}
+
+	/**
+	 * Records one audio cycle
+	 *
+	 * @param start         start of the cycle in nanoseconds
+	 * @param processNanos  time spent in the process callback
+	 * @param writeNanos    time spent waiting for the audio device to accept output
+	 * @param steady        false while the device buffer is still filling up, in which case the period is not recorded
+	 */
+	void recordCycle(long start, long processNanos, long writeNanos, boolean steady) {
+		recordProcess(processNanos);
+		recordWrite(start, writeNanos, steady);
+	}
+
+	/**
+	 * Records the process callback of one audio cycle; in pipelined mode, this happens on the render thread, while
+	 * {@link #recordWrite(long, long, boolean)} happens on the audio thread
+	 *
+	 * @param processNanos  time spent in the process callback
+	 */
+	void recordProcess(long processNanos) {
+		increment(cycles);
+		increment(processHistogram, bucket(processNanos));
+		if (processNanos > maxProcessNanos.get()) maxProcessNanos.lazySet(processNanos);
+	}
+
+	/**
+	 * Records the write of one audio cycle
+	 *
+	 * @param start       start of the cycle in nanoseconds
+	 * @param writeNanos  time spent waiting for the audio device to accept output
+	 * @param steady      false while the device buffer is still filling up, in which case the period is not recorded
+	 */
+	void recordWrite(long start, long writeNanos, boolean steady) {
+		increment(writeHistogram, bucket(writeNanos));
+		if (steady && lastStart >= 0) {
+			long jitter = Math.abs(start - lastStart - periodNanos);
+			increment(jitterHistogram, bucket(jitter));
+			if (jitter > maxJitterNanos.get()) maxJitterNanos.lazySet(jitter);
+		}
+		lastStart = start;
+	}
+
+	void recordInputStarvation() {
+		increment(inputStarvations);
+	}
+
+	void recordOutputUnderrun() {
+		increment(outputUnderruns);
+	}
+
+	/**
+	 * @return number of cycles that found no input available
+	 */
+	public long getInputStarvations() {
+		return inputStarvations.get();
+	}
+
+	/**
+	 * @return number of output underruns
+	 */
+	public long getOutputUnderruns() {
+		return outputUnderruns.get();
+	}
+
+	/**
+	 * Takes a snapshot of the current metrics; may be called from any thread.  Since updates continue while the
+	 * snapshot is taken, the histograms may disagree with each other by a cycle or so.
+	 *
+	 * @param droppedInput  number of input buffers dropped because the audio thread fell behind
+	 * @return snapshot of the current metrics
+	 */
+	Snapshot snapshot(long droppedInput) {
+		return new Snapshot(this, droppedInput);
+	}
+
+	// Only the audio thread writes, so there is no need for an atomic read-modify-write.
+	private static void increment(AtomicLong a) {
+		a.lazySet(a.get() + 1);
+	}
+
+	private static void increment(AtomicLongArray a, int i) {
+		a.lazySet(i, a.get(i) + 1);
+	}
+
+	private static int bucket(long nanos) {
+		long micros = nanos / 1000;
+		int b = (micros <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	private static long[] copy(AtomicLongArray a) {
+		long c[] = new long[a.length()];
+		for (int i = 0; i < c.length; i++) c[i] = a.get(i);
+		return c;
+	}
+
+	/**
+	 * Immutable snapshot of audio metrics
+	 */
+	public static final class Snapshot {
+
+		private final long cycles;
+		private final long processHistogram[];
+		private final long writeHistogram[];
+		private final long jitterHistogram[];
+		private final long maxProcessNanos;
+		private final long maxJitterNanos;
+		private final long periodNanos;
+		private final long inputStarvations;
+		private final long outputUnderruns;
+		private final long droppedInput;
+
+		private Snapshot(AudioMetrics m, long droppedInput) {
+			cycles = m.cycles.get();
+			processHistogram = copy(m.processHistogram);
+			writeHistogram = copy(m.writeHistogram);
+			jitterHistogram = copy(m.jitterHistogram);
+			maxProcessNanos = m.maxProcessNanos.get();
+			maxJitterNanos = m.maxJitterNanos.get();
+			periodNanos = m.periodNanos;
+			inputStarvations = m.inputStarvations.get();
+			outputUnderruns = m.outputUnderruns.get();
+			this.droppedInput = droppedInput;
+		}
+
+		/**
+		 * @return number of process callbacks so far
+		 */
+		public long getCycles() {
+			return cycles;
+		}
+
+		/**
+		 * @return histogram of the time spent in the process callback (see {@link AudioMetrics#BUCKETS})
+		 */
+		public long[] getProcessHistogram() {
+			return processHistogram.clone();
+		}
+
+		/**
+		 * @return histogram of the time spent waiting for the audio device to accept output
+		 */
+		public long[] getWriteHistogram() {
+			return writeHistogram.clone();
+		}
+
+		/**
+		 * @return histogram of the deviation of the callback period from its nominal value
+		 */
+		public long[] getJitterHistogram() {
+			return jitterHistogram.clone();
+		}
+
+		/**
+		 * @return longest time spent in the process callback, in nanoseconds
+		 */
+		public long getMaxProcessNanos() {
+			return maxProcessNanos;
+		}
+
+		/**
+		 * @return largest deviation of the callback period from its nominal value, in nanoseconds
+		 */
+		public long getMaxJitterNanos() {
+			return maxJitterNanos;
+		}
+
+		/**
+		 * @return nominal callback period in nanoseconds, i.e., the time budget of the process callback
+		 */
+		public long getPeriodNanos() {
+			return periodNanos;
+		}
+
+		/**
+		 * @return number of cycles that found no input available
+		 */
+		public long getInputStarvations() {
+			return inputStarvations;
+		}
+
+		/**
+		 * @return number of output underruns
+		 */
+		public long getOutputUnderruns() {
+			return outputUnderruns;
+		}
+
+		/**
+		 * @return number of input buffers dropped because the audio thread fell behind
+		 */
+		public long getDroppedInput() {
+			return droppedInput;
+		}
+
+		/**
+		 * @param histogram  one of the histograms of this snapshot
+		 * @param q          quantile between 0 and 1, e.g., 0.99
+		 * @return upper bound of the histogram bucket containing the given quantile, in microseconds
+		 */
+		public static long quantileMicros(long histogram[], double q) {
+			long total = 0;
+			for (long n: histogram) total += n;
+			long target = (long) Math.ceil(q * total);
+			long sum = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				sum += histogram[i];
+				if (sum >= target && sum > 0) return 1L << i;
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "cycles: " + cycles + ", period: " + periodNanos / 1000 + "us" +
+				", process p50/p99/max: " + quantileMicros(processHistogram, 0.5) + "/" + quantileMicros(processHistogram, 0.99) +
+				"/" + maxProcessNanos / 1000 + "us" +
+				", write p99: " + quantileMicros(writeHistogram, 0.99) + "us" +
+				", jitter p99/max: " + quantileMicros(jitterHistogram, 0.99) + "/" + maxJitterNanos / 1000 + "us" +
+				", input starvations: " + inputStarvations + ", dropped input: " + droppedInput +
+				", output underruns: " + outputUnderruns;
+		}
+	}
+}
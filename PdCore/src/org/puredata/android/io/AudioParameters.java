@@ -7,45 +7,107 @@
 
 package org.puredata.android.io;
 
+import org.puredata.android.utils.Properties;
+
 /**
  * 
  * AudioParameters sniffs out the number of audio input and output channels as well as
  * supported sample rates.
+ *
+ * Probing the device is slow, and so the results are cached in shared preferences, keyed by the build fingerprint
+ * and the API level of the device.  Call {@link #init(Context)} as early as possible, e.g., in onCreate; it loads
+ * the cache (or starts probing in the background if there is none) and refreshes the cache in the background.
+ * Without init, the device is probed on the first call to one of the suggest methods, without the properties that
+ * take a context; a later call to init, e.g., by {@link PdAudio#startAudio(Context)}, still probes the device with
+ * the context and stores the results in the cache for the next launch.
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  *
  */
 public class AudioParameters {
 
+	private static final String TAG = "AudioParameters";
+	private static final String PREFS_NAME = "org.puredata.android.io.AudioParameters";
+	private static final String KEY_DEVICE = "device";
+	private static final String KEY_SRATE = "srate";
+	private static final String KEY_INCHANNELS = "inchannels";
+	private static final String KEY_OUTCHANNELS = "outchannels";
+	private static final String KEY_BUFSIZE_MILLIS = "bufsize_millis";
+	private static final String KEY_BURST_FRAMES = "burst_frames";
 	private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
 	private static final int COMMON_RATE = 8000; // 8kHz seems to work everywhere, including the simulator
 	private static final int MAX_CHANNELS = 8;
-	private static int sampleRate = 0, inputChannels = 0, outputChannels = 0;
-	private static float bufsizeMillis = 100.0f; // conservative choice...
+	private static final float DEFAULT_BUFSIZE_MILLIS = 100.0f; // conservative choice...
+	private static final boolean hasJellyBeanMR1 = Properties.version >= 17;
+	private static int sampleRate = 0, inputChannels = 0, outputChannels = 0, burstFrames = 0;
+	private static float bufsizeMillis = DEFAULT_BUFSIZE_MILLIS;
+	private static boolean initialized = false;
+	private static boolean refreshed = false;  // true once a background probe with a context has been started
+	private static Thread prober = null;
 
-	static {
-		init();
+	/**
+	 * Loads cached device parameters, or starts probing the device in the background if there are none for this
+	 * device and OS version, and refreshes the cache in the background; returns without waiting for the device.  If
+	 * the device has already been probed without a context, those parameters stay in effect, and the cache is written
+	 * in the background.  Only the first call has any effect.
+	 *
+	 * @param context  current application context
+	 */
+	public static synchronized void init(Context context) {
+		if (refreshed) return;
+		refreshed = true;
+		final Context appContext = context.getApplicationContext();
+		final boolean cached = initialized || loadCache(appContext);
+		prober = new Thread() {
+			@Override
+			public void run() {
+				Probe probe = null;
+				try {
+					probe = new Probe(appContext);
+					storeCache(appContext, probe);
+				} catch (RuntimeException e) {
+					Log.w(TAG, "unable to probe audio parameters", e);
+				} finally {
+					// Always wake up waiting callers, or else they'd wait forever while holding the lock of PdAudio.
+					synchronized (AudioParameters.class) {
+						if (!cached) apply((probe != null) ? probe : new Probe());  // values in effect stay in effect
+						prober = null;
+						AudioParameters.class.notifyAll();
+					}
+				}
+			}
+		};
+		prober.setPriority(Thread.MIN_PRIORITY);
+		prober.start();
 	}
 
 	/**
-	 * @return a reasonable sample rate that the device supports, 0 if audio output is unavailable
+	 * @return a reasonable sample rate that the device supports, 0 if audio output is unavailable; the native sample
+	 *             rate of the device if it is known and supported
 	 */
-	public static int suggestSampleRate() { return sampleRate; }
-	
+	public static synchronized int suggestSampleRate() { awaitInit(); return sampleRate; }
+
 	/**
 	 * @return the largest number of input channels that the device supports
 	 */
-	public static int suggestInputChannels() { return inputChannels; }
-	
+	public static synchronized int suggestInputChannels() { awaitInit(); return inputChannels; }
+
 	/**
 	 * @return the largest number of output channels that the device supports
 	 */
-	public static int suggestOutputChannels() { return outputChannels; }
-	
+	public static synchronized int suggestOutputChannels() { awaitInit(); return outputChannels; }
+
+	/**
+	 * @return suggested buffer size in milliseconds, based on the minimum buffer size and the native burst size of the
+	 *             device; 100ms, i.e., a fairly conservative choice, if the device doesn't tell
+	 */
+	public static synchronized float suggestBufferSizeMillis() { awaitInit(); return bufsizeMillis; }
+
 	/**
-	 * @return suggested buffer size in milliseconds; suggests 100ms, i.e., a fairly conservative choice
+	 * @return native number of frames per buffer of the audio output, as reported by the device, 0 if unknown; only
+	 *             available after {@link #init(Context)}
 	 */
-	public static float suggestBufferSizeMillis() { return bufsizeMillis; }
+	public static synchronized int suggestBurstFrames() { awaitInit(); return burstFrames; }
 
 	/**
 	 * @param srate sample rate
@@ -76,24 +138,118 @@ public class AudioParameters {
 	 * @return true if and only if the device supports the given set of parameters
 	 */
 	public static boolean checkOutputParameters(int srate, int nout) {
+		return getMinOutputBytes(srate, nout) > 0;
+	}
+
+	private static int getMinOutputBytes(int srate, int nout) {
 		try {
-			return AudioTrack.getMinBufferSize(srate, VersionedAudioFormat.getOutFormat(nout), ENCODING) > 0;
+			return AudioTrack.getMinBufferSize(srate, VersionedAudioFormat.getOutFormat(nout), ENCODING);
 		} catch (Exception e) {
-			return false;
+			return -1;
 		}
 	}
 
-	private static void init() {
-		for (int n = 1; n < MAX_CHANNELS; n++) {
-			if (checkOutputParameters(COMMON_RATE, n)) outputChannels = n;
+	// Waits for the background probe if there is one, probes right here otherwise; callers hold the class lock.
+	private static void awaitInit() {
+		while (!initialized && prober != null) {
+			try {
+				AudioParameters.class.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
 		}
-		if (outputChannels == 0) return; // no audio output found; give up
-		for (int n = 0; n < MAX_CHANNELS; n++) {
-			if (checkInputParameters(COMMON_RATE, n)) inputChannels = n;
+		if (initialized) return;
+		try {
+			apply(new Probe(null));
+		} catch (RuntimeException e) {
+			Log.w(TAG, "unable to probe audio parameters", e);
+			apply(new Probe());
 		}
-		sampleRate = COMMON_RATE;
-		for (int sr: new int[] {11025, 16000, 22050, 32000, 44100}) {
-			if (checkParameters(sr, inputChannels, outputChannels)) sampleRate = sr;
+	}
+
+	private static void apply(Probe probe) {
+		sampleRate = probe.sampleRate;
+		inputChannels = probe.inputChannels;
+		outputChannels = probe.outputChannels;
+		bufsizeMillis = probe.bufsizeMillis;
+		burstFrames = probe.burstFrames;
+		initialized = true;
+	}
+
+	private static String getDeviceKey() {
+		return Build.FINGERPRINT + "/" + Properties.version;
+	}
+
+	private static boolean loadCache(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		if (!getDeviceKey().equals(prefs.getString(KEY_DEVICE, null))) return false;
+		sampleRate = prefs.getInt(KEY_SRATE, 0);
+		inputChannels = prefs.getInt(KEY_INCHANNELS, 0);
+		outputChannels = prefs.getInt(KEY_OUTCHANNELS, 0);
+		bufsizeMillis = prefs.getFloat(KEY_BUFSIZE_MILLIS, DEFAULT_BUFSIZE_MILLIS);
+		burstFrames = prefs.getInt(KEY_BURST_FRAMES, 0);
+		initialized = true;
+		return true;
+	}
+
+	private static void storeCache(Context context, Probe probe) {
+		SharedPreferences.Editor editor = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+		editor.putString(KEY_DEVICE, getDeviceKey());
+		editor.putInt(KEY_SRATE, probe.sampleRate);
+		editor.putInt(KEY_INCHANNELS, probe.inputChannels);
+		editor.putInt(KEY_OUTCHANNELS, probe.outputChannels);
+		editor.putFloat(KEY_BUFSIZE_MILLIS, probe.bufsizeMillis);
+		editor.putInt(KEY_BURST_FRAMES, probe.burstFrames);
+		if (!editor.commit()) Log.w(TAG, "unable to store audio parameters");
+	}
+
+	// Results of probing the device; the audio manager properties are only consulted if a context is available.
+	private static class Probe {
+		int sampleRate = 0, inputChannels = 0, outputChannels = 0, burstFrames = 0;
+		float bufsizeMillis = DEFAULT_BUFSIZE_MILLIS;
+
+		// Fallback for when probing fails: mono output at the common rate, no input.
+		Probe() {
+			sampleRate = COMMON_RATE;
+			outputChannels = 1;
+		}
+
+		Probe(Context context) {
+			for (int n = 1; n < MAX_CHANNELS; n++) {
+				if (checkOutputParameters(COMMON_RATE, n)) outputChannels = n;
+			}
+			if (outputChannels == 0) return; // no audio output found; give up
+			for (int n = 0; n < MAX_CHANNELS; n++) {
+				if (checkInputParameters(COMMON_RATE, n)) inputChannels = n;
+			}
+			int nativeRate = 0;
+			if (context != null && hasJellyBeanMR1) {
+				AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+				nativeRate = PropertiesJellyBeanMR1.getInt(am, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+				burstFrames = PropertiesJellyBeanMR1.getInt(am, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+			}
+			sampleRate = COMMON_RATE;
+			for (int sr: new int[] {11025, 16000, 22050, 32000, 44100, 48000}) {
+				if (checkParameters(sr, inputChannels, outputChannels)) sampleRate = sr;
+			}
+			if (nativeRate > 0 && checkParameters(nativeRate, inputChannels, outputChannels)) sampleRate = nativeRate;
+			int minFrames = getMinOutputBytes(sampleRate, outputChannels) / (2 * outputChannels);
+			int frames = Math.max(minFrames, 2 * burstFrames);
+			if (frames > 0) bufsizeMillis = 1000.0f * frames / sampleRate;
+		}
+	}
+
+	// AudioManager.getProperty is only available as of Jelly Bean MR1; same lazy class loading hack as in
+	// VersionedAudioFormat.
+	private static class PropertiesJellyBeanMR1 {
+
+		static int getInt(AudioManager am, String key) {
+			try {
+				return Integer.parseInt(am.getProperty(key));
+			} catch (Exception e) {
+				return 0;  // property missing or garbled
+			}
 		}
 	}
 }
@@ -10,35 +10,83 @@ package org.puredata.android.io;
 /**
  * 
  * AudioRecordWrapper is a wrapper for {@link AudioRecord}.  It is an auxiliary class for {@link AudioWrapper};
- * the purpose of the bizarre queuing mechanism is to work around the AudioRecord.read blocking problem on Droid X,
- * without messing things up on other devices.
+ * the purpose of the queuing mechanism is to work around the AudioRecord.read blocking problem on Droid X,
+ * without messing things up on other devices.  Input buffers are handed off through a preallocated ring of
+ * blocks, so that neither the input thread nor the audio thread ever blocks on the other.
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com) 
  *
  */
 public class AudioRecordWrapper {
 
-	private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+	/**
+	 * Default number of input blocks in the ring between the input thread and the audio thread
+	 */
+	public static final int DEFAULT_INPUT_BLOCKS = 4;
 	private final AudioRecord rec;
-	private final int bufSizeShorts;
-	private final BlockingQueue<short[]> queue = new SynchronousQueue<short[]>();
+	private final int bufSizeSamples;
+	private final BlockRing<short[]> ring;
+	private final BlockRing<float[]> floatRing;
 	private Thread inputThread = null;
 
 	public AudioRecordWrapper(int sampleRate, int inChannels, int bufferSizePerChannel) throws IOException {
+		this(sampleRate, inChannels, bufferSizePerChannel, DEFAULT_INPUT_BLOCKS);
+	}
+
+	public AudioRecordWrapper(int sampleRate, int inChannels, int bufferSizePerChannel, int inputBlocks) throws IOException {
+		this(sampleRate, inChannels, bufferSizePerChannel, inputBlocks, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param sampleRate
+	 * @param inChannels            number of input channels
+	 * @param bufferSizePerChannel  number of samples per block per channel
+	 * @param inputBlocks           number of blocks in the input ring; more blocks tolerate longer delays of the audio thread
+	 * @param floatSamples          flag indicating whether to record float samples; requires
+	 *                                  {@link VersionedAudioFormat#hasFloatSupport()}; if the device cannot record
+	 *                                  float samples with the given parameters, this instance records 16bit samples
+	 *                                  instead, as reported by {@link #usesFloatSamples()}
+	 * @throws IOException if the audio parameters are not supported by the device
+	 */
+	public AudioRecordWrapper(int sampleRate, int inChannels, int bufferSizePerChannel, int inputBlocks, boolean floatSamples)
+			throws IOException {
+		if (inputBlocks <= 0) {
+			throw new IllegalArgumentException("illegal number of input blocks: " + inputBlocks);
+		}
+		if (floatSamples && !VersionedAudioFormat.hasFloatSupport()) {
+			throw new IOException("float samples not supported on this device");
+		}
+		bufSizeSamples = inChannels * bufferSizePerChannel;
+		AudioRecord r = floatSamples ? createRecord(sampleRate, inChannels, true) : null;
+		if (r == null) {
+			floatSamples = false;
+			r = createRecord(sampleRate, inChannels, false);
+		}
+		if (r == null) {
+			throw new IOException("unable to initialize AudioRecord instance for sr: " + sampleRate + ", ch: " + inChannels + ", bufSize: " + bufferSizePerChannel);
+		}
+		rec = r;
+		ring = floatSamples ? null : new BlockRing<short[]>(new short[inputBlocks][bufSizeSamples]);
+		floatRing = floatSamples ? new BlockRing<float[]>(new float[inputBlocks][bufSizeSamples]) : null;
+	}
+
+	// Returns null if the device does not support the parameters.
+	private AudioRecord createRecord(int sampleRate, int inChannels, boolean floatSamples) {
 		int channelConfig = VersionedAudioFormat.getInFormat(inChannels);
-		bufSizeShorts = inChannels * bufferSizePerChannel;
-		int bufSizeBytes = 2 * bufSizeShorts;
+		int encoding = VersionedAudioFormat.getEncoding(floatSamples);
+		int bufSizeBytes = VersionedAudioFormat.getBytesPerSample(floatSamples) * bufSizeSamples;
 		int recSizeBytes = 2 * bufSizeBytes;
-		int minRecSizeBytes = AudioRecord.getMinBufferSize(sampleRate, channelConfig, ENCODING);
-		if (minRecSizeBytes <= 0) {
-			throw new IOException("bad AudioRecord parameters; sr: " + sampleRate + ", ch: " + inChannels + ", bufSize: " + bufferSizePerChannel);
-		}
+		int minRecSizeBytes = AudioRecord.getMinBufferSize(sampleRate, channelConfig, encoding);
+		if (minRecSizeBytes <= 0) return null;
 		while (recSizeBytes < minRecSizeBytes) recSizeBytes += bufSizeBytes;
-		rec = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, ENCODING, recSizeBytes);
-		if (rec != null && rec.getState() != AudioRecord.STATE_INITIALIZED) {
-			rec.release();
-			throw new IOException("unable to initialize AudioRecord instance for sr: " + sampleRate + ", ch: " + inChannels + ", bufSize: " + bufferSizePerChannel);
+		AudioRecord r = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig, encoding, recSizeBytes);
+		if (r.getState() != AudioRecord.STATE_INITIALIZED) {
+			r.release();
+			return null;
 		}
+		return r;
 	}
 
 	public synchronized void start() {
@@ -47,22 +95,10 @@ public class AudioRecordWrapper {
 			public void run() {
 				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 				rec.startRecording();
-				short buf[] = new short[bufSizeShorts];
-				short auxBuf[] = new short[bufSizeShorts];
-				while (!Thread.interrupted()) {
-					int nRead = 0;
-					while (nRead < bufSizeShorts && !Thread.interrupted()) {
-						nRead += rec.read(buf, nRead, bufSizeShorts - nRead);
-					}
-					if (nRead < bufSizeShorts) break;
-					try {
-						queue.put(buf);
-					} catch (InterruptedException e) {
-						break;
-					}
-					short tmp[] = buf;
-					buf = auxBuf;
-					auxBuf = tmp;
+				if (floatRing != null) {
+					readFloats();
+				} else {
+					readShorts();
 				}
 				rec.stop();
 			};
@@ -70,6 +106,34 @@ public class AudioRecordWrapper {
 		inputThread.start();
 	}
 
+	private void readShorts() {
+		short scratch[] = new short[bufSizeSamples];  // input goes here when the ring is full
+		while (!Thread.interrupted()) {
+			short buf[] = ring.claim();
+			if (buf == null) buf = scratch;
+			int nRead = 0;
+			while (nRead < bufSizeSamples && !Thread.interrupted()) {
+				nRead += rec.read(buf, nRead, bufSizeSamples - nRead);
+			}
+			if (nRead < bufSizeSamples) break;
+			if (buf != scratch) ring.commit();
+		}
+	}
+
+	private void readFloats() {
+		float scratch[] = new float[bufSizeSamples];
+		while (!Thread.interrupted()) {
+			float buf[] = floatRing.claim();
+			if (buf == null) buf = scratch;
+			int nRead = 0;
+			while (nRead < bufSizeSamples && !Thread.interrupted()) {
+				nRead += VersionedAudioFormat.read(rec, buf, nRead, bufSizeSamples - nRead);
+			}
+			if (nRead < bufSizeSamples) break;
+			if (buf != scratch) floatRing.commit();
+		}
+	}
+
 	public synchronized void stop() {
 		if (inputThread == null) return;
 		inputThread.interrupt();
@@ -79,19 +143,60 @@ public class AudioRecordWrapper {
 			// do nothing
 		}
 		inputThread = null;
+		if (ring != null) ring.clear();
+		if (floatRing != null) floatRing.clear();
 	}
 
 	public synchronized void release() {
 		stop();
 		rec.release();
-		queue.clear();
 	}
 
-	public short[] poll() {
-		return queue.poll();
+	/**
+	 * @return true if and only if this instance records float samples
+	 */
+	public boolean usesFloatSamples() {
+		return floatRing != null;
+	}
+
+	/**
+	 * Copies the oldest available input block into the given buffer; never blocks
+	 * 
+	 * @param buf  buffer of at least inChannels * bufferSizePerChannel samples
+	 * @return true if an input block was available, false otherwise
+	 */
+	public boolean poll(short buf[]) {
+		return ring.poll(buf);
+	}
+
+	/**
+	 * Float version of {@link #poll(short[])}; only available if this instance records float samples
+	 * 
+	 * @param buf  buffer of at least inChannels * bufferSizePerChannel samples
+	 * @return true if an input block was available, false otherwise
+	 */
+	public boolean poll(float buf[]) {
+		return floatRing.poll(buf);
+	}
+
+	/**
+	 * @return number of input blocks that are ready to be polled
+	 */
+	public int available() {
+		return (ring != null) ? ring.available() : floatRing.available();
+	}
+
+	/**
+	 * @return number of input blocks dropped because the audio thread fell behind
+	 */
+	public long getOverruns() {
+		return (ring != null) ? ring.getOverruns() : floatRing.getOverruns();
 	}
 
-	public short[] take() throws InterruptedException {
-		return queue.take();
+	/**
+	 * @return number of times the audio thread found no input block available
+	 */
+	public long getUnderruns() {
+		return (ring != null) ? ring.getUnderruns() : floatRing.getUnderruns();
 	}
 }
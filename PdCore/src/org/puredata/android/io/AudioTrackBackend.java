@@ -0,0 +1,208 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ *
+ * AudioTrackBackend is the {@link AudioBackend} for the audio device; it writes output to an {@link AudioTrack} and
+ * reads input from an {@link AudioRecordWrapper}.  By default, input is resampled by a {@link DriftCompensator} so that
+ * it stays locked to the output clock over long sessions.
+ *
+ */
+public class AudioTrackBackend implements AudioBackend {
+
+	private static final String TAG = "AudioTrackBackend";
+	private final int inputBlocks;
+	private final boolean compensateDrift;
+	private AudioRecordWrapper rec = null;
+	private DriftCompensator drift = null;
+	private AudioTrack track = null;
+	private boolean floatSamples = false;
+	private int minQueueFrames;
+	private int maxQueueFrames;
+	private long framesPlayed;
+	private int lastHead;
+
+	/**
+	 * Constructor
+	 */
+	public AudioTrackBackend() {
+		this(AudioRecordWrapper.DEFAULT_INPUT_BLOCKS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param inputBlocks  number of input buffers that can be queued up between the input thread and the audio thread
+	 */
+	public AudioTrackBackend(int inputBlocks) {
+		this(inputBlocks, true);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param inputBlocks      number of input buffers that can be queued up between the input thread and the audio thread
+	 * @param compensateDrift  flag indicating whether to resample the input so that it stays locked to the output clock
+	 */
+	public AudioTrackBackend(int inputBlocks, boolean compensateDrift) {
+		if (inputBlocks <= 0) {
+			throw new IllegalArgumentException("illegal number of input blocks: " + inputBlocks);
+		}
+		this.inputBlocks = inputBlocks;
+		this.compensateDrift = compensateDrift;
+	}
+
+	@Override
+	public void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames, boolean preferFloat)
+			throws IOException {
+		if (preferFloat && VersionedAudioFormat.hasFloatSupport()) {
+			try {
+				openDevice(sampleRate, inChannels, outChannels, framesPerBuffer, maxFrames, true);
+				return;
+			} catch (IOException e) {
+				Log.w(TAG, "unable to open device with float samples, falling back to 16bit", e);
+			}
+		}
+		openDevice(sampleRate, inChannels, outChannels, framesPerBuffer, maxFrames, false);
+	}
+
+	private void openDevice(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames,
+			boolean floatSamples) throws IOException {
+		this.floatSamples = floatSamples;
+		rec = (inChannels == 0) ? null : new AudioRecordWrapper(sampleRate, inChannels, framesPerBuffer, inputBlocks, floatSamples);
+		if (rec != null && floatSamples && !rec.usesFloatSamples()) {  // input and output need to use the same format
+			release();
+			throw new IOException("unable to record float samples");
+		}
+		if (rec != null && compensateDrift) drift = new DriftCompensator(rec, sampleRate, inChannels, framesPerBuffer);
+		int channelConfig = VersionedAudioFormat.getOutFormat(outChannels);
+		int encoding = VersionedAudioFormat.getEncoding(floatSamples);
+		int bufSizeBytes = VersionedAudioFormat.getBytesPerSample(floatSamples) * outChannels * framesPerBuffer;
+		int trackSizeBytes = 2 * bufSizeBytes;
+		while (trackSizeBytes < maxFrames / framesPerBuffer * bufSizeBytes) trackSizeBytes += bufSizeBytes;
+		int minTrackSizeBytes = AudioTrack.getMinBufferSize(sampleRate, channelConfig, encoding);
+		if (minTrackSizeBytes <= 0) {
+			release();
+			throw new IOException("bad AudioTrack parameters; sr: " + sampleRate +", ch: " + outChannels + ", bufSize: " + trackSizeBytes);
+		}
+		while (trackSizeBytes < minTrackSizeBytes) trackSizeBytes += bufSizeBytes;
+		minQueueFrames = minTrackSizeBytes * framesPerBuffer / bufSizeBytes;
+		maxQueueFrames = trackSizeBytes * framesPerBuffer / bufSizeBytes;
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, encoding, trackSizeBytes, AudioTrack.MODE_STREAM);
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			release();
+			throw new IOException("unable to initialize AudioTrack instance for sr: " + sampleRate +", ch: " + outChannels + ", bufSize: " + trackSizeBytes);
+		}
+	}
+
+	/**
+	 * @return true if and only if the device was opened with float samples; if the device rejects float samples, the
+	 *             backend falls back to 16bit samples even if float samples were requested
+	 */
+	@Override
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	@Override
+	public int getMinQueueFrames() {
+		return minQueueFrames;
+	}
+
+	@Override
+	public int getMaxQueueFrames() {
+		return maxQueueFrames;
+	}
+
+	@Override
+	public int setQueueFrames(int frames) {
+		return VersionedAudioFormat.setBufferSizeInFrames(track, frames);
+	}
+
+	@Override
+	public void start() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		if (rec != null) rec.start();
+		if (drift != null) drift.reset();
+		track.play();
+		framesPlayed = 0;
+		lastHead = track.getPlaybackHeadPosition();
+	}
+
+	@Override
+	public void stop() {
+		if (rec != null) rec.stop();
+		track.stop();
+	}
+
+	@Override
+	public void release() {
+		if (track != null) track.release();
+		if (rec != null) rec.release();
+		track = null;
+		rec = null;
+		drift = null;
+	}
+
+	@Override
+	public boolean read(short buffer[]) {
+		if (drift != null) return drift.read(buffer);
+		return rec != null && rec.poll(buffer);
+	}
+
+	@Override
+	public boolean read(float buffer[]) {
+		if (drift != null) return drift.read(buffer);
+		return rec != null && rec.poll(buffer);
+	}
+
+	@Override
+	public int write(short buffer[], int offset, int size) {
+		return track.write(buffer, offset, size);
+	}
+
+	@Override
+	public int write(float buffer[], int offset, int size) {
+		return VersionedAudioFormat.write(track, buffer, offset, size);
+	}
+
+	@Override
+	public long getFramesPlayed() {
+		int head = track.getPlaybackHeadPosition();
+		framesPlayed += (head - lastHead) & 0xffffffffL;  // playback head position wraps around
+		lastHead = head;
+		return framesPlayed;
+	}
+
+	@Override
+	public int getUnderrunCount() {
+		return VersionedAudioFormat.getUnderrunCount(track);
+	}
+
+	@Override
+	public long getDroppedInput() {
+		return (rec != null) ? rec.getOverruns() : 0;
+	}
+
+	/**
+	 * @return current correction of the input clock relative to the output clock in parts per million, 0 if drift
+	 *             compensation is disabled or there is no input
+	 */
+	public float getInputDriftPpm() {
+		DriftCompensator d = drift;
+		return (d != null) ? d.getDriftPpm() : 0;
+	}
+}
@@ -9,20 +9,53 @@ package org.puredata.android.io;
 
 /**
  *
- * AudioWrapper wraps {@link AudioTrack} and {@link AudioRecord} objects and manages the main audio rendering
- * thread.  It hides the complexity of working with raw PCM audio; client code only needs to implement a JACK-style
- * audio processing callback (jackaudio.org).
+ * AudioWrapper wraps an {@link AudioBackend}, by default {@link AudioTrack} and {@link AudioRecord} objects, and manages
+ * the main audio rendering thread.  It hides the complexity of working with raw PCM audio; client code only needs to
+ * implement a JACK-style audio processing callback (jackaudio.org).
  * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com) 
  *
  */
 public abstract class AudioWrapper {
 
-	private static final String AUDIO_WRAPPER = "AudioWrapper";
-	private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
-	private final AudioRecordWrapper rec;
-	private final AudioTrack track;
+	private static final long MIN_START_WAIT_NANOS = 1000000L;
+	private static final long STOP_TIMEOUT_MILLIS = 1000;
+	private static final long PARK_NANOS = 1000000;
+	private final AudioBackend backend;
+	private final boolean floatSamples;
+	private final int sampleRate;
+	private final int framesPerBuffer;
+	private final LatencyController latencyController;
+	private final int minQueueFrames;
+	private final int maxQueueFrames;
+	private volatile int queueFrames;
+	private boolean throttle;
+	private long framesWritten;
+	private long framesPlayedAtStart;
+	private int queuedAtStart;
+	private int lastUnderruns;
+	private boolean primed;
+	private boolean underrun;
+	private boolean inputArrived;
+	private long waitNanos;
+	private volatile int fadeFrames;
+	private volatile boolean stopping;
+	private int fadePos;
+	private CountDownLatch started;
+	private BlockRing<short[]> aheadRing = null;
+	private BlockRing<float[]> aheadRingFloat = null;
+	private volatile boolean renderDone;
+	private volatile long aheadStalls = 0;
+	private final AudioMetrics metrics;
+	private final AudioMeter inputMeter;
+	private final AudioMeter outputMeter;
+	private volatile AnalysisBus inputAnalysis = null;
+	private volatile AnalysisBus outputAnalysis = null;
+	private volatile Recorder recorder = null;
+	final short inBuf[];
 	final short outBuf[];
+	final float inBufFloat[];
+	final float outBufFloat[];
 	final int inputSizeShorts;
 	final int bufSizeShorts;
 	private Thread audioThread = null;
@@ -37,23 +70,96 @@ public abstract class AudioWrapper {
 	 * @throws IOException if the audio parameters are not supported by the device
 	 */
 	public AudioWrapper(int sampleRate, int inChannels, int outChannels, int bufferSizePerChannel) throws IOException {
-		int channelConfig = VersionedAudioFormat.getOutFormat(outChannels);
-		rec = (inChannels == 0) ? null : new AudioRecordWrapper(sampleRate, inChannels, bufferSizePerChannel);
+		this(sampleRate, inChannels, outChannels, bufferSizePerChannel, AudioRecordWrapper.DEFAULT_INPUT_BLOCKS);
+	}
+
+	/**
+	 * Constructor; initializes {@link AudioTrack} and {@link AudioRecord} objects
+	 * 
+	 * @param sampleRate
+	 * @param inChannels  number of input channels
+	 * @param outChannels number of output channels
+	 * @param bufferSizePerChannel  number of samples per buffer per channel
+	 * @param inputBlocks number of input buffers that can be queued up between the input thread and the audio thread
+	 * @throws IOException if the audio parameters are not supported by the device
+	 */
+	public AudioWrapper(int sampleRate, int inChannels, int outChannels, int bufferSizePerChannel, int inputBlocks) throws IOException {
+		this(sampleRate, inChannels, outChannels, bufferSizePerChannel, inputBlocks, false);
+	}
+
+	/**
+	 * Constructor; initializes {@link AudioTrack} and {@link AudioRecord} objects
+	 * 
+	 * @param sampleRate
+	 * @param inChannels  number of input channels
+	 * @param outChannels number of output channels
+	 * @param bufferSizePerChannel  number of samples per buffer per channel
+	 * @param inputBlocks number of input buffers that can be queued up between the input thread and the audio thread
+	 * @param preferFloat flag indicating whether to run the audio thread on float samples if the device supports them;
+	 *                        if true and the device supports float samples, {@link #process(float[], float[])} will be
+	 *                        invoked instead of {@link #process(short[], short[])}
+	 * @throws IOException if the audio parameters are not supported by the device
+	 */
+	public AudioWrapper(int sampleRate, int inChannels, int outChannels, int bufferSizePerChannel, int inputBlocks,
+			boolean preferFloat) throws IOException {
+		this(sampleRate, inChannels, outChannels, bufferSizePerChannel, inputBlocks, preferFloat, null);
+	}
+
+	/**
+	 * Constructor; initializes {@link AudioTrack} and {@link AudioRecord} objects
+	 * 
+	 * @param sampleRate
+	 * @param inChannels  number of input channels
+	 * @param outChannels number of output channels
+	 * @param bufferSizePerChannel  number of samples per buffer per channel
+	 * @param inputBlocks number of input buffers that can be queued up between the input thread and the audio thread
+	 * @param preferFloat flag indicating whether to run the audio thread on float samples if the device supports them
+	 * @param latencyController  controller for the number of buffers queued up in the audio device; the audio thread keeps
+	 *                        twice as many buffers in flight as the controller asks for (but no fewer than the device requires),
+	 *                        same as the double buffering without a controller; null means that the device buffer stays full
+	 * @throws IOException if the audio parameters are not supported by the device
+	 */
+	public AudioWrapper(int sampleRate, int inChannels, int outChannels, int bufferSizePerChannel, int inputBlocks,
+			boolean preferFloat, LatencyController latencyController) throws IOException {
+		this(new AudioTrackBackend(inputBlocks), sampleRate, inChannels, outChannels, bufferSizePerChannel, preferFloat,
+				latencyController);
+	}
+
+	/**
+	 * Constructor; opens the given backend
+	 * 
+	 * @param backend     backend that consumes output and provides input, e.g., {@link AudioTrackBackend} for the audio
+	 *                        device, {@link WavFileBackend} for WAV files, or {@link NullBackend} for benchmarking
+	 * @param sampleRate
+	 * @param inChannels  number of input channels
+	 * @param outChannels number of output channels
+	 * @param bufferSizePerChannel  number of samples per buffer per channel
+	 * @param preferFloat flag indicating whether to run the audio thread on float samples if the backend supports them
+	 * @param latencyController  controller for the number of buffers queued up in the backend, or null
+	 * @throws IOException if the audio parameters are not supported by the backend
+	 */
+	public AudioWrapper(AudioBackend backend, int sampleRate, int inChannels, int outChannels, int bufferSizePerChannel,
+			boolean preferFloat, LatencyController latencyController) throws IOException {
+		this.backend = backend;
+		this.sampleRate = sampleRate;
+		this.framesPerBuffer = bufferSizePerChannel;
+		this.latencyController = latencyController;
+		int maxBuffers = (latencyController != null) ? latencyController.getMaxBuffers() : 1;
+		backend.open(sampleRate, inChannels, outChannels, bufferSizePerChannel, 2 * maxBuffers * bufferSizePerChannel, preferFloat);
+		metrics = new AudioMetrics(sampleRate, bufferSizePerChannel);
+		inputMeter = new AudioMeter(inChannels, sampleRate / 50);  // 20ms windows, a little more than a video frame
+		outputMeter = new AudioMeter(outChannels, sampleRate / 50);
+		floatSamples = backend.usesFloatSamples();
 		inputSizeShorts = inChannels * bufferSizePerChannel;
 		bufSizeShorts = outChannels * bufferSizePerChannel;
+		inBuf = new short[inputSizeShorts];
 		outBuf = new short[bufSizeShorts];
-		int bufSizeBytes = 2 * bufSizeShorts;
-		int trackSizeBytes = 2 * bufSizeBytes;
-		int minTrackSizeBytes = AudioTrack.getMinBufferSize(sampleRate, channelConfig, ENCODING);
-		if (minTrackSizeBytes <= 0) {
-			throw new IOException("bad AudioTrack parameters; sr: " + sampleRate +", ch: " + outChannels + ", bufSize: " + trackSizeBytes);
-		}
-		while (trackSizeBytes < minTrackSizeBytes) trackSizeBytes += bufSizeBytes;
-		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, ENCODING, trackSizeBytes, AudioTrack.MODE_STREAM);
-		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
-			track.release();
-			throw new IOException("unable to initialize AudioTrack instance for sr: " + sampleRate +", ch: " + outChannels + ", bufSize: " + trackSizeBytes);
-		}
+		inBufFloat = floatSamples ? new float[inputSizeShorts] : null;
+		outBufFloat = floatSamples ? new float[bufSizeShorts] : null;
+		minQueueFrames = backend.getMinQueueFrames();
+		maxQueueFrames = backend.getMaxQueueFrames();
+		queueFrames = maxQueueFrames;
+		fadeFrames = sampleRate / 200;  // 5ms
 	}
 
 	/**
@@ -70,49 +176,491 @@ public abstract class AudioWrapper {
 	protected abstract int process(short inBuffer[], short outBuffer[]);
 
 	/**
-	 * Start the audio rendering thread as well as {@link AudioTrack} and {@link AudioRecord} objects
+	 * Float version of the audio rendering callback, invoked instead of {@link #process(short[], short[])} if this instance
+	 * uses float samples (see {@link #usesFloatSamples()}); samples range from -1 to 1.
+	 * 
+	 * The default implementation converts to and from 16bit samples and delegates to {@link #process(short[], short[])};
+	 * subclasses that can work on floats directly should override it.
+	 * 
+	 * @param inBuffer   array of input samples to be processed, e.g., from the microphone
+	 * @param outBuffer  array of output samples, e.g., to be sent to the speakers
+	 * @return
+	 */
+	protected int process(float inBuffer[], float outBuffer[]) {
+		for (int i = 0; i < inputSizeShorts; i++) {
+			float x = inBuffer[i];
+			inBuf[i] = (short) (x >= 1.0f ? Short.MAX_VALUE : x <= -1.0f ? Short.MIN_VALUE : x * 32767.0f);
+		}
+		int err = process(inBuf, outBuf);
+		for (int i = 0; i < bufSizeShorts; i++) {
+			outBuffer[i] = outBuf[i] * (1.0f / 32768.0f);
+		}
+		return err;
+	}
+
+	/**
+	 * @return true if and only if the audio thread works on float samples
+	 */
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	/**
+	 * Sets the length of the fade-in and fade-out ramps that the audio thread applies when it starts and stops
 	 * 
-	 * @param context
+	 * @param frames  length of the ramps in frames; 0 disables fades.  The default is 5ms worth of frames.
+	 */
+	public void setFadeFrames(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("negative fade length: " + frames);
+		}
+		fadeFrames = frames;
+	}
+
+	/**
+	 * @return length of the fade-in and fade-out ramps in frames
+	 */
+	public int getFadeFrames() {
+		return fadeFrames;
+	}
+
+	/**
+	 * Enables or disables pipelined mode; in pipelined mode, a separate render thread runs the process callback and
+	 * keeps up to the given number of output buffers ahead of the audio thread, which only feeds the backend.  This
+	 * absorbs short spikes of the process callback without raising the buffer size of the backend, at the cost of
+	 * the render-ahead buffers adding to the latency whenever they're full.
+	 * 
+	 * @param blocks  number of output buffers that the render thread may work ahead; 0 means serial mode (default)
+	 * @throws IllegalStateException if the audio thread is running
+	 */
+	public synchronized void setRenderAhead(int blocks) {
+		if (blocks < 0) {
+			throw new IllegalArgumentException("negative render-ahead depth: " + blocks);
+		}
+		if (isRunning()) {
+			throw new IllegalStateException("can't change render-ahead depth while the audio thread is running");
+		}
+		aheadRing = (blocks == 0 || floatSamples) ? null : new BlockRing<short[]>(new short[blocks][bufSizeShorts]);
+		aheadRingFloat = (blocks == 0 || !floatSamples) ? null : new BlockRing<float[]>(new float[blocks][bufSizeShorts]);
+	}
+
+	/**
+	 * @return number of output buffers that the render thread may work ahead, 0 in serial mode
+	 */
+	public synchronized int getRenderAhead() {
+		return (aheadRing != null) ? aheadRing.capacity() : (aheadRingFloat != null) ? aheadRingFloat.capacity() : 0;
+	}
+
+	/**
+	 * @return number of output buffers that the render thread currently has ready, 0 in serial mode; may be called
+	 *             from any thread
+	 */
+	public int getRenderAheadFill() {
+		BlockRing<short[]> ring = aheadRing;
+		BlockRing<float[]> ringFloat = aheadRingFloat;
+		return (ring != null) ? ring.available() : (ringFloat != null) ? ringFloat.available() : 0;
+	}
+
+	/**
+	 * @return number of times that the audio thread had to wait for the render thread in pipelined mode
+	 */
+	public long getRenderAheadStalls() {
+		return aheadStalls;
+	}
+
+	/**
+	 * Start the audio rendering thread as well as the backend; returns as soon as the backend has been primed, so that
+	 * audio starts with a fade-in right away, but waits no longer than the fade-in (at least 1ms), so that a slow
+	 * device never holds up the calling thread, usually the UI thread; the audio thread keeps priming in the background
+	 * 
+	 * @param context  current application context; may be null
 	 */
 	public synchronized void start(Context context) {
-		avoidClickHack(context);
+		stopping = false;
+		started = new CountDownLatch(1);
+		final boolean pipelined = (aheadRing != null || aheadRingFloat != null);
 		audioThread = new Thread() {
 			@Override
 			public void run() {
-				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
-				if (rec != null) rec.start();
-				track.play();
-				short inBuf[];
 				try {
-					inBuf = (rec != null) ? rec.take() : new short[inputSizeShorts];
-				} catch (InterruptedException e) {
-					return;
-				}
-				while (!Thread.interrupted()) {
-					if (process(inBuf, outBuf) != 0) break;
-					track.write(outBuf, 0, bufSizeShorts);
-					if (rec != null) {
-						short newBuf[] = rec.poll();
-						if (newBuf != null) {
-							inBuf = newBuf;
-						} else {
-							Log.w(AUDIO_WRAPPER, "no input buffer available");
-						}
+					backend.start();
+					resetCycle();
+					if (pipelined) {
+						runPipelined();
+					} else if (floatSamples) {
+						renderFloats();
+					} else {
+						renderShorts();
 					}
+				} finally {
+					started.countDown();
 				}
-				if (rec != null) rec.stop();
-				track.stop();
+				backend.stop();
 			}
 		};
 		audioThread.start();
+		try {
+			started.await(Math.max(MIN_START_WAIT_NANOS, fadeFrames * 1000000000L / sampleRate), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void renderShorts() {
+		Arrays.fill(inBuf, (short) 0);
+		while (awaitRoom()) {
+			if (inputSizeShorts > 0 && !pollInput(backend.read(inBuf))) Arrays.fill(inBuf, (short) 0);
+			tapInput(inBuf);
+			long start = System.nanoTime();
+			if (process(inBuf, outBuf) != 0) break;
+			long processed = System.nanoTime();
+			adaptLatency(start, processed);
+			boolean faded = fade(outBuf);
+			tapOutput(outBuf);
+			long writing = System.nanoTime();
+			if (backend.write(outBuf, 0, bufSizeShorts) < 0) break;
+			finishCycle(start, processed, System.nanoTime() - writing);
+			if (faded) break;
+		}
+	}
+
+	private void renderFloats() {
+		Arrays.fill(inBufFloat, 0.0f);
+		while (awaitRoom()) {
+			if (inputSizeShorts > 0 && !pollInput(backend.read(inBufFloat))) Arrays.fill(inBufFloat, 0.0f);
+			tapInput(inBufFloat);
+			long start = System.nanoTime();
+			if (process(inBufFloat, outBufFloat) != 0) break;
+			long processed = System.nanoTime();
+			adaptLatency(start, processed);
+			boolean faded = fade(outBufFloat);
+			tapOutput(outBufFloat);
+			long writing = System.nanoTime();
+			if (backend.write(outBufFloat, 0, bufSizeShorts) < 0) break;
+			finishCycle(start, processed, System.nanoTime() - writing);
+			if (faded) break;
+		}
+	}
+
+	// Pipelined mode: the render thread fills the render-ahead ring, while this thread (the audio thread) takes care
+	// of the backend, i.e., throttling, underrun detection, latency control, and writing.
+	private void runPipelined() {
+		final Thread writer = Thread.currentThread();
+		renderDone = false;
+		if (aheadRing != null) aheadRing.clear();
+		if (aheadRingFloat != null) aheadRingFloat.clear();
+		Thread renderer = new Thread() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);  // same class as the audio thread; runs Pd
+				try {
+					if (floatSamples) {
+						renderAheadFloats(writer);
+					} else {
+						renderAheadShorts(writer);
+					}
+				} finally {
+					renderDone = true;
+					LockSupport.unpark(writer);
+				}
+			}
+		};
+		renderer.start();
+		try {
+			if (floatSamples) {
+				writeAheadFloats(renderer);
+			} else {
+				writeAheadShorts(renderer);
+			}
+		} finally {
+			renderer.interrupt();
+			boolean interrupted = false;
+			while (renderer.isAlive()) {
+				try {
+					renderer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private void renderAheadShorts(Thread writer) {
+		BlockRing<short[]> ring = aheadRing;
+		Arrays.fill(inBuf, (short) 0);
+		while (!Thread.interrupted()) {
+			if (ring.available() >= ring.capacity()) {
+				LockSupport.parkNanos(PARK_NANOS);  // render-ahead ring is full; the audio thread unparks us
+				continue;
+			}
+			short out[] = ring.claim();
+			if (inputSizeShorts > 0 && !pollInput(backend.read(inBuf))) Arrays.fill(inBuf, (short) 0);
+			tapInput(inBuf);
+			long start = System.nanoTime();
+			if (process(inBuf, out) != 0) break;
+			metrics.recordProcess(System.nanoTime() - start);
+			boolean faded = fade(out);
+			tapOutput(out);
+			ring.commit();
+			LockSupport.unpark(writer);
+			if (faded) break;
+		}
+	}
+
+	private void renderAheadFloats(Thread writer) {
+		BlockRing<float[]> ring = aheadRingFloat;
+		Arrays.fill(inBufFloat, 0.0f);
+		while (!Thread.interrupted()) {
+			if (ring.available() >= ring.capacity()) {
+				LockSupport.parkNanos(PARK_NANOS);  // render-ahead ring is full; the audio thread unparks us
+				continue;
+			}
+			float out[] = ring.claim();
+			if (inputSizeShorts > 0 && !pollInput(backend.read(inBufFloat))) Arrays.fill(inBufFloat, 0.0f);
+			tapInput(inBufFloat);
+			long start = System.nanoTime();
+			if (process(inBufFloat, out) != 0) break;
+			metrics.recordProcess(System.nanoTime() - start);
+			boolean faded = fade(out);
+			tapOutput(out);
+			ring.commit();
+			LockSupport.unpark(writer);
+			if (faded) break;
+		}
+	}
+
+	private void writeAheadShorts(Thread renderer) {
+		BlockRing<short[]> ring = aheadRing;
+		while (awaitRoom()) {
+			long start = System.nanoTime();
+			short block[];
+			boolean stalled = false;
+			while ((block = ring.peek()) == null) {
+				if (renderDone) {
+					block = ring.peek();  // the last block may have been committed right before the render thread finished
+					if (block == null) return;
+					break;
+				}
+				stalled = true;
+				LockSupport.parkNanos(PARK_NANOS);
+				if (Thread.interrupted()) return;
+			}
+			reportStall(stalled, start);
+			long writing = System.nanoTime();
+			if (backend.write(block, 0, bufSizeShorts) < 0) return;
+			long writeNanos = System.nanoTime() - writing;
+			ring.skip();
+			LockSupport.unpark(renderer);
+			finishWrite(start, writeNanos);
+		}
+	}
+
+	private void writeAheadFloats(Thread renderer) {
+		BlockRing<float[]> ring = aheadRingFloat;
+		while (awaitRoom()) {
+			long start = System.nanoTime();
+			float block[];
+			boolean stalled = false;
+			while ((block = ring.peek()) == null) {
+				if (renderDone) {
+					block = ring.peek();  // the last block may have been committed right before the render thread finished
+					if (block == null) return;
+					break;
+				}
+				stalled = true;
+				LockSupport.parkNanos(PARK_NANOS);
+				if (Thread.interrupted()) return;
+			}
+			reportStall(stalled, start);
+			long writing = System.nanoTime();
+			if (backend.write(block, 0, bufSizeShorts) < 0) return;
+			long writeNanos = System.nanoTime() - writing;
+			ring.skip();
+			LockSupport.unpark(renderer);
+			finishWrite(start, writeNanos);
+		}
+	}
+
+	// In pipelined mode, an xrun is either an underrun of the backend or a stall, i.e., the audio thread found the
+	// render-ahead ring empty.  Until the backend is primed, waiting for the render thread is expected.
+	private void reportStall(boolean stalled, long now) {
+		if (!primed) return;
+		if (stalled) aheadStalls++;
+		if (latencyController == null) return;
+		if (latencyController.update(now, underrun || stalled)) applyLatency();
+	}
+
+	// The write time covers the call to the backend and the throttling in awaitRoom, i.e., the time spent waiting for the
+	// device to take the buffer, but not the stall, meters, taps, or fades.
+	private void finishWrite(long start, long writeNanos) {
+		framesWritten += framesPerBuffer;
+		metrics.recordWrite(start, writeNanos + waitNanos, primed);
+		if (primed || framesWritten >= queueFrames) started.countDown();
+	}
+
+	// Applies the fade-in after start and the fade-out after stop; returns true when the fade-out is complete.  Buffers
+	// are left alone in between.
+	private boolean fade(short buffer[]) {
+		int n = fadeFrames;
+		boolean out = stopping;
+		if (!out && fadePos >= n) return false;
+		if (fadePos > n) fadePos = n;
+		int channels = bufSizeShorts / framesPerBuffer;
+		for (int i = 0, k = 0; i < framesPerBuffer; i++) {
+			float gain = nextGain(n, out);
+			for (int c = 0; c < channels; c++, k++) {
+				buffer[k] = (short) (buffer[k] * gain);
+			}
+		}
+		return out && fadePos == 0;
+	}
+
+	private boolean fade(float buffer[]) {
+		int n = fadeFrames;
+		boolean out = stopping;
+		if (!out && fadePos >= n) return false;
+		if (fadePos > n) fadePos = n;
+		int channels = bufSizeShorts / framesPerBuffer;
+		for (int i = 0, k = 0; i < framesPerBuffer; i++) {
+			float gain = nextGain(n, out);
+			for (int c = 0; c < channels; c++, k++) {
+				buffer[k] *= gain;
+			}
+		}
+		return out && fadePos == 0;
+	}
+
+	private float nextGain(int n, boolean out) {
+		if (out) {
+			if (fadePos > 0) fadePos--;
+		} else {
+			if (fadePos < n) fadePos++;
+		}
+		return (n > 0) ? (float) fadePos / n : (out ? 0.0f : 1.0f);
+	}
+
+	// Meters the input and feeds the analysis bus, if any, while the buffer is still in the cache.
+	private void tapInput(short buffer[]) {
+		inputMeter.measure(buffer, inputSizeShorts);
+		AnalysisBus bus = inputAnalysis;
+		if (bus != null) bus.write(buffer, inputSizeShorts, inputMeter.getChannels());
+	}
+
+	private void tapInput(float buffer[]) {
+		inputMeter.measure(buffer, inputSizeShorts);
+		AnalysisBus bus = inputAnalysis;
+		if (bus != null) bus.write(buffer, inputSizeShorts, inputMeter.getChannels());
+	}
+
+	private void tapOutput(short buffer[]) {
+		outputMeter.measure(buffer, bufSizeShorts);
+		AnalysisBus bus = outputAnalysis;
+		if (bus != null) bus.write(buffer, bufSizeShorts, outputMeter.getChannels());
+		Recorder rec = recorder;
+		if (rec != null) rec.write(buffer, bufSizeShorts);
+	}
+
+	private void tapOutput(float buffer[]) {
+		outputMeter.measure(buffer, bufSizeShorts);
+		AnalysisBus bus = outputAnalysis;
+		if (bus != null) bus.write(buffer, bufSizeShorts, outputMeter.getChannels());
+		Recorder rec = recorder;
+		if (rec != null) rec.write(buffer, bufSizeShorts);
+	}
+
+	private void resetCycle() {
+		framesWritten = 0;
+		framesPlayedAtStart = backend.getFramesPlayed();
+		throttle = false;
+		lastUnderruns = backend.getUnderrunCount();
+		primed = false;
+		inputArrived = false;
+		fadePos = 0;
+		metrics.restart();
+		inputMeter.restart();
+		outputMeter.restart();
+		if (latencyController != null) {
+			latencyController.reset(System.nanoTime());
+			applyLatency();
+		}
+	}
+
+	private void applyLatency() {
+		int frames = Math.min(maxQueueFrames, Math.max(minQueueFrames, 2 * latencyController.getBuffers() * framesPerBuffer));
+		int actual = backend.setQueueFrames(frames);
+		throttle = (actual < 0) && latencyController.isAdaptive();  // a fixed size just keeps the device buffer full
+		queueFrames = (actual > 0) ? actual : throttle ? frames : maxQueueFrames;
+	}
+
+	private int queuedFrames() {
+		return (int) (framesWritten - (backend.getFramesPlayed() - framesPlayedAtStart));
+	}
+
+	// Returns the result of polling for input; no input yet, or input thread fell behind, means that we process
+	// silence rather than stale input.  Only the latter counts as starvation.
+	private boolean pollInput(boolean available) {
+		if (available) {
+			inputArrived = true;
+		} else if (inputArrived) {
+			metrics.recordInputStarvation();
+		}
+		return available;
+	}
+
+	// Throttles the audio thread so that no more than the target number of frames is queued up in the backend, and checks
+	// for underruns.  If the backend supports queue size control, the blocking write takes care of throttling.  Otherwise,
+	// the audio thread parks for as long as it takes the device to play the frames that don't fit, i.e., it wakes up
+	// about once per buffer rather than polling.
+	private boolean awaitRoom() {
+		long start = System.nanoTime();
+		queuedAtStart = queuedFrames();
+		if (throttle && queueFrames < maxQueueFrames) {
+			int excess;
+			while ((excess = queuedAtStart + framesPerBuffer - queueFrames) > 0) {
+				LockSupport.parkNanos(excess * 1000000000L / sampleRate);
+				if (Thread.currentThread().isInterrupted()) return false;
+				queuedAtStart = queuedFrames();
+			}
+		}
+		waitNanos = System.nanoTime() - start;
+		int underruns = backend.getUnderrunCount();
+		underrun = primed && (queuedAtStart <= 0 || underruns > lastUnderruns);
+		lastUnderruns = underruns;
+		if (underrun) metrics.recordOutputUnderrun();
+		if (queuedAtStart + framesPerBuffer >= queueFrames) primed = true;
+		return !Thread.interrupted();
+	}
+
+	// Reports xruns to the latency controller; an xrun is either an underrun of the device or a near miss, i.e., a
+	// process callback that used up most of the audio that was queued up when it started.
+	private void adaptLatency(long start, long now) {
+		if (latencyController == null || !primed) return;
+		boolean xrun = underrun || (now - start) * sampleRate > 750000000L * queuedAtStart;
+		if (latencyController.update(now, xrun)) applyLatency();
+	}
+
+	// Lets start() return once the backend holds as much audio as it's supposed to, or once the first queue's worth of
+	// audio has been written if the backend is free-running and never fills up.  As in finishWrite, the write time only
+	// covers waiting for the device.
+	private void finishCycle(long start, long processed, long writeNanos) {
+		framesWritten += framesPerBuffer;
+		metrics.recordCycle(start, processed - start, writeNanos + waitNanos, primed);
+		if (primed || framesWritten >= queueFrames) started.countDown();
 	}
 
 	/**
-	 * Stop the audio thread as well as {@link AudioTrack} and {@link AudioRecord} objects
+	 * Stop the audio thread as well as the backend; returns once the fade-out has been written to the backend
 	 */
 	public synchronized void stop() {
 		if (audioThread == null) return;
-		audioThread.interrupt();
+		stopping = true;
+		try {
+			audioThread.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			// do nothing
+		}
+		audioThread.interrupt();  // in case the fade-out didn't finish in time
 		try {
 			audioThread.join();
 		} catch (InterruptedException e) {
@@ -122,33 +670,158 @@ public abstract class AudioWrapper {
 	}
 
 	/**
-	 * Release resources held by {@link AudioTrack} and {@link AudioRecord} objects;
-	 * stops the audio thread if it is still running
+	 * Release resources held by the backend; stops the audio thread, and the recording, if they are still running
 	 */
 	public synchronized void release() {
 		stop();
-		track.release();
-		if (rec != null) rec.release();
+		try {
+			stopRecording();
+		} catch (IOException e) {
+			// nothing left to do about it; the file keeps whatever made it to the disk
+		}
+		backend.release();
 	}
 
 	/**
-	 * @return true if and only if the audio thread is currently running
+	 * Starts recording the output to a 16bit WAV file; the audio thread hands each buffer to a writer thread, so that
+	 * disk I/O never holds up audio.  Recording may start and stop while the audio thread is running.
+	 *
+	 * @param file           WAV file to write to
+	 * @param bufferSeconds  amount of audio that the writer thread may fall behind before buffers are dropped, e.g., 2
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if a recording is already in progress
 	 */
-	public synchronized boolean isRunning() {
-		return audioThread != null && audioThread.getState() != Thread.State.TERMINATED;
+	public Recorder startRecording(File file, float bufferSeconds) throws IOException {
+		return startRecording(file, bufferSeconds, false);
 	}
 
-	// weird little hack; eliminates the nasty click when AudioTrack (dis)engages by playing
-	// a few milliseconds of silence before starting AudioTrack
-	private void avoidClickHack(Context context) {
-		try {
-			MediaPlayer mp = MediaPlayer.create(context, R.raw.silence);
-			mp.start();
-			Thread.sleep(10);
-			mp.stop();
-			mp.release();
-		} catch (Exception e) {
-			Log.e(AUDIO_WRAPPER, e.toString());
+	/**
+	 * Starts recording the output to a 16bit WAV or FLAC file; see {@link #startRecording(File, float)}.  FLAC files
+	 * are compressed on the writer thread, as the audio comes in, and take about half the space of WAV files.
+	 *
+	 * @param file           file to write to
+	 * @param bufferSeconds  amount of audio that the writer thread may fall behind before buffers are dropped, e.g., 2
+	 * @param compress       true for a FLAC file, false for a WAV file
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if a recording is already in progress
+	 */
+	public synchronized Recorder startRecording(File file, float bufferSeconds, boolean compress) throws IOException {
+		if (recorder != null) {
+			throw new IllegalStateException("already recording to " + recorder.getFile());
 		}
+		recorder = new Recorder(file, sampleRate, bufSizeShorts / framesPerBuffer, bufferSeconds, compress);
+		return recorder;
+	}
+
+	/**
+	 * Stops recording; returns once the remaining audio has been written and the header of the file has been fixed up
+	 *
+	 * @return recorder that was stopped, null if there was no recording in progress
+	 * @throws IOException  if writing failed at any point
+	 */
+	public synchronized Recorder stopRecording() throws IOException {
+		Recorder rec = recorder;
+		if (rec == null) return null;
+		recorder = null;
+		rec.close();
+		return rec;
+	}
+
+	/**
+	 * @return number of input buffers dropped because the audio thread fell behind the input thread
+	 */
+	public long getInputOverruns() {
+		return backend.getDroppedInput();
+	}
+
+	/**
+	 * @return number of audio cycles that found no input buffer available
+	 */
+	public long getInputUnderruns() {
+		return metrics.getInputStarvations();
+	}
+
+	/**
+	 * @return snapshot of the timing statistics of the audio thread; may be called from any thread
+	 */
+	public AudioMetrics.Snapshot getMetrics() {
+		return metrics.snapshot(getInputOverruns());
+	}
+
+	/**
+	 * @return peak and RMS levels of the input in the most recent 20ms, and the number of clipped input samples; may
+	 *             be called from any thread, e.g., once per frame
+	 */
+	public AudioMeter.Snapshot getInputLevels() {
+		return inputMeter.snapshot();
+	}
+
+	/**
+	 * @return peak and RMS levels of the output in the most recent 20ms, and the number of clipped output samples; may
+	 *             be called from any thread, e.g., once per frame
+	 */
+	public AudioMeter.Snapshot getOutputLevels() {
+		return outputMeter.snapshot();
+	}
+
+	/**
+	 * Connects analysis buses to the input and output; the audio thread writes each buffer to the buses right after
+	 * metering it.  May be called while the audio thread is running.
+	 *
+	 * @param input   analysis bus for the input, or null
+	 * @param output  analysis bus for the output, or null
+	 */
+	public void setAnalysis(AnalysisBus input, AnalysisBus output) {
+		if (input != null) input.attach(sampleRate);
+		if (output != null) output.attach(sampleRate);
+		inputAnalysis = input;
+		outputAnalysis = output;
+	}
+
+	/**
+	 * @return number of frames per buffer, i.e., the number of frames that each process callback renders
+	 */
+	public int getBufferSizePerChannel() {
+		return framesPerBuffer;
+	}
+
+	/**
+	 * @return current number of buffers as determined by the latency controller, 0 if there is no controller
+	 */
+	public int getControlledBuffers() {
+		return (latencyController != null) ? latencyController.getBuffers() : 0;
+	}
+
+	/**
+	 * @return number of xruns observed by the latency controller, 0 if there is no controller; in pipelined mode, stalls
+	 *             of the render thread count as xruns
+	 */
+	public long getXruns() {
+		return (latencyController != null) ? latencyController.getXruns() : 0;
+	}
+
+	/**
+	 * @return effective output latency in milliseconds, i.e., the amount of audio queued up in the backend
+	 */
+	public float getLatencyMillis() {
+		return 1000.0f * queueFrames / sampleRate;
+	}
+
+	/**
+	 * @return number of frames between the buffer that the process callback is rendering and the output, i.e., the
+	 *             frames queued up in the backend plus the frames rendered ahead in pipelined mode; may be called from
+	 *             any thread
+	 */
+	public int getOutputLatencyFrames() {
+		return queueFrames + getRenderAheadFill() * framesPerBuffer;
+	}
+
+	/**
+	 * @return true if and only if the audio thread is currently running
+	 */
+	public synchronized boolean isRunning() {
+		return audioThread != null && audioThread.getState() != Thread.State.TERMINATED;
 	}
 }
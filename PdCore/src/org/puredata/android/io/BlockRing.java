@@ -0,0 +1,146 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.lang.reflect.Array;
+
+/**
+ *
+ * BlockRing is a lock-free single-producer/single-consumer ring of preallocated sample blocks.  The producer
+ * claims a block, fills it in place, and commits it; the consumer copies the oldest block into its own buffer, or
+ * peeks at it in place and skips it when done.
+ * Neither side ever blocks or allocates.  The type parameter is the block type, i.e., short[] or float[].
+ *
+ */
+final class BlockRing<T> {
+
+	private final T blocks[];
+	private final int blockSize;
+	private volatile long head = 0;  // number of blocks committed; only written by the producer
+	private volatile long tail = 0;  // number of blocks consumed; only written by the consumer
+	private volatile long overruns = 0;
+	private volatile long underruns = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param blocks  preallocated blocks, all of the same size, e.g., new short[4][bufSize]
+	 */
+	BlockRing(T blocks[]) {
+		if (blocks.length == 0) throw new IllegalArgumentException("ring needs at least one block");
+		this.blocks = blocks;
+		blockSize = Array.getLength(blocks[0]);
+	}
+
+	/**
+	 * @return size of each block in samples
+	 */
+	int blockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return total number of blocks in the ring
+	 */
+	int capacity() {
+		return blocks.length;
+	}
+
+	/**
+	 * @return number of blocks that are ready to be consumed
+	 */
+	int available() {
+		return (int) (head - tail);
+	}
+
+	/**
+	 * Producer side; returns the next free block, or null if the ring is full, in which case an overrun is counted
+	 *
+	 * @return next free block, to be followed by a call to {@link #commit()} once it has been filled
+	 */
+	T claim() {
+		long h = head;
+		if (h - tail >= blocks.length) {
+			overruns++;
+			return null;
+		}
+		return blocks[(int) (h % blocks.length)];
+	}
+
+	/**
+	 * Producer side; publishes the block returned by the last successful call to {@link #claim()}
+	 */
+	void commit() {
+		head++;
+	}
+
+	/**
+	 * Consumer side; copies the oldest available block into the given buffer.  An underrun is counted if
+	 * the ring is empty even though the producer has already delivered data.
+	 *
+	 * @param dst  buffer to copy the block into; must hold at least blockSize samples
+	 * @return true if a block was available
+	 */
+	boolean poll(T dst) {
+		long t = tail;
+		long h = head;
+		if (h == t) {
+			if (h > 0) underruns++;
+			return false;
+		}
+		System.arraycopy(blocks[(int) (t % blocks.length)], 0, dst, 0, blockSize);
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Consumer side; returns the oldest available block without consuming it, so that the consumer can read it in place
+	 * and then release it with {@link #skip()}
+	 *
+	 * @return oldest available block, or null if the ring is empty
+	 */
+	T peek() {
+		long t = tail;
+		if (head == t) return null;
+		return blocks[(int) (t % blocks.length)];
+	}
+
+	/**
+	 * Consumer side; discards the oldest available block without copying it
+	 *
+	 * @return true if a block was discarded
+	 */
+	boolean skip() {
+		long t = tail;
+		if (head == t) return false;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Resets the ring to its empty state; only call this when neither producer nor consumer is active
+	 */
+	void clear() {
+		head = 0;
+		tail = 0;
+	}
+
+	/**
+	 * @return number of blocks that the producer had to drop because the ring was full
+	 */
+	long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return number of times the consumer found the ring empty
+	 */
+	long getUnderruns() {
+		return underruns;
+	}
+}
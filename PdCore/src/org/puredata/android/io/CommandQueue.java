@@ -0,0 +1,304 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.puredata.core.PdBase;
+
+/**
+ *
+ * CommandQueue hands messages for Pure Data from any number of threads to the audio thread, which delivers them at
+ * the start of the next tick.  Calling PdBase directly from the UI thread, a sensor thread, etc., means contending
+ * with the audio thread for the lock of libpd, which may hold up the audio thread for as long as the other thread
+ * holds the lock.  Sending through the queue never blocks and never touches libpd.
+ *
+ * The queue is a bounded multi-producer, single-consumer ring of preallocated slots, with arguments packed into a
+ * float array, so that the queue itself doesn't allocate; callers that send lists at a high rate can pass the same
+ * float array every time rather than a fresh argument list.  Messages take floats only, up to {@link #MAX_ARGS} of
+ * them; messages with symbol arguments can go through the {@link MessageScheduler}.  If the queue is full, messages
+ * are dropped and counted.  Messages from one thread arrive in the order in which they were sent.
+ *
+ * PdBase only takes arguments as objects, and so float arguments are boxed on the audio thread when a list or typed
+ * message is delivered.  Since Float is immutable, there is no way to pool arbitrary values; the reusable argument
+ * lists keep the Float of the previous message of the same length in each position, though, and an argument that
+ * has the same value as that one doesn't allocate, e.g., a pointer number or an axis that doesn't move.
+ *
+ * While no audio thread is running, e.g., before audio starts or while it is stopped, there is no one to drain the
+ * queue, and so messages are delivered right away on the sending thread, under the lock of PdBase.
+ *
+ * Receiver names still cross the JNI boundary and are looked up by libpd each time a message is delivered; libpd has no
+ * API for binding a sender to a symbol ahead of time, so there is no way to cache that lookup on this side.
+ *
+ */
+public final class CommandQueue {
+
+	/**
+	 * Default number of messages that the queue holds
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Maximum number of float arguments per message
+	 */
+	public static final int MAX_ARGS = 16;
+	private static final int BANG = 0;
+	private static final int FLOAT = 1;
+	private static final int SYMBOL = 2;
+	private static final int LIST = 3;
+	private static final int MESSAGE = 4;
+	private final int mask;
+	private final AtomicLongArray sequence;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private long head = 0;
+	private volatile boolean direct = true;  // true while there is no audio thread to drain the queue
+	private final int types[];
+	private final int counts[];
+	private final String receivers[];
+	private final String symbols[];
+	private final float args[];
+	private final Object argLists[][];  // one reusable argument list per length, owned by the audio thread
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity  number of messages that the queue holds; rounded up to the next power of two
+	 */
+	CommandQueue(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 20)) {
+			throw new IllegalArgumentException("bad queue capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		mask = size - 1;
+		sequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) sequence.set(i, i);
+		types = new int[size];
+		counts = new int[size];
+		receivers = new String[size];
+		symbols = new String[size];
+		args = new float[size * MAX_ARGS];
+		argLists = new Object[MAX_ARGS + 1][];
+		for (int i = 0; i <= MAX_ARGS; i++) argLists[i] = new Object[i];
+	}
+
+	/**
+	 * Sends a bang
+	 *
+	 * @param recv  receiver symbol
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendBang(String recv) {
+		long pos = claim(recv);
+		if (pos < 0) return false;
+		publish(pos, BANG, null, 0);
+		return true;
+	}
+
+	/**
+	 * Sends a float
+	 *
+	 * @param recv  receiver symbol
+	 * @param x
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendFloat(String recv, float x) {
+		long pos = claim(recv);
+		if (pos < 0) return false;
+		args[index(pos) * MAX_ARGS] = x;
+		publish(pos, FLOAT, null, 1);
+		return true;
+	}
+
+	/**
+	 * Sends a symbol
+	 *
+	 * @param recv  receiver symbol
+	 * @param sym
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendSymbol(String recv, String sym) {
+		long pos = claim(recv);
+		if (pos < 0) return false;
+		publish(pos, SYMBOL, sym, 0);
+		return true;
+	}
+
+	/**
+	 * Sends a list of floats
+	 *
+	 * @param recv  receiver symbol
+	 * @param list  up to {@link #MAX_ARGS} floats
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendList(String recv, float... list) {
+		return sendList(recv, list, 0, list.length);
+	}
+
+	/**
+	 * Sends a list of floats, taken from a range of an array
+	 *
+	 * @param recv    receiver symbol
+	 * @param list    array that holds the values of the list
+	 * @param offset  index of the first value
+	 * @param length  number of values, up to {@link #MAX_ARGS}
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendList(String recv, float list[], int offset, int length) {
+		checkArgs(list, offset, length);
+		long pos = claim(recv);
+		if (pos < 0) return false;
+		System.arraycopy(list, offset, args, index(pos) * MAX_ARGS, length);
+		publish(pos, LIST, null, length);
+		return true;
+	}
+
+	/**
+	 * Sends a typed message with float arguments
+	 *
+	 * @param recv     receiver symbol
+	 * @param message  message selector
+	 * @param list     up to {@link #MAX_ARGS} floats
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendMessage(String recv, String message, float... list) {
+		return sendMessage(recv, message, list, 0, list.length);
+	}
+
+	/**
+	 * Sends a typed message with float arguments, taken from a range of an array
+	 *
+	 * @param recv     receiver symbol
+	 * @param message  message selector
+	 * @param list     array that holds the arguments
+	 * @param offset   index of the first argument
+	 * @param length   number of arguments, up to {@link #MAX_ARGS}
+	 * @return true if the message was queued, false if the queue was full
+	 */
+	public boolean sendMessage(String recv, String message, float list[], int offset, int length) {
+		checkArgs(list, offset, length);
+		long pos = claim(recv);
+		if (pos < 0) return false;
+		System.arraycopy(list, offset, args, index(pos) * MAX_ARGS, length);
+		publish(pos, MESSAGE, message, length);
+		return true;
+	}
+
+	/**
+	 * @return number of messages dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	// Switches between delivery by the audio thread and delivery on the sending thread; messages that are still queued
+	// when switching to direct delivery go out right here.  Both happen under the lock of PdBase, and senders check the
+	// flag again under that lock, so that there is never more than one thread draining the queue.
+	void setDirect(boolean direct) {
+		synchronized (PdBase.class) {
+			this.direct = direct;
+			if (direct) drain();
+		}
+	}
+
+	// Delivers all queued messages to Pure Data; to be invoked on the audio thread, or under the lock of PdBase in direct
+	// mode.
+	void drain() {
+		while (true) {
+			int i = (int) (head & mask);
+			if (sequence.get(i) != head + 1) break;  // empty, or the next slot is still being written
+			String recv = receivers[i];
+			int n = counts[i];
+			switch (types[i]) {
+			case BANG:
+				PdBase.sendBang(recv);
+				break;
+			case FLOAT:
+				PdBase.sendFloat(recv, args[i * MAX_ARGS]);
+				break;
+			case SYMBOL:
+				PdBase.sendSymbol(recv, symbols[i]);
+				break;
+			case LIST:
+				PdBase.sendList(recv, unpack(i, n));
+				break;
+			case MESSAGE:
+				PdBase.sendMessage(recv, symbols[i], unpack(i, n));
+				break;
+			default:
+				break;
+			}
+			receivers[i] = null;
+			symbols[i] = null;
+			sequence.lazySet(i, head + mask + 1);  // releases the slot for the next round
+			head++;
+		}
+	}
+
+	// Boxes the arguments of the given slot, reusing the boxes of the previous list of the same length where possible.
+	private Object[] unpack(int i, int n) {
+		Object list[] = argLists[n];
+		for (int k = 0; k < n; k++) {
+			float x = args[i * MAX_ARGS + k];
+			Object prev = list[k];
+			if (prev == null || Float.floatToRawIntBits((Float) prev) != Float.floatToRawIntBits(x)) list[k] = x;
+		}
+		return list;
+	}
+
+	private int index(long pos) {
+		return (int) (pos & mask);
+	}
+
+	// Claims the next slot for writing; returns its position, or -1 if the queue is full.
+	private long claim(String recv) {
+		if (recv == null) {
+			throw new IllegalArgumentException("receiver must not be null");
+		}
+		long pos = tail.get();
+		while (true) {
+			long diff = sequence.get(index(pos)) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					receivers[index(pos)] = recv;
+					return pos;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				dropped.incrementAndGet();
+				return -1;
+			} else {
+				pos = tail.get();  // another producer got there first
+			}
+		}
+	}
+
+	private void publish(long pos, int type, String symbol, int count) {
+		int i = index(pos);
+		types[i] = type;
+		symbols[i] = symbol;
+		counts[i] = count;
+		sequence.lazySet(i, pos + 1);
+		if (direct) {
+			synchronized (PdBase.class) {
+				if (direct) drain();
+			}
+		}
+	}
+
+	private static void checkArgs(float list[], int offset, int length) {
+		if (length > MAX_ARGS) {
+			throw new IllegalArgumentException("too many arguments: " + length + " > " + MAX_ARGS);
+		}
+		if (offset < 0 || length < 0 || offset + length > list.length) {
+			throw new IndexOutOfBoundsException("bad range: " + offset + ", " + length + ", " + list.length);
+		}
+	}
+}
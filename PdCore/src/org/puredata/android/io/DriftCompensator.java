@@ -0,0 +1,186 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.Arrays;
+
+/**
+ *
+ * DriftCompensator keeps the input of an {@link AudioRecordWrapper} locked to the output clock.  The clocks of
+ * AudioRecord and AudioTrack never run at exactly the same rate, so that over long sessions the input ring either
+ * fills up and drops blocks or runs dry.  The compensator tracks the fill level of the input ring, smoothed over about
+ * a second, and steers a four-point Hermite resampler on the input stream with a PI controller so that the fill level
+ * stays where it settled during the first seconds of recording.
+ *
+ * All methods except the getters are to be invoked on the audio thread only.
+ *
+ */
+final class DriftCompensator {
+
+	private static final int HISTORY = 3;  // frames of the previous block kept for interpolation
+	private static final double SMOOTHING_SECONDS = 1.0;
+	private static final double WARMUP_SECONDS = 2.0;
+	private static final double T1 = 8.0;   // time constant of the proportional term in seconds
+	private static final double T2 = 32.0;  // time constant of the integral term; T2 = 4 * T1 means critical damping
+	private static final double MAX_DEVIATION = 0.002;
+	private final AudioRecordWrapper rec;
+	private final int channels;
+	private final int frames;
+	private final int warmupCycles;
+	private final double dt;
+	private final double alpha;
+	private final double kp;
+	private final double ki;
+	private final short blockShorts[];
+	private final float blockFloats[];
+	private final float src[];
+	private final float out[];
+	private double pos;
+	private double fill;
+	private double target;
+	private double integral;
+	private double ratio;
+	private int warmup;
+	private volatile float driftPpm = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param rec              input to be resampled
+	 * @param sampleRate
+	 * @param channels         number of input channels
+	 * @param framesPerBuffer  number of frames per block of the input ring, and per read
+	 */
+	DriftCompensator(AudioRecordWrapper rec, int sampleRate, int channels, int framesPerBuffer) {
+		this.rec = rec;
+		this.channels = channels;
+		this.frames = framesPerBuffer;
+		dt = (double) framesPerBuffer / sampleRate;
+		alpha = Math.min(1.0, dt / SMOOTHING_SECONDS);
+		kp = 1.0 / (sampleRate * T1);
+		ki = 1.0 / (sampleRate * T1 * T2);
+		warmupCycles = (int) Math.ceil(WARMUP_SECONDS / dt);
+		int size = channels * framesPerBuffer;
+		blockShorts = rec.usesFloatSamples() ? null : new short[size];
+		blockFloats = rec.usesFloatSamples() ? new float[size] : null;
+		src = new float[channels * (HISTORY + framesPerBuffer)];
+		out = rec.usesFloatSamples() ? null : new float[size];
+		reset();
+	}
+
+	/**
+	 * Forgets all state; to be invoked when the input starts
+	 */
+	void reset() {
+		Arrays.fill(src, 0.0f);
+		pos = frames;  // forces a block to be loaded on the first read
+		fill = -1;
+		target = 0;
+		integral = 0;
+		ratio = 1.0;
+		warmup = warmupCycles;
+		driftPpm = 0;
+	}
+
+	/**
+	 * Reads one buffer of resampled 16bit input
+	 *
+	 * @param buffer  input buffer
+	 * @return true if input was available, false otherwise
+	 */
+	boolean read(short buffer[]) {
+		if (!render(out)) return false;
+		for (int i = 0; i < out.length; i++) {
+			float x = out[i] * 32768.0f;  // inverse of the conversion in load(), so that a ratio of 1 is lossless
+			buffer[i] = (short) (x >= 32767.0f ? Short.MAX_VALUE : x <= -32768.0f ? Short.MIN_VALUE : x);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads one buffer of resampled float input
+	 *
+	 * @param buffer  input buffer
+	 * @return true if input was available, false otherwise
+	 */
+	boolean read(float buffer[]) {
+		return render(buffer);
+	}
+
+	/**
+	 * @return current deviation of the input resampling ratio from 1, in parts per million; positive values mean that
+	 *             the input clock runs fast relative to the output clock
+	 */
+	float getDriftPpm() {
+		return driftPpm;
+	}
+
+	private boolean render(float dst[]) {
+		int needed = (int) ((pos + ratio * (frames - 1)) / frames);
+		if (rec.available() < needed) return false;
+		adjust();
+		for (int i = 0; i < frames; i++) {
+			while (pos >= frames) {
+				load();
+				pos -= frames;
+			}
+			int k = (int) pos;
+			float t = (float) (pos - k);
+			int j = (k + HISTORY - 3) * channels;  // interpolates between frames k - 2 and k - 1
+			for (int c = 0; c < channels; c++, j++) {
+				float y0 = src[j], y1 = src[j + channels], y2 = src[j + 2 * channels], y3 = src[j + 3 * channels];
+				float c1 = 0.5f * (y2 - y0);
+				float c2 = y0 - 2.5f * y1 + 2.0f * y2 - 0.5f * y3;
+				float c3 = 0.5f * (y3 - y0) + 1.5f * (y1 - y2);
+				dst[i * channels + c] = ((c3 * t + c2) * t + c1) * t + y1;
+			}
+			pos += ratio;
+		}
+		return true;
+	}
+
+	// Moves the tail of the current block into the history and appends the next block; the caller has made sure that
+	// a block is available, but if the input thread has reset the ring in the meantime, we fall back to silence.
+	private void load() {
+		System.arraycopy(src, frames * channels, src, 0, HISTORY * channels);
+		int offset = HISTORY * channels;
+		if (blockFloats != null) {
+			if (!rec.poll(blockFloats)) Arrays.fill(blockFloats, 0.0f);
+			System.arraycopy(blockFloats, 0, src, offset, blockFloats.length);
+		} else {
+			if (!rec.poll(blockShorts)) Arrays.fill(blockShorts, (short) 0);
+			for (int i = 0; i < blockShorts.length; i++) {
+				src[offset + i] = blockShorts[i] * (1.0f / 32768.0f);
+			}
+		}
+	}
+
+	// Updates the resampling ratio; a fill level above the target means that the input runs fast, so that we need to
+	// consume more than one input frame per output frame.
+	private void adjust() {
+		double level = rec.available() * frames + Math.max(0, frames - pos);
+		fill = (fill < 0) ? level : fill + alpha * (level - fill);
+		if (warmup > 0) {
+			warmup--;
+			target = fill;
+			return;
+		}
+		double err = fill - target;
+		double i = integral + err * dt;
+		double r = 1.0 + kp * err + ki * i;
+		if (r > 1.0 + MAX_DEVIATION) {
+			r = 1.0 + MAX_DEVIATION;  // no integration while saturated
+		} else if (r < 1.0 - MAX_DEVIATION) {
+			r = 1.0 - MAX_DEVIATION;
+		} else {
+			integral = i;
+		}
+		ratio = r;
+		driftPpm = (float) ((r - 1.0) * 1e6);
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+/**
+ *
+ * FFT is a plain in-place radix-2 complex fast Fourier transform with precomputed twiddle factors, so that transforms
+ * don't allocate.  Instances are immutable and may be shared between threads.
+ *
+ */
+final class FFT {
+
+	private final int size;
+	private final float cos[];
+	private final float sin[];
+	private final int reversed[];
+
+	/**
+	 * Constructor
+	 *
+	 * @param size  size of the transform; must be a power of two
+	 */
+	FFT(int size) {
+		if (size < 2 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+		}
+		this.size = size;
+		cos = new float[size / 2];
+		sin = new float[size / 2];
+		for (int i = 0; i < size / 2; i++) {
+			double phi = -2 * Math.PI * i / size;
+			cos[i] = (float) Math.cos(phi);
+			sin[i] = (float) Math.sin(phi);
+		}
+		reversed = new int[size];
+		int bits = Integer.numberOfTrailingZeros(size);
+		for (int i = 0; i < size; i++) {
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * @return size of the transform
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Transforms in place; the inverse transform is scaled by 1/size, so that it undoes the forward transform
+	 *
+	 * @param re       real parts
+	 * @param im       imaginary parts
+	 * @param inverse  true for the inverse transform
+	 */
+	void transform(float re[], float im[], boolean inverse) {
+		for (int i = 0; i < size; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		float sign = inverse ? -1.0f : 1.0f;
+		for (int len = 2; len <= size; len <<= 1) {
+			int half = len >> 1;
+			int step = size / len;
+			for (int i = 0; i < size; i += len) {
+				for (int k = 0; k < half; k++) {
+					float wr = cos[k * step], wi = sign * sin[k * step];
+					int a = i + k, b = a + half;
+					float xr = re[b] * wr - im[b] * wi;
+					float xi = re[b] * wi + im[b] * wr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+				}
+			}
+		}
+		if (inverse) {
+			float q = 1.0f / size;
+			for (int i = 0; i < size; i++) {
+				re[i] *= q;
+				im[i] *= q;
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * FlacReader decodes 16bit FLAC files, such as those written by {@link FlacWriter}, into interleaved samples, one
+ * block at a time.  It handles all subframe types (constant, verbatim, fixed, and LPC), wasted bits, stereo
+ * decorrelation, and both Rice coding methods, so that it also decodes 16bit files from other encoders.  Checksums
+ * are not verified.
+ *
+ */
+public class FlacReader {
+
+	private final File path;
+	private InputStream in;
+	private final int sampleRate;
+	private final int channels;
+	private final long frames;
+	private final int maxBlockSize;
+	private final int block[][];
+	private final short samples[];  // decoded block, interleaved
+	private final int coefs[] = new int[32];
+	private int sampleCount = 0;
+	private int samplePos = 0;
+	private long bitBuffer = 0;
+	private int bitCount = 0;
+	private long firstFrameOffset;
+	private long offset = 0;  // bytes read so far
+
+	/**
+	 * Constructor; opens the file and reads the stream info
+	 *
+	 * @param file  FLAC file to read from
+	 * @throws IOException  if the file cannot be opened, or if it isn't a 16bit FLAC file
+	 */
+	public FlacReader(File file) throws IOException {
+		path = file;
+		in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			if (readBits(32) != 0x664c6143) {  // "fLaC"
+				throw new IOException("not a FLAC file: " + file);
+			}
+			int sr = 0, ch = 0, bps = 0, maxBlock = 0;
+			long total = 0;
+			boolean last;
+			do {
+				last = readBits(1) != 0;
+				int type = (int) readBits(7);
+				int length = (int) readBits(24);
+				if (type == 0) {  // STREAMINFO
+					readBits(16);
+					maxBlock = (int) readBits(16);
+					readBits(24);
+					readBits(24);
+					sr = (int) readBits(20);
+					ch = (int) readBits(3) + 1;
+					bps = (int) readBits(5) + 1;
+					total = readBits(36);
+					skipBytes(length - 18);
+				} else {
+					skipBytes(length);
+				}
+			} while (!last);
+			if (sr <= 0 || bps != 16 || maxBlock <= 0) {
+				throw new IOException("unsupported FLAC format (16bit only): " + file);
+			}
+			sampleRate = sr;
+			channels = ch;
+			frames = total;
+			maxBlockSize = maxBlock;
+			block = new int[channels][maxBlock];
+			samples = new short[channels * maxBlock];
+			firstFrameOffset = offset;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return number of frames according to the stream info, 0 if unknown
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Reads interleaved 16bit samples
+	 *
+	 * @param buffer  sample buffer
+	 * @param off     offset of the first sample
+	 * @param size    number of samples to read
+	 * @return number of samples read, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(short buffer[], int off, int size) throws IOException {
+		int n = 0;
+		while (n < size) {
+			if (samplePos == sampleCount && !decodeFrame()) break;
+			int k = Math.min(size - n, sampleCount - samplePos);
+			System.arraycopy(samples, samplePos, buffer, off + n, k);
+			samplePos += k;
+			n += k;
+		}
+		return (n == 0 && size > 0) ? -1 : n;
+	}
+
+	/**
+	 * Reads interleaved float samples
+	 *
+	 * @param buffer  sample buffer; values range from -1 to 1
+	 * @param off     offset of the first sample
+	 * @param size    number of samples to read
+	 * @return number of samples read, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(float buffer[], int off, int size) throws IOException {
+		int n = 0;
+		while (n < size) {
+			if (samplePos == sampleCount && !decodeFrame()) break;
+			int k = Math.min(size - n, sampleCount - samplePos);
+			for (int i = 0; i < k; i++) buffer[off + n + i] = samples[samplePos + i] * (1.0f / 32768.0f);
+			samplePos += k;
+			n += k;
+		}
+		return (n == 0 && size > 0) ? -1 : n;
+	}
+
+	/**
+	 * Moves to the beginning of the sample data
+	 *
+	 * @throws IOException
+	 */
+	public void rewind() throws IOException {
+		in.close();
+		in = new BufferedInputStream(new FileInputStream(path), 65536);
+		offset = 0;
+		bitBuffer = 0;
+		bitCount = 0;
+		skipBytes(firstFrameOffset);
+		sampleCount = 0;
+		samplePos = 0;
+	}
+
+	/**
+	 * Closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	// Decodes the next frame into the sample buffer; returns false at the end of the file.
+	private boolean decodeFrame() throws IOException {
+		int sync;
+		try {
+			sync = (int) readBits(14);
+		} catch (EOFException e) {
+			return false;
+		}
+		if (sync != 0x3ffe) {
+			throw new IOException("lost sync in FLAC file: " + path);
+		}
+		readBits(2);
+		int sizeCode = (int) readBits(4);
+		int rateCode = (int) readBits(4);
+		int assignment = (int) readBits(4);
+		readBits(4);  // sample size and reserved bit; 16 bits according to the stream info
+		int lead = (int) readBits(8);  // frame or sample number, UTF-8 coded
+		for (int mask = 0x80; (lead & mask) != 0 && mask > 1; mask >>= 1) {
+			if (mask != 0x80) readBits(8);
+		}
+		int n;
+		if (sizeCode == 1) {
+			n = 192;
+		} else if (sizeCode >= 2 && sizeCode <= 5) {
+			n = 576 << (sizeCode - 2);
+		} else if (sizeCode == 6) {
+			n = (int) readBits(8) + 1;
+		} else if (sizeCode == 7) {
+			n = (int) readBits(16) + 1;
+		} else if (sizeCode >= 8) {
+			n = 256 << (sizeCode - 8);
+		} else {
+			throw new IOException("bad block size in FLAC file: " + path);
+		}
+		if (rateCode == 12) readBits(8);
+		if (rateCode == 13 || rateCode == 14) readBits(16);
+		readBits(8);  // CRC-8
+		if (n > maxBlockSize) {
+			throw new IOException("block larger than announced in FLAC file: " + path);
+		}
+		int nch = (assignment < 8) ? assignment + 1 : 2;
+		if (nch != channels) {
+			throw new IOException("bad channel assignment in FLAC file: " + path);
+		}
+		for (int c = 0; c < nch; c++) {
+			boolean sideChannel = (assignment == 8 && c == 1) || (assignment == 9 && c == 0) || (assignment == 10 && c == 1);
+			decodeSubframe(block[c], n, sideChannel ? 17 : 16);
+		}
+		bitCount -= bitCount % 8;  // zero padding
+		readBits(16);  // CRC-16
+		int x[] = block[0], y[] = (nch > 1) ? block[1] : null;
+		for (int i = 0; i < n; i++) {
+			switch (assignment) {
+			case 8:  // left/side
+				y[i] = x[i] - y[i];
+				break;
+			case 9:  // side/right
+				x[i] += y[i];
+				break;
+			case 10: {  // mid/side
+				int side = y[i];
+				int mid = (x[i] << 1) | (side & 1);
+				x[i] = (mid + side) >> 1;
+				y[i] = (mid - side) >> 1;
+				break;
+			}
+			default:
+				break;
+			}
+		}
+		for (int i = 0, k = 0; i < n; i++) {
+			for (int c = 0; c < nch; c++) samples[k++] = (short) block[c][i];
+		}
+		sampleCount = n * nch;
+		samplePos = 0;
+		return true;
+	}
+
+	private void decodeSubframe(int x[], int n, int bps) throws IOException {
+		readBits(1);
+		int type = (int) readBits(6);
+		int wasted = 0;
+		if (readBits(1) != 0) {
+			wasted = 1;
+			while (readBits(1) == 0) wasted++;
+			bps -= wasted;
+		}
+		if (type == 0) {  // CONSTANT
+			int v = readSigned(bps);
+			for (int i = 0; i < n; i++) x[i] = v;
+		} else if (type == 1) {  // VERBATIM
+			for (int i = 0; i < n; i++) x[i] = readSigned(bps);
+		} else if (type >= 8 && type <= 12) {  // FIXED
+			int order = type - 8;
+			for (int i = 0; i < order; i++) x[i] = readSigned(bps);
+			decodeResidual(x, n, order);
+			for (int i = order; i < n; i++) {
+				switch (order) {
+				case 1:
+					x[i] += x[i - 1];
+					break;
+				case 2:
+					x[i] += 2 * x[i - 1] - x[i - 2];
+					break;
+				case 3:
+					x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+					break;
+				case 4:
+					x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+					break;
+				default:
+					break;
+				}
+			}
+		} else if (type >= 32) {  // LPC
+			int order = type - 31;
+			for (int i = 0; i < order; i++) x[i] = readSigned(bps);
+			int precision = (int) readBits(4) + 1;
+			int shift = readSigned(5);
+			for (int i = 0; i < order; i++) coefs[i] = readSigned(precision);
+			decodeResidual(x, n, order);
+			for (int i = order; i < n; i++) {
+				long sum = 0;
+				for (int j = 0; j < order; j++) sum += (long) coefs[j] * x[i - 1 - j];
+				x[i] += (int) (sum >> shift);
+			}
+		} else {
+			throw new IOException("reserved subframe type in FLAC file: " + path);
+		}
+		if (wasted > 0) {
+			for (int i = 0; i < n; i++) x[i] <<= wasted;
+		}
+	}
+
+	private void decodeResidual(int x[], int n, int order) throws IOException {
+		int method = (int) readBits(2);
+		if (method > 1) {
+			throw new IOException("reserved residual coding in FLAC file: " + path);
+		}
+		int paramBits = (method == 0) ? 4 : 5;
+		int escape = (1 << paramBits) - 1;
+		int partitionOrder = (int) readBits(4);
+		int partitions = 1 << partitionOrder;
+		int i = order;
+		for (int p = 0; p < partitions; p++) {
+			int end = (p + 1) * (n >> partitionOrder);
+			int k = (int) readBits(paramBits);
+			if (k == escape) {
+				int raw = (int) readBits(5);
+				for (; i < end; i++) x[i] = (raw > 0) ? readSigned(raw) : 0;
+			} else {
+				for (; i < end; i++) {
+					int q = 0;
+					while (readBits(1) == 0) q++;
+					int u = (q << k) | (int) readBits(k);
+					x[i] = (u >>> 1) ^ -(u & 1);
+				}
+			}
+		}
+	}
+
+	private int readSigned(int n) throws IOException {
+		long v = readBits(n);
+		return (int) (v << (64 - n) >> (64 - n));
+	}
+
+	private long readBits(int n) throws IOException {
+		if (n == 0) return 0;
+		while (bitCount < n) {
+			int b = in.read();
+			if (b < 0) throw new EOFException();
+			offset++;
+			bitBuffer = (bitBuffer << 8) | b;
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (bitBuffer >>> bitCount) & ((1L << n) - 1);
+	}
+
+	private void skipBytes(long n) throws IOException {
+		for (long i = 0; i < n; i++) {
+			if (in.read() < 0) throw new EOFException();
+			offset++;
+		}
+	}
+}
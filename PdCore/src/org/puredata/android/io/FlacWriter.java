@@ -0,0 +1,517 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * FlacWriter is a streaming lossless encoder that writes interleaved 16bit samples to a FLAC file, one block of 4096
+ * frames at a time, so that it can keep up with a recording as it comes in.  Each channel of a block is coded with
+ * the best of the fixed linear predictors of FLAC (orders 0 to 4), followed by partitioned Rice coding of the
+ * residual; stereo blocks use left/side, right/side, or mid/side decorrelation when that pays off.  The cost per block
+ * is a handful of passes over the samples, regardless of the content.  Silence comes out as constant subframes, and
+ * noise falls back to verbatim subframes.
+ *
+ * The output is a regular FLAC stream that other decoders can play, too; see {@link FlacReader} for decoding.  The
+ * total length and frame sizes in the stream info are fixed up when the file is closed; the MD5 signature is left
+ * blank.
+ *
+ */
+public class FlacWriter {
+
+	/**
+	 * Number of frames per block
+	 */
+	public static final int BLOCK_SIZE = 4096;
+	private static final int STREAMINFO_OFFSET = 8;  // after "fLaC" and the metadata block header
+	private static final int MAX_ORDER = 4;
+	private static final int MAX_PARTITION_ORDER = 6;
+	private static final int MAX_RICE = 14;  // 4-bit Rice parameters; 15 is the escape code
+	private static final int OUTPUT_BYTES = 65536;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer output;
+	private final int sampleRate;
+	private final int channels;
+	private final int block[][];  // samples of the current block per channel
+	private int blockFill = 0;  // frames in the current block
+	private int channelIndex = 0;  // channel of the next sample; writes may end in the middle of a frame
+	private long frameNumber = 0;
+	private long framesWritten = 0;
+	private int minFrameBytes = Integer.MAX_VALUE;
+	private int maxFrameBytes = 0;
+	private final BitWriter bits;
+	private final int mid[] = new int[BLOCK_SIZE];
+	private final int side[] = new int[BLOCK_SIZE];
+	private final int residual[] = new int[BLOCK_SIZE];
+	private final long orderSums[] = new long[MAX_ORDER + 1];
+	private final long partitionSums[] = new long[1 << MAX_PARTITION_ORDER];
+	private final long mergedSums[] = new long[1 << MAX_PARTITION_ORDER];
+	private final int riceParams[] = new int[1 << MAX_PARTITION_ORDER];
+	private final int bestParams[] = new int[1 << MAX_PARTITION_ORDER];
+
+	/**
+	 * Constructor; creates the file, or truncates it if it already exists
+	 *
+	 * @param file        FLAC file to write to
+	 * @param sampleRate  sample rate in Hz
+	 * @param channels    number of channels, from 1 to 8
+	 * @throws IOException  if the file cannot be written
+	 */
+	public FlacWriter(File file, int sampleRate, int channels) throws IOException {
+		if (sampleRate <= 0 || sampleRate >= (1 << 20) || channels <= 0 || channels > 8) {
+			throw new IllegalArgumentException("bad FLAC parameters; sr: " + sampleRate + ", ch: " + channels);
+		}
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		block = new int[channels][BLOCK_SIZE];
+		bits = new BitWriter(channels * BLOCK_SIZE * 17 / 8 + 64);  // worst case: verbatim side channel
+		output = ByteBuffer.allocateDirect(OUTPUT_BYTES);
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel = this.file.getChannel();
+		output.put((byte) 'f').put((byte) 'L').put((byte) 'a').put((byte) 'C');
+		output.put((byte) 0x80).put((byte) 0).put((byte) 0).put((byte) 34);  // last metadata block, STREAMINFO, 34 bytes
+		writeStreamInfo(output);
+	}
+
+	/**
+	 * @return number of frames written so far, including frames of an incomplete block
+	 */
+	public long getFrames() {
+		return framesWritten + blockFill;
+	}
+
+	/**
+	 * @return sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Writes interleaved 16bit samples; blocks are encoded as soon as they are complete
+	 *
+	 * @param samples  sample buffer
+	 * @param offset   offset of the first sample
+	 * @param size     number of samples; writes may end in the middle of a frame, to be continued by the next write
+	 * @throws IOException
+	 */
+	public void write(short samples[], int offset, int size) throws IOException {
+		int end = offset + size;
+		for (int i = offset; i < end; i++) {
+			put(samples[i]);
+		}
+	}
+
+	/**
+	 * Writes interleaved float samples, converted to 16bit
+	 *
+	 * @param samples  sample buffer; values range from -1 to 1
+	 * @param offset   offset of the first sample
+	 * @param size     number of samples
+	 * @throws IOException
+	 */
+	public void write(float samples[], int offset, int size) throws IOException {
+		int end = offset + size;
+		for (int i = offset; i < end; i++) {
+			put(WavWriter.toShort(samples[i]));
+		}
+	}
+
+	/**
+	 * Encodes the last, incomplete block, fixes up the stream info, and closes the file; a trailing incomplete frame is
+	 * dropped
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (blockFill > 0) encodeBlock();
+			flush();
+			output.clear();
+			writeStreamInfo(output);
+			output.flip();
+			long position = STREAMINFO_OFFSET;
+			while (output.hasRemaining()) position += channel.write(output, position);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void put(int sample) throws IOException {
+		block[channelIndex][blockFill] = sample;
+		if (++channelIndex < channels) return;
+		channelIndex = 0;
+		if (++blockFill == BLOCK_SIZE) encodeBlock();
+	}
+
+	private void flush() throws IOException {
+		output.flip();
+		while (output.hasRemaining()) channel.write(output);
+		output.clear();
+	}
+
+	private void writeStreamInfo(ByteBuffer buffer) {
+		boolean empty = maxFrameBytes == 0;
+		int blockSize = (frameNumber == 1) ? (int) framesWritten : BLOCK_SIZE;  // a short recording is a single block
+		long total = framesWritten;
+		buffer.putShort((short) blockSize);
+		buffer.putShort((short) blockSize);
+		put24(buffer, empty ? 0 : minFrameBytes);
+		put24(buffer, empty ? 0 : maxFrameBytes);
+		// 20 bits sample rate, 3 bits channels - 1, 5 bits bits per sample - 1, 36 bits total samples
+		buffer.put((byte) (sampleRate >> 12));
+		buffer.put((byte) (sampleRate >> 4));
+		buffer.put((byte) (((sampleRate & 0x0f) << 4) | ((channels - 1) << 1) | (15 >> 4)));
+		buffer.put((byte) (((15 & 0x0f) << 4) | (int) ((total >> 32) & 0x0f)));
+		buffer.putInt((int) total);
+		for (int i = 0; i < 16; i++) buffer.put((byte) 0);  // MD5 unknown
+	}
+
+	private static void put24(ByteBuffer buffer, int x) {
+		buffer.put((byte) (x >> 16)).put((byte) (x >> 8)).put((byte) x);
+	}
+
+	private void encodeBlock() throws IOException {
+		int n = blockFill;
+		bits.reset();
+		int assignment = channels - 1;
+		if (channels == 2) {
+			for (int i = 0; i < n; i++) {
+				int l = block[0][i], r = block[1][i];
+				mid[i] = (l + r) >> 1;
+				side[i] = l - r;
+			}
+			long left = estimate(block[0], n, 16), right = estimate(block[1], n, 16);
+			long m = estimate(mid, n, 16), s = estimate(side, n, 17);
+			long best = left + right;
+			if (left + s < best) {
+				best = left + s;
+				assignment = 8;  // left/side
+			}
+			if (right + s < best) {
+				best = right + s;
+				assignment = 9;  // side/right
+			}
+			if (m + s < best) {
+				assignment = 10;  // mid/side
+			}
+		}
+		writeFrameHeader(n, assignment);
+		switch (assignment) {
+		case 8:
+			writeSubframe(block[0], n, 16);
+			writeSubframe(side, n, 17);
+			break;
+		case 9:
+			writeSubframe(side, n, 17);
+			writeSubframe(block[1], n, 16);
+			break;
+		case 10:
+			writeSubframe(mid, n, 16);
+			writeSubframe(side, n, 17);
+			break;
+		default:
+			for (int c = 0; c < channels; c++) writeSubframe(block[c], n, 16);
+			break;
+		}
+		bits.alignToByte();
+		bits.putBits(crc16(bits.bytes(), 0, bits.byteCount()), 16);
+		int size = bits.byteCount();
+		minFrameBytes = Math.min(minFrameBytes, size);
+		maxFrameBytes = Math.max(maxFrameBytes, size);
+		if (output.remaining() < size) flush();
+		if (size > output.capacity()) {
+			channel.write(ByteBuffer.wrap(bits.bytes(), 0, size));
+		} else {
+			output.put(bits.bytes(), 0, size);
+		}
+		framesWritten += n;
+		frameNumber++;
+		blockFill = 0;
+	}
+
+	private void writeFrameHeader(int n, int assignment) {
+		int sizeCode = (n == BLOCK_SIZE) ? 12 : (n <= 256) ? 6 : 7;  // 12: 4096; 6 and 7: size - 1 follows
+		bits.putBits(0x3ffe, 14);  // sync code
+		bits.putBits(0, 1);
+		bits.putBits(0, 1);  // fixed block size
+		bits.putBits(sizeCode, 4);
+		bits.putBits(0, 4);  // sample rate as in the stream info
+		bits.putBits(assignment, 4);
+		bits.putBits(4, 3);  // 16 bits per sample
+		bits.putBits(0, 1);
+		bits.putUtf8(frameNumber);
+		if (sizeCode == 6) bits.putBits(n - 1, 8);
+		if (sizeCode == 7) bits.putBits(n - 1, 16);
+		bits.putBits(crc8(bits.bytes(), 0, bits.byteCount()), 8);
+	}
+
+	// Estimated number of bits of the best fixed predictor, with a single Rice partition, or of a verbatim subframe.
+	private long estimate(int x[], int n, int bps) {
+		fixedSums(x, n, orderSums);
+		long best = (long) n * bps;
+		for (int order = 0; order <= MAX_ORDER && order < n; order++) {
+			best = Math.min(best, riceBits(orderSums[order], n - order));
+		}
+		return best;
+	}
+
+	// Sums of the zigzag-coded residuals of the fixed predictors, over the samples that all orders have in common.
+	private static void fixedSums(int x[], int n, long sums[]) {
+		for (int i = 0; i <= MAX_ORDER; i++) sums[i] = 0;
+		for (int i = MAX_ORDER; i < n; i++) {
+			int e0 = x[i];
+			int e1 = e0 - x[i - 1];
+			int e2 = e1 - (x[i - 1] - x[i - 2]);
+			int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+			int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+			sums[0] += zigzag(e0);
+			sums[1] += zigzag(e1);
+			sums[2] += zigzag(e2);
+			sums[3] += zigzag(e3);
+			sums[4] += zigzag(e4);
+		}
+	}
+
+	private void writeSubframe(int x[], int n, int bps) {
+		boolean constant = true;
+		for (int i = 1; i < n && constant; i++) constant = (x[i] == x[0]);
+		if (constant) {
+			bits.putBits(0, 8);  // CONSTANT
+			bits.putSigned(x[0], bps);
+			return;
+		}
+		int order = 0;
+		if (n > MAX_ORDER) {
+			fixedSums(x, n, orderSums);
+			for (int o = 1; o <= MAX_ORDER; o++) {
+				if (orderSums[o] < orderSums[order]) order = o;
+			}
+		}
+		computeResidual(x, n, order);
+		int partitionOrder = choosePartitions(n, order);
+		long cost = 8 + (long) order * bps + 6;
+		int partitions = 1 << partitionOrder;
+		for (int p = 0; p < partitions; p++) {
+			cost += 4 + riceBits(partitionSums[p], partitionSize(n, partitionOrder, order, p), bestParams[p]);
+		}
+		if (cost >= 8 + (long) n * bps) {
+			bits.putBits(1 << 1, 8);  // VERBATIM
+			for (int i = 0; i < n; i++) bits.putSigned(x[i], bps);
+			return;
+		}
+		bits.putBits((8 | order) << 1, 8);  // FIXED
+		for (int i = 0; i < order; i++) bits.putSigned(x[i], bps);
+		bits.putBits(0, 2);  // Rice coding with 4-bit parameters
+		bits.putBits(partitionOrder, 4);
+		int start = order;
+		for (int p = 0; p < partitions; p++) {
+			int k = bestParams[p];
+			int end = (p + 1) * (n >> partitionOrder);
+			bits.putBits(k, 4);
+			for (int i = start; i < end; i++) bits.putRice(zigzag(residual[i]), k);
+			start = end;
+		}
+	}
+
+	private void computeResidual(int x[], int n, int order) {
+		for (int i = order; i < n; i++) {
+			switch (order) {
+			case 0:
+				residual[i] = x[i];
+				break;
+			case 1:
+				residual[i] = x[i] - x[i - 1];
+				break;
+			case 2:
+				residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+				break;
+			case 3:
+				residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+				break;
+			default:
+				residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+				break;
+			}
+		}
+	}
+
+	// Picks the partition order with the lowest estimated cost; leaves the sums and parameters of the chosen
+	// partitions in partitionSums and bestParams.
+	private int choosePartitions(int n, int order) {
+		int maxOrder = 0;
+		while (maxOrder < MAX_PARTITION_ORDER && (n & ((2 << maxOrder) - 1)) == 0 && (n >> (maxOrder + 1)) > order) {
+			maxOrder++;
+		}
+		int partitions = 1 << maxOrder;
+		int start = order;
+		for (int p = 0; p < partitions; p++) {
+			int end = (p + 1) * (n >> maxOrder);
+			long sum = 0;
+			for (int i = start; i < end; i++) sum += zigzag(residual[i]);
+			partitionSums[p] = sum;
+			start = end;
+		}
+		long bestCost = Long.MAX_VALUE;
+		int bestOrder = maxOrder;
+		long sums[] = mergedSums;
+		System.arraycopy(partitionSums, 0, sums, 0, partitions);
+		for (int po = maxOrder; po >= 0; po--) {  // merges pairs of partitions on the way down
+			int np = 1 << po;
+			if (po < maxOrder) {
+				for (int p = 0; p < np; p++) sums[p] = sums[2 * p] + sums[2 * p + 1];
+			}
+			long cost = 0;
+			for (int p = 0; p < np; p++) {
+				int size = partitionSize(n, po, order, p);
+				riceParams[p] = riceParam(sums[p], size);
+				cost += 4 + riceBits(sums[p], size, riceParams[p]);
+			}
+			if (cost <= bestCost) {
+				bestCost = cost;
+				bestOrder = po;
+				System.arraycopy(riceParams, 0, bestParams, 0, np);
+				System.arraycopy(sums, 0, partitionSums, 0, np);
+			}
+		}
+		return bestOrder;
+	}
+
+	private static int partitionSize(int n, int partitionOrder, int order, int p) {
+		return (n >> partitionOrder) - ((p == 0) ? order : 0);
+	}
+
+	private static long riceBits(long sum, int size) {
+		return riceBits(sum, size, riceParam(sum, size));
+	}
+
+	// Estimate; exact except for the rounding of the quotients.
+	private static long riceBits(long sum, int size, int k) {
+		return (long) size * (k + 1) + (sum >> k);
+	}
+
+	private static int riceParam(long sum, int size) {
+		if (size <= 0) return 0;
+		int k = 0;
+		while (k < MAX_RICE && ((long) size << (k + 1)) < sum) k++;
+		return k;
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	/**
+	 * CRC-8 of frame headers (polynomial x^8 + x^2 + x + 1)
+	 */
+	static int crc8(byte data[], int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= data[i] & 0xff;
+			for (int j = 0; j < 8; j++) {
+				crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+			}
+		}
+		return crc;
+	}
+
+	/**
+	 * CRC-16 of frames (polynomial x^16 + x^15 + x^2 + 1)
+	 */
+	static int crc16(byte data[], int offset, int length) {
+		int crc = 0;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= (data[i] & 0xff) << 8;
+			for (int j = 0; j < 8; j++) {
+				crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+			}
+		}
+		return crc;
+	}
+
+	/**
+	 * Bit writer over a preallocated byte array; most significant bit first
+	 */
+	private static final class BitWriter {
+
+		private final byte buf[];
+		private int count = 0;  // bytes
+		private long acc = 0;
+		private int accBits = 0;
+
+		BitWriter(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void reset() {
+			count = 0;
+			acc = 0;
+			accBits = 0;
+		}
+
+		void putBits(int value, int n) {
+			acc = (acc << n) | (value & ((1L << n) - 1));
+			accBits += n;
+			while (accBits >= 8) {
+				accBits -= 8;
+				buf[count++] = (byte) (acc >> accBits);
+			}
+		}
+
+		void putSigned(int value, int n) {
+			putBits(value, n);
+		}
+
+		void putRice(int u, int k) {
+			int q = u >>> k;
+			while (q >= 32) {
+				putBits(0, 32);
+				q -= 32;
+			}
+			putBits(1, q + 1);  // q zeros, then a one
+			if (k > 0) putBits(u, k);
+		}
+
+		void putUtf8(long v) {
+			if (v < 0x80) {
+				putBits((int) v, 8);
+				return;
+			}
+			int extra = (v < 0x800) ? 1 : (v < 0x10000) ? 2 : (v < 0x200000) ? 3 : (v < 0x4000000) ? 4 : 5;
+			int lead = (0xff00 >> (extra + 1)) & 0xff;
+			putBits(lead | (int) (v >> (6 * extra)), 8);
+			for (int i = extra - 1; i >= 0; i--) putBits(0x80 | (int) ((v >> (6 * i)) & 0x3f), 8);
+		}
+
+		void alignToByte() {
+			if (accBits > 0) putBits(0, 8 - accBits);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+
+		int byteCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * LatencyCalibrator measures the round-trip latency of the audio device, i.e., the time it takes for a sample that
+ * the audio thread writes to come back through the microphone, in frames of the audio thread.  It plays a series of
+ * maximum length sequence (MLS) bursts through an {@link AudioWrapper}, records the input, and locates each burst in
+ * the input by cross-correlation.  The spread of the measurements tells how stable the latency is.
+ *
+ * The measurement runs one buffer of the given number of ticks per callback, with one buffer queued up in the device
+ * and the default number of input blocks, same as {@link PdAudio#initAudio(int, int, int, int, boolean)}, so that
+ * results can be used to align recordings with the input of Pure Data.  The microphone needs to pick up the speaker,
+ * and no other audio may be running while the measurement is in progress.
+ *
+ */
+public final class LatencyCalibrator {
+
+	/**
+	 * Default number of bursts per measurement
+	 */
+	public static final int DEFAULT_BURSTS = 8;
+	private static final int TICK = 64;
+	private static final int MLS_ORDER = 12;
+	private static final int MLS_TAPS = (1 << 11) | (1 << 5) | (1 << 3) | 1;  // x^12 + x^6 + x^4 + x + 1
+	private static final float AMPLITUDE = 0.5f;
+	private static final float WARMUP_SECONDS = 0.5f;
+	private static final float PERIOD_SECONDS = 0.5f;  // upper bound for detectable latencies
+	private static final float MIN_PEAK_RATIO = 6.0f;  // minimum ratio of correlation peak to RMS of correlation
+
+	private LatencyCalibrator() {
+		// do nothing
+	}
+
+	/**
+	 * Result of a latency measurement
+	 */
+	public static final class Result {
+
+		private final int sampleRate;
+		private final int ticksPerBuffer;
+		private final float meanFrames;
+		private final float stdDevFrames;
+		private final int bursts;
+
+		Result(int sampleRate, int ticksPerBuffer, float meanFrames, float stdDevFrames, int bursts) {
+			this.sampleRate = sampleRate;
+			this.ticksPerBuffer = ticksPerBuffer;
+			this.meanFrames = meanFrames;
+			this.stdDevFrames = stdDevFrames;
+			this.bursts = bursts;
+		}
+
+		/**
+		 * @return sample rate of the measurement
+		 */
+		public int getSampleRate() {
+			return sampleRate;
+		}
+
+		/**
+		 * @return number of ticks per buffer of the measurement
+		 */
+		public int getTicksPerBuffer() {
+			return ticksPerBuffer;
+		}
+
+		/**
+		 * @return mean round-trip latency in frames
+		 */
+		public float getLatencyFrames() {
+			return meanFrames;
+		}
+
+		/**
+		 * @return mean round-trip latency in milliseconds
+		 */
+		public float getLatencyMillis() {
+			return 1000.0f * meanFrames / sampleRate;
+		}
+
+		/**
+		 * @return standard deviation of the round-trip latency in milliseconds
+		 */
+		public float getStdDevMillis() {
+			return 1000.0f * stdDevFrames / sampleRate;
+		}
+
+		/**
+		 * @return number of bursts that were detected in the input
+		 */
+		public int getBursts() {
+			return bursts;
+		}
+
+		@Override
+		public String toString() {
+			return "latency: " + getLatencyMillis() + "ms (+/- " + getStdDevMillis() + "ms), sr: " + sampleRate +
+					", ticks: " + ticksPerBuffer + ", bursts: " + bursts;
+		}
+	}
+
+	/**
+	 * Measures the round-trip latency of the audio device; blocks for a few seconds
+	 *
+	 * @param sampleRate
+	 * @param ticksPerBuffer  number of ticks per buffer
+	 * @return result of the measurement
+	 * @throws IOException  if the device does not support the parameters, or if the bursts cannot be detected in the input
+	 */
+	public static Result measure(int sampleRate, int ticksPerBuffer) throws IOException {
+		return measure(new AudioTrackBackend(AudioRecordWrapper.DEFAULT_INPUT_BLOCKS, false),
+				sampleRate, ticksPerBuffer, DEFAULT_BURSTS);
+	}
+
+	/**
+	 * Measures the round-trip latency of the given backend, with one input channel and one output channel; blocks until
+	 * all bursts have been played
+	 *
+	 * @param backend         backend to measure; released when the measurement is done
+	 * @param sampleRate
+	 * @param ticksPerBuffer  number of ticks per buffer
+	 * @param bursts          number of bursts to play; more bursts give a better estimate of the variance
+	 * @return result of the measurement
+	 * @throws IOException  if the backend does not support the parameters, or if the bursts cannot be detected in the input
+	 */
+	public static Result measure(AudioBackend backend, int sampleRate, int ticksPerBuffer, int bursts) throws IOException {
+		if (sampleRate <= 0 || ticksPerBuffer <= 0 || bursts <= 0) {
+			backend.release();
+			throw new IllegalArgumentException("bad calibration parameters: " + sampleRate + ", " + ticksPerBuffer + ", " + bursts);
+		}
+		final float mls[] = makeSequence();
+		final int period = Math.max((int) (PERIOD_SECONDS * sampleRate), 2 * mls.length);
+		final int warmup = (int) (WARMUP_SECONDS * sampleRate);
+		final int playFrames = bursts * period;
+		final float capture[] = new float[warmup + playFrames + period];
+		final int bufferSize = TICK * ticksPerBuffer;
+		final CountDownLatch done = new CountDownLatch(1);
+		AudioWrapper wrapper = new AudioWrapper(backend, sampleRate, 1, 1, bufferSize, true, new LatencyController(1)) {
+
+			private final float inFloat[] = new float[bufferSize];
+			private final float outFloat[] = new float[bufferSize];
+			private int frame = 0;
+
+			@Override
+			protected int process(short inBuffer[], short outBuffer[]) {
+				for (int i = 0; i < bufferSize; i++) inFloat[i] = inBuffer[i] * (1.0f / 32768.0f);
+				process(inFloat, outFloat);
+				for (int i = 0; i < bufferSize; i++) outBuffer[i] = (short) (outFloat[i] * 32767.0f);
+				return 0;
+			}
+
+			@Override
+			protected int process(float inBuffer[], float outBuffer[]) {
+				for (int i = 0; i < bufferSize; i++, frame++) {
+					int t = frame - warmup;
+					outBuffer[i] = (t >= 0 && t < playFrames && t % period < mls.length) ? AMPLITUDE * mls[t % period] : 0.0f;
+					if (frame < capture.length) capture[frame] = inBuffer[i];
+				}
+				if (frame >= capture.length) done.countDown();
+				return 0;
+			}
+		};
+		wrapper.start(null);
+		try {
+			long timeout = 2000L + 1000L * capture.length / sampleRate;
+			if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("latency calibration timed out");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("latency calibration interrupted");
+		} finally {
+			wrapper.release();
+		}
+		return analyze(capture, mls, sampleRate, ticksPerBuffer, bursts, warmup, period);
+	}
+
+	// Locates each burst in the captured input by cross-correlation in the frequency domain, with parabolic interpolation
+	// around the peak.
+	private static Result analyze(float capture[], float mls[], int sampleRate, int ticksPerBuffer, int bursts, int warmup,
+			int period) throws IOException {
+		int n = Integer.highestOneBit(period + mls.length - 1) << 1;
+		FFT fft = new FFT(n);
+		float seqRe[] = new float[n], seqIm[] = new float[n];
+		System.arraycopy(mls, 0, seqRe, 0, mls.length);
+		fft.transform(seqRe, seqIm, false);
+		float re[] = new float[n], im[] = new float[n];
+		int maxLag = period - mls.length;
+		double sum = 0, sumSq = 0;
+		int found = 0;
+		for (int b = 0; b < bursts; b++) {
+			int start = warmup + b * period;
+			int len = Math.min(n, capture.length - start);
+			Arrays.fill(re, 0.0f);
+			Arrays.fill(im, 0.0f);
+			System.arraycopy(capture, start, re, 0, len);
+			fft.transform(re, im, false);
+			for (int k = 0; k < n; k++) {  // multiply by the complex conjugate of the sequence spectrum
+				float r = re[k] * seqRe[k] + im[k] * seqIm[k];
+				float i = im[k] * seqRe[k] - re[k] * seqIm[k];
+				re[k] = r;
+				im[k] = i;
+			}
+			fft.transform(re, im, true);
+			int peak = 0;
+			double energy = 0;
+			for (int lag = 0; lag <= maxLag; lag++) {
+				float v = Math.abs(re[lag]);  // the signal may come back with inverted polarity
+				energy += v * v;
+				if (v > Math.abs(re[peak])) peak = lag;
+			}
+			float height = Math.abs(re[peak]);
+			if (height < MIN_PEAK_RATIO * Math.sqrt(energy / (maxLag + 1))) continue;  // no clear peak; nothing heard
+			double lag = peak;
+			if (peak > 0 && peak < maxLag) {
+				float y0 = Math.abs(re[peak - 1]), y2 = Math.abs(re[peak + 1]);
+				float d = y0 - 2 * height + y2;
+				if (d < 0) lag += 0.5 * (y0 - y2) / d;
+			}
+			sum += lag;
+			sumSq += lag * lag;
+			found++;
+		}
+		if (found < (bursts + 1) / 2) {
+			throw new IOException("unable to detect test signal in input (" + found + " of " + bursts + " bursts)");
+		}
+		double mean = sum / found;
+		double var = (found > 1) ? Math.max(0, (sumSq - found * mean * mean) / (found - 1)) : 0;
+		return new Result(sampleRate, ticksPerBuffer, (float) mean, (float) Math.sqrt(var), found);
+	}
+
+	// Maximum length sequence of +/-1 values, generated by a linear feedback shift register.
+	private static float[] makeSequence() {
+		int length = (1 << MLS_ORDER) - 1;
+		float mls[] = new float[length];
+		int state = 1;
+		for (int i = 0; i < length; i++) {
+			int bit = Integer.bitCount(state & MLS_TAPS) & 1;
+			mls[i] = ((state >> (MLS_ORDER - 1)) & 1) != 0 ? 1.0f : -1.0f;
+			state = ((state << 1) | bit) & length;
+		}
+		return mls;
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+/**
+ *
+ * LatencyController adjusts the number of buffers that {@link AudioWrapper} keeps queued up in the audio device.
+ * It grows the queue when the device runs dry or the audio thread comes close to missing its deadline, and shrinks
+ * it again, one buffer at a time, after a stable period without such events.  A controller with equal minimum and
+ * maximum never changes, i.e., it amounts to a fixed buffer size.
+ *
+ * All updates happen on the audio thread; getters may be called from any thread.
+ *
+ */
+public final class LatencyController {
+
+	/**
+	 * Default length of the period without xruns after which the buffer size shrinks
+	 */
+	public static final long DEFAULT_STABLE_MILLIS = 10000;
+	private final int minBuffers;
+	private final int maxBuffers;
+	private final int initialBuffers;
+	private final long stableNanos;
+	private volatile int buffers;
+	private volatile long xruns = 0;
+	private long lastEvent = 0;
+
+	/**
+	 * Constructor for a controller that keeps the buffer size fixed
+	 *
+	 * @param buffers  number of buffers to keep queued up
+	 */
+	public LatencyController(int buffers) {
+		this(buffers, buffers, buffers, DEFAULT_STABLE_MILLIS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param initialBuffers  number of buffers to start out with
+	 * @param minBuffers      lower bound for the number of buffers
+	 * @param maxBuffers      upper bound for the number of buffers
+	 * @param stableMillis    length of the period without xruns after which the number of buffers shrinks
+	 */
+	public LatencyController(int initialBuffers, int minBuffers, int maxBuffers, long stableMillis) {
+		if (minBuffers <= 0 || minBuffers > initialBuffers || initialBuffers > maxBuffers || stableMillis <= 0) {
+			throw new IllegalArgumentException("bad latency parameters: " + initialBuffers + ", " + minBuffers + ", " +
+					maxBuffers + ", " + stableMillis);
+		}
+		this.initialBuffers = initialBuffers;
+		this.minBuffers = minBuffers;
+		this.maxBuffers = maxBuffers;
+		this.stableNanos = stableMillis * 1000000L;
+		buffers = initialBuffers;
+	}
+
+	/**
+	 * @return true if and only if this controller may change the number of buffers
+	 */
+	public boolean isAdaptive() {
+		return minBuffers < maxBuffers;
+	}
+
+	/**
+	 * @return current number of buffers
+	 */
+	public int getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * @return lower bound for the number of buffers
+	 */
+	public int getMinBuffers() {
+		return minBuffers;
+	}
+
+	/**
+	 * @return upper bound for the number of buffers
+	 */
+	public int getMaxBuffers() {
+		return maxBuffers;
+	}
+
+	/**
+	 * @return number of xruns and near misses observed so far
+	 */
+	public long getXruns() {
+		return xruns;
+	}
+
+	/**
+	 * Resets the number of buffers to its initial value; to be called when the audio thread starts
+	 *
+	 * @param now  current time in nanoseconds
+	 */
+	void reset(long now) {
+		buffers = initialBuffers;
+		lastEvent = now;
+	}
+
+	/**
+	 * Reports one audio cycle to the controller; to be called from the audio thread
+	 *
+	 * @param now   current time in nanoseconds
+	 * @param xrun  true if the device ran out of data or the audio thread nearly missed its deadline
+	 * @return true if the number of buffers changed
+	 */
+	boolean update(long now, boolean xrun) {
+		if (xrun) {
+			xruns++;
+			lastEvent = now;
+			if (buffers < maxBuffers) {
+				buffers = Math.min(maxBuffers, buffers + Math.max(1, buffers / 2));
+				return true;
+			}
+		} else if (now - lastEvent > stableNanos) {
+			lastEvent = now;
+			if (buffers > minBuffers) {
+				buffers--;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,398 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.puredata.core.PdBase;
+
+/**
+ *
+ * MessageScheduler delivers messages to Pure Data at a given frame of the audio clock rather than at the next buffer
+ * boundary.  The audio clock counts the frames that Pure Data has rendered since audio was initialized.  Since
+ * {@link PdAudio} renders one tick at a time, regardless of the number of ticks per buffer, a message is
+ * delivered right before the tick that contains its frame, i.e., control timing is as accurate as Pure Data's own
+ * scheduler allows, independent of the buffer size.  Messages for frames that have already been rendered are
+ * delivered before the next tick.
+ *
+ * Wall-clock times can be mapped onto the audio clock with {@link #frameAtNanos(long)}, which takes the output
+ * latency into account, i.e., a message scheduled for the frame at a given time will be heard at that time if the
+ * time is far enough in the future.  For steady timing of real-time input, schedule events at their time stamp plus
+ * a constant delay that exceeds the output latency.
+ *
+ * The schedule methods may be invoked from any thread; messages are handed to the audio thread through a bounded
+ * multi-producer, single-consumer ring of preallocated slots, the same as in {@link CommandQueue}, and the audio
+ * thread keeps pending messages in a heap of fixed capacity whose events are preallocated as well, so that
+ * scheduling neither blocks nor allocates on the audio thread.  If the ring or the heap is full, messages are
+ * dropped and counted.  While no audio thread is running, messages that are due, i.e., messages for the current
+ * frame or earlier, are delivered right away on the scheduling thread, under the lock of PdBase; the others wait for
+ * audio to start.
+ *
+ */
+public final class MessageScheduler {
+
+	/**
+	 * Default number of messages that may be pending at any time
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+	private static final int BANG = 0;
+	private static final int FLOAT = 1;
+	private static final int SYMBOL = 2;
+	private static final int LIST = 3;
+	private static final int MESSAGE = 4;
+	private static final double SMOOTHING = 1.0 / 256;  // per tick; averages out the bursts of blocking writes
+	private final int mask;
+	private final AtomicLongArray sequence;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private long head = 0;
+	private final long frames[];
+	private final int types[];
+	private final String receivers[];
+	private final float values[];
+	private final String symbols[];
+	private final Object args[][];
+	private final Event heap[];  // pending events in heap[0..size); the rest are free for reuse
+	private int size = 0;
+	private volatile long currentFrame = 0;
+	private volatile int sampleRate = 0;
+	private volatile double originNanos = 0;  // estimated time at which frame 0 is heard
+	private volatile boolean clearPending = false;
+	private volatile boolean direct = true;  // true while there is no audio thread to deliver messages
+	private volatile long clearedUpTo = 0;  // messages at earlier positions of the ring were scheduled before clear()
+	private boolean anchored = false;
+
+	// Owned by the audio thread; moved around in the heap rather than allocated per message.
+	private static final class Event {
+		long frame;
+		long seq;
+		int type;
+		String recv;
+		float value;
+		String symbol;
+		Object args[];
+
+		boolean before(Event other) {
+			if (frame != other.frame) return frame < other.frame;
+			return seq < other.seq;  // first come, first served
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity  number of messages that may be pending; rounded up to the next power of two
+	 */
+	MessageScheduler(int capacity) {
+		if (capacity <= 0 || capacity > (1 << 20)) {
+			throw new IllegalArgumentException("bad scheduler capacity: " + capacity);
+		}
+		int n = Integer.highestOneBit(capacity);
+		if (n < capacity) n <<= 1;
+		mask = n - 1;
+		sequence = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) sequence.set(i, i);
+		frames = new long[n];
+		types = new int[n];
+		receivers = new String[n];
+		values = new float[n];
+		symbols = new String[n];
+		args = new Object[n][];
+		heap = new Event[n];
+		for (int i = 0; i < n; i++) heap[i] = new Event();
+	}
+
+	/**
+	 * Schedules a bang
+	 *
+	 * @param frame  frame of the audio clock at which to deliver the message
+	 * @param recv   receiver symbol
+	 * @return true if the message was scheduled, false if the scheduler was full
+	 */
+	public boolean scheduleBang(long frame, String recv) {
+		return enqueue(frame, BANG, recv, 0, null, null);
+	}
+
+	/**
+	 * Schedules a float
+	 *
+	 * @param frame  frame of the audio clock at which to deliver the message
+	 * @param recv   receiver symbol
+	 * @param x
+	 * @return true if the message was scheduled, false if the scheduler was full
+	 */
+	public boolean scheduleFloat(long frame, String recv, float x) {
+		return enqueue(frame, FLOAT, recv, x, null, null);
+	}
+
+	/**
+	 * Schedules a symbol
+	 *
+	 * @param frame  frame of the audio clock at which to deliver the message
+	 * @param recv   receiver symbol
+	 * @param sym
+	 * @return true if the message was scheduled, false if the scheduler was full
+	 */
+	public boolean scheduleSymbol(long frame, String recv, String sym) {
+		return enqueue(frame, SYMBOL, recv, 0, sym, null);
+	}
+
+	/**
+	 * Schedules a list
+	 *
+	 * @param frame  frame of the audio clock at which to deliver the message
+	 * @param recv   receiver symbol
+	 * @param args   list of arguments of type Integer, Float, or String
+	 * @return true if the message was scheduled, false if the scheduler was full
+	 */
+	public boolean scheduleList(long frame, String recv, Object... args) {
+		return enqueue(frame, LIST, recv, 0, null, args);
+	}
+
+	/**
+	 * Schedules a typed message
+	 *
+	 * @param frame    frame of the audio clock at which to deliver the message
+	 * @param recv     receiver symbol
+	 * @param message  message selector
+	 * @param args     list of arguments of type Integer, Float, or String
+	 * @return true if the message was scheduled, false if the scheduler was full
+	 */
+	public boolean scheduleMessage(long frame, String recv, String message, Object... args) {
+		return enqueue(frame, MESSAGE, recv, 0, message, args);
+	}
+
+	/**
+	 * @return number of messages dropped because the scheduler was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return frame of the audio clock at which the next tick starts
+	 */
+	public long getCurrentFrame() {
+		return currentFrame;
+	}
+
+	/**
+	 * Maps a wall-clock time onto the audio clock
+	 *
+	 * @param nanoTime  time in terms of {@link System#nanoTime()}
+	 * @return frame of the audio clock that will be heard at the given time; before the audio thread has started, the
+	 *             result assumes that the next tick will be heard immediately
+	 */
+	public long frameAtNanos(long nanoTime) {
+		int sr = sampleRate;
+		double origin = originNanos;
+		if (sr <= 0) return currentFrame;
+		if (origin == 0) return currentFrame + (long) ((nanoTime - System.nanoTime()) * 1e-9 * sr);
+		return (long) Math.floor((nanoTime - origin) * 1e-9 * sr);
+	}
+
+	/**
+	 * Discards all messages that haven't been delivered yet; messages that are being scheduled concurrently may or may
+	 * not be discarded
+	 */
+	public void clear() {
+		clearedUpTo = tail.get();
+		clearPending = true;  // the audio thread owns the pending messages
+	}
+
+	// Restarts the audio clock and discards pending messages; to be invoked while the audio thread isn't running.
+	void reset(int sampleRate) {
+		synchronized (PdBase.class) {  // keeps out senders in direct mode
+			clearedUpTo = tail.get();
+			clearPending = false;
+			drainIncoming();
+			clearHeap();
+			this.sampleRate = sampleRate;
+			currentFrame = 0;
+			originNanos = 0;
+			anchored = false;
+		}
+	}
+
+	// Switches between delivery by the audio thread and delivery on the scheduling thread, the same way as in
+	// CommandQueue; messages that are due when switching to direct delivery go out right here.
+	void setDirect(boolean direct) {
+		synchronized (PdBase.class) {
+			this.direct = direct;
+			if (direct) deliverDue();
+		}
+	}
+
+	// Delivers the messages that are due before the end of the next tick, and advances the audio clock; to be invoked
+	// on the audio thread right before Pure Data renders the given number of frames.
+	void advance(int frames, int latencyFrames) {
+		long start = currentFrame;
+		long end = start + frames;
+		if (clearPending) {
+			clearPending = false;
+			clearHeap();
+		}
+		drainIncoming();
+		while (size > 0 && heap[0].frame < end) {
+			deliver(heap[0]);
+			removeFirst();
+		}
+		int sr = sampleRate;
+		if (sr > 0) {
+			double origin = System.nanoTime() + latencyFrames * 1e9 / sr - start * 1e9 / sr;
+			originNanos = anchored ? originNanos + SMOOTHING * (origin - originNanos) : origin;
+			anchored = true;
+		}
+		currentFrame = end;
+	}
+
+	// Delivers the messages for the current frame or earlier; to be invoked under the lock of PdBase in direct mode.
+	private void deliverDue() {
+		if (clearPending) {
+			clearPending = false;
+			clearHeap();
+		}
+		drainIncoming();
+		while (size > 0 && heap[0].frame <= currentFrame) {
+			deliver(heap[0]);
+			removeFirst();
+		}
+	}
+
+	// Moves newly scheduled messages from the ring to the heap, dropping those that were scheduled before the last call
+	// to clear() as well as those that don't fit.
+	private void drainIncoming() {
+		long cleared = clearedUpTo;
+		while (true) {
+			int i = (int) (head & mask);
+			if (sequence.get(i) != head + 1) break;  // empty, or the next slot is still being written
+			if (head >= cleared) {
+				if (size < heap.length) {
+					Event e = heap[size];
+					e.frame = frames[i];
+					e.seq = head;
+					e.type = types[i];
+					e.recv = receivers[i];
+					e.value = values[i];
+					e.symbol = symbols[i];
+					e.args = args[i];
+					siftUp(size++);
+				} else {
+					dropped.incrementAndGet();
+				}
+			}
+			receivers[i] = null;
+			symbols[i] = null;
+			args[i] = null;
+			sequence.lazySet(i, head + mask + 1);  // releases the slot for the next round
+			head++;
+		}
+	}
+
+	// Removes the first event and puts it back into the free part of the heap.
+	private void removeFirst() {
+		Event first = heap[0];
+		first.recv = null;
+		first.symbol = null;
+		first.args = null;
+		size--;
+		heap[0] = heap[size];
+		heap[size] = first;
+		if (size > 0) siftDown(0);
+	}
+
+	private void clearHeap() {
+		for (int i = 0; i < size; i++) {
+			heap[i].recv = null;
+			heap[i].symbol = null;
+			heap[i].args = null;
+		}
+		size = 0;
+	}
+
+	private void siftUp(int k) {
+		Event e = heap[k];
+		while (k > 0) {
+			int parent = (k - 1) >> 1;
+			if (!e.before(heap[parent])) break;
+			heap[k] = heap[parent];
+			k = parent;
+		}
+		heap[k] = e;
+	}
+
+	private void siftDown(int k) {
+		Event e = heap[k];
+		int half = size >> 1;
+		while (k < half) {
+			int child = 2 * k + 1;
+			if (child + 1 < size && heap[child + 1].before(heap[child])) child++;
+			if (!heap[child].before(e)) break;
+			heap[k] = heap[child];
+			k = child;
+		}
+		heap[k] = e;
+	}
+
+	private boolean enqueue(long frame, int type, String recv, float value, String symbol, Object list[]) {
+		if (recv == null) {
+			throw new IllegalArgumentException("receiver must not be null");
+		}
+		long pos = tail.get();
+		while (true) {
+			int i = (int) (pos & mask);
+			long diff = sequence.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					frames[i] = frame;
+					types[i] = type;
+					receivers[i] = recv;
+					values[i] = value;
+					symbols[i] = symbol;
+					args[i] = list;
+					sequence.lazySet(i, pos + 1);
+					if (direct) {
+						synchronized (PdBase.class) {
+							if (direct) deliverDue();
+						}
+					}
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				dropped.incrementAndGet();
+				return false;
+			} else {
+				pos = tail.get();  // another producer got there first
+			}
+		}
+	}
+
+	private static void deliver(Event e) {
+		switch (e.type) {
+		case BANG:
+			PdBase.sendBang(e.recv);
+			break;
+		case FLOAT:
+			PdBase.sendFloat(e.recv, e.value);
+			break;
+		case SYMBOL:
+			PdBase.sendSymbol(e.recv, e.symbol);
+			break;
+		case LIST:
+			PdBase.sendList(e.recv, e.args);
+			break;
+		case MESSAGE:
+			PdBase.sendMessage(e.recv, e.symbol, e.args);
+			break;
+		default:
+			break;
+		}
+	}
+}
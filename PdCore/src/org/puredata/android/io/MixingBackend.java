@@ -0,0 +1,286 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+/**
+ *
+ * MixingBackend lets the audio thread render any number of output channels and mixes them down or up to the channel
+ * layout of another {@link AudioBackend}, usually the audio device, with a gain matrix.  This way, a patch with a
+ * multichannel mix runs on a stereo device without changes, and without spending cycles on a downmix in Pure Data.
+ *
+ * The gain matrix has one row per device channel and one column per channel of the audio thread.  It may be replaced
+ * at any time; the audio thread picks up the new matrix at the start of the next buffer.  Input passes through
+ * unchanged.
+ *
+ */
+public class MixingBackend implements AudioBackend {
+
+	private static final float CENTER = 0.70710677f;  // -3dB
+	private final AudioBackend backend;
+	private final int deviceChannels;
+	private volatile float gains[][];
+	private volatile float matrix[] = null;  // flattened gains, row by row; null until opened
+	private int outChannels;
+	private boolean floatSamples;
+	private float mixed[];
+	private short mixedShorts[];
+
+	/**
+	 * Constructor; mixes with the default gains, see {@link #defaultGains(int, int)}
+	 *
+	 * @param backend         backend to mix down or up to; it is opened, started, and released along with this one
+	 * @param deviceChannels  number of output channels of the backend
+	 */
+	public MixingBackend(AudioBackend backend, int deviceChannels) {
+		if (deviceChannels <= 0) {
+			throw new IllegalArgumentException("bad number of device channels: " + deviceChannels);
+		}
+		this.backend = backend;
+		this.deviceChannels = deviceChannels;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param backend  backend to mix down or up to; it is opened, started, and released along with this one
+	 * @param gains    gain matrix, with one row per output channel of the backend, and one column per channel of the
+	 *                     audio thread
+	 */
+	public MixingBackend(AudioBackend backend, float gains[][]) {
+		this(backend, gains.length);
+		this.gains = copy(gains);
+	}
+
+	/**
+	 * Computes a gain matrix for mixing the given number of channels to the given number of device channels:
+	 * identity if the numbers are the same; mono goes to all device channels, and everything goes to a mono device
+	 * at equal gains.  5.1 and 7.1 (in the order of Android, i.e., front left and right, center, LFE, back left and
+	 * right, side left and right) go to stereo with center and surrounds at -3dB and without LFE.  Otherwise, channel
+	 * i goes to device channel i modulo the number of device channels.  Unless the numbers are the same or the source
+	 * is mono, rows are scaled down so that their gains add up to at most 1, so that the mix never clips.
+	 *
+	 * @param channels        number of channels of the audio thread
+	 * @param deviceChannels  number of channels of the device
+	 * @return gain matrix, with one row per device channel and one column per channel of the audio thread
+	 */
+	public static float[][] defaultGains(int channels, int deviceChannels) {
+		if (channels <= 0 || deviceChannels <= 0) {
+			throw new IllegalArgumentException("bad numbers of channels: " + channels + ", " + deviceChannels);
+		}
+		float g[][] = new float[deviceChannels][channels];
+		if (channels == deviceChannels || channels == 1) {
+			for (int m = 0; m < deviceChannels; m++) {
+				g[m][Math.min(m, channels - 1)] = 1;
+			}
+			return g;
+		}
+		if (deviceChannels == 2 && (channels == 6 || channels == 8)) {
+			for (int m = 0; m < 2; m++) {
+				g[m][m] = 1;
+				g[m][2] = CENTER;
+				g[m][4 + m] = CENTER;
+				if (channels == 8) g[m][6 + m] = CENTER;
+			}
+		} else {
+			for (int n = 0; n < channels; n++) {
+				g[n % deviceChannels][n] = 1;
+			}
+		}
+		for (int m = 0; m < deviceChannels; m++) {
+			float sum = 0;
+			for (int n = 0; n < channels; n++) sum += g[m][n];
+			if (sum > 1) {
+				for (int n = 0; n < channels; n++) g[m][n] /= sum;
+			}
+		}
+		return g;
+	}
+
+	/**
+	 * @return number of output channels of the wrapped backend
+	 */
+	public int getDeviceChannels() {
+		return deviceChannels;
+	}
+
+	/**
+	 * @return wrapped backend
+	 */
+	public AudioBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * @return copy of the current gain matrix, null if the backend hasn't been opened and no gains were given
+	 */
+	public float[][] getGains() {
+		float g[][] = gains;
+		return (g != null) ? copy(g) : null;
+	}
+
+	/**
+	 * Replaces the gain matrix; may be called from any thread, also while the audio thread is running
+	 *
+	 * @param gains  gain matrix, with one row per output channel of the backend, and one column per channel of the
+	 *                   audio thread
+	 * @throws IllegalStateException if the backend hasn't been opened yet
+	 */
+	public synchronized void setGains(float gains[][]) {
+		if (matrix == null) {
+			throw new IllegalStateException("mixing backend not open");
+		}
+		checkGains(gains, outChannels);
+		this.gains = copy(gains);
+		matrix = flatten(gains);
+	}
+
+	@Override
+	public synchronized void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames,
+			boolean preferFloat) throws IOException {
+		if (outChannels <= 0 || framesPerBuffer <= 0) {
+			throw new IOException("bad parameters; sr: " + sampleRate + ", ch: " + outChannels + ", bufSize: " + framesPerBuffer);
+		}
+		if (gains == null) {
+			gains = defaultGains(outChannels, deviceChannels);
+		} else if (gains[0].length != outChannels) {
+			throw new IOException("gain matrix has " + gains[0].length + " columns for " + outChannels + " channels");
+		}
+		backend.open(sampleRate, inChannels, deviceChannels, framesPerBuffer, maxFrames, preferFloat);
+		this.outChannels = outChannels;
+		floatSamples = backend.usesFloatSamples();
+		mixed = floatSamples ? new float[deviceChannels * framesPerBuffer] : null;
+		mixedShorts = floatSamples ? null : new short[deviceChannels * framesPerBuffer];
+		matrix = flatten(gains);
+	}
+
+	private void checkGains(float g[][], int channels) {
+		if (g.length != deviceChannels) {
+			throw new IllegalArgumentException("gain matrix has " + g.length + " rows for " + deviceChannels + " channels");
+		}
+		for (float row[]: g) {
+			if (row.length != channels) {
+				throw new IllegalArgumentException("gain matrix has " + row.length + " columns for " + channels + " channels");
+			}
+		}
+	}
+
+	private static float[][] copy(float g[][]) {
+		float c[][] = new float[g.length][];
+		for (int m = 0; m < g.length; m++) {
+			c[m] = new float[g[m].length];
+			System.arraycopy(g[m], 0, c[m], 0, g[m].length);
+		}
+		return c;
+	}
+
+	private float[] flatten(float g[][]) {
+		int channels = g[0].length;
+		checkGains(g, channels);
+		float f[] = new float[deviceChannels * channels];
+		for (int m = 0; m < deviceChannels; m++) {
+			System.arraycopy(g[m], 0, f, m * channels, channels);
+		}
+		return f;
+	}
+
+	@Override
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	@Override
+	public int getMinQueueFrames() {
+		return backend.getMinQueueFrames();
+	}
+
+	@Override
+	public int getMaxQueueFrames() {
+		return backend.getMaxQueueFrames();
+	}
+
+	@Override
+	public int setQueueFrames(int frames) {
+		return backend.setQueueFrames(frames);
+	}
+
+	@Override
+	public void start() {
+		backend.start();
+	}
+
+	@Override
+	public void stop() {
+		backend.stop();
+	}
+
+	@Override
+	public void release() {
+		backend.release();
+	}
+
+	@Override
+	public boolean read(short buffer[]) {
+		return backend.read(buffer);
+	}
+
+	@Override
+	public boolean read(float buffer[]) {
+		return backend.read(buffer);
+	}
+
+	@Override
+	public int write(short buffer[], int offset, int size) {
+		int frames = size / outChannels;
+		float g[] = matrix;
+		for (int f = 0, j = offset, k = 0; f < frames; f++, j += outChannels) {
+			for (int m = 0, a = 0; m < deviceChannels; m++, k++) {
+				float sum = 0;
+				for (int n = 0; n < outChannels; n++, a++) {
+					sum += g[a] * buffer[j + n];
+				}
+				mixedShorts[k] = (short) (sum >= 32767.0f ? Short.MAX_VALUE : sum <= -32768.0f ? Short.MIN_VALUE : sum);
+			}
+		}
+		int err = backend.write(mixedShorts, 0, frames * deviceChannels);
+		return (err < 0) ? err : size;
+	}
+
+	@Override
+	public int write(float buffer[], int offset, int size) {
+		int frames = size / outChannels;
+		float g[] = matrix;
+		for (int f = 0, j = offset, k = 0; f < frames; f++, j += outChannels) {
+			for (int m = 0, a = 0; m < deviceChannels; m++, k++) {
+				float sum = 0;
+				for (int n = 0; n < outChannels; n++, a++) {
+					sum += g[a] * buffer[j + n];
+				}
+				mixed[k] = sum;
+			}
+		}
+		int err = backend.write(mixed, 0, frames * deviceChannels);
+		return (err < 0) ? err : size;
+	}
+
+	@Override
+	public long getFramesPlayed() {
+		return backend.getFramesPlayed();
+	}
+
+	@Override
+	public int getUnderrunCount() {
+		return backend.getUnderrunCount();
+	}
+
+	@Override
+	public long getDroppedInput() {
+		return backend.getDroppedInput();
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ *
+ * NullBackend is an {@link AudioBackend} that discards its output and provides silent input.  It consumes audio
+ * at a configurable speed relative to real time; at speed 0, it runs as fast as the audio thread can go.  Since it
+ * does not touch any audio hardware, it is useful for benchmarking the rendering loop on any machine.
+ *
+ */
+public class NullBackend implements AudioBackend {
+
+	private final double speed;
+	private int sampleRate;
+	private int maxQueueFrames;
+	private int queueFrames;
+	private int outChannels;
+	private boolean floatSamples;
+	private long framesWritten;
+	private long startNanos;
+	private int underruns = 0;
+
+	/**
+	 * Constructor for a free-running null backend
+	 */
+	public NullBackend() {
+		this(0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param speed  speed of the clock relative to real time, e.g., 1 for real time, 2 for twice as fast as real time,
+	 *                   or 0 for a free-running backend that consumes audio as fast as it can
+	 */
+	public NullBackend(double speed) {
+		if (speed < 0) throw new IllegalArgumentException("negative speed: " + speed);
+		this.speed = speed;
+	}
+
+	@Override
+	public void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames, boolean preferFloat)
+			throws IOException {
+		if (sampleRate <= 0 || outChannels <= 0 || framesPerBuffer <= 0) {
+			throw new IOException("bad parameters; sr: " + sampleRate + ", ch: " + outChannels + ", bufSize: " + framesPerBuffer);
+		}
+		this.sampleRate = sampleRate;
+		this.outChannels = outChannels;
+		this.floatSamples = preferFloat;
+		maxQueueFrames = Math.max(maxFrames, 2 * framesPerBuffer);
+		queueFrames = maxQueueFrames;
+	}
+
+	@Override
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	@Override
+	public int getMinQueueFrames() {
+		return 0;
+	}
+
+	@Override
+	public int getMaxQueueFrames() {
+		return maxQueueFrames;
+	}
+
+	@Override
+	public int setQueueFrames(int frames) {
+		queueFrames = Math.min(frames, maxQueueFrames);
+		return queueFrames;
+	}
+
+	@Override
+	public void start() {
+		framesWritten = 0;
+		startNanos = System.nanoTime();
+	}
+
+	@Override
+	public void stop() {
+		// do nothing
+	}
+
+	@Override
+	public void release() {
+		// do nothing
+	}
+
+	@Override
+	public boolean read(short buffer[]) {
+		Arrays.fill(buffer, (short) 0);
+		return true;
+	}
+
+	@Override
+	public boolean read(float buffer[]) {
+		Arrays.fill(buffer, 0.0f);
+		return true;
+	}
+
+	@Override
+	public int write(short buffer[], int offset, int size) {
+		advance(size / outChannels);
+		return size;
+	}
+
+	@Override
+	public int write(float buffer[], int offset, int size) {
+		advance(size / outChannels);
+		return size;
+	}
+
+	// Blocks until the queue has room for the given number of frames, like a blocking write to an audio device.
+	private void advance(int frames) {
+		framesWritten += frames;
+		if (speed == 0) return;
+		long excess = framesWritten - getFramesPlayed() - queueFrames;
+		if (excess > 0) {
+			long nanos = (long) (excess * 1e9 / (speed * sampleRate));
+			try {
+				Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// When the clock gets ahead of the writer, the sink starves; like an audio device, it plays silence in the
+	// meantime, i.e., the clock skips ahead rather than waiting for the writer to catch up.
+	@Override
+	public long getFramesPlayed() {
+		if (speed == 0) return framesWritten;
+		long frames = (long) ((System.nanoTime() - startNanos) * 1e-9 * speed * sampleRate);
+		if (frames > framesWritten) {
+			startNanos += (long) ((frames - framesWritten) * 1e9 / (speed * sampleRate));
+			frames = framesWritten;
+			if (framesWritten > 0) underruns++;
+		}
+		return frames;
+	}
+
+	@Override
+	public int getUnderrunCount() {
+		return (speed == 0) ? -1 : underruns;
+	}
+
+	@Override
+	public long getDroppedInput() {
+		return 0;
+	}
+}
@@ -18,7 +18,17 @@ import org.puredata.core.PdBase;
  */
 public class PdAudio {
 	
-	private static AudioWrapper audioWrapper = null;
+	private static volatile AudioWrapper audioWrapper = null;  // volatile for the lock-free level getters
+	private static final MessageScheduler scheduler = new MessageScheduler(MessageScheduler.DEFAULT_CAPACITY);
+	private static final CommandQueue commands = new CommandQueue(CommandQueue.DEFAULT_CAPACITY);
+	private static volatile TickListener tickListeners[] = new TickListener[0];
+	private static AnalysisBus inputAnalysis = null;
+	private static AnalysisBus outputAnalysis = null;
+	private static boolean resampling = false;
+	private static int resamplingQuality = Resampler.QUALITY_MEDIUM;
+	private static int deviceOutputChannels = 0;
+	private static MixingBackend mixer = null;
+	private static final int OFFLINE_TICKS = 16;
 
 	private PdAudio() {
 		// Do nothing; we just don't want instances of this class.
@@ -30,52 +40,601 @@ public class PdAudio {
 	 * @param sampleRate
 	 * @param inChannels      number of input channels
 	 * @param outChannels     number of output channels
-	 * @param ticksPerBuffer  number of Pure Data ticks (i.e., blocks of 64 samples) per buffer; choose 1 for minimal latency,
-	 *                            or more if performance is a concern
+	 * @param ticksPerBuffer  number of Pure Data ticks (i.e., blocks of 64 samples) per buffer; Pure Data processes one
+	 *                            buffer per callback, and one buffer is queued up in the device while the next one is
+	 *                            being computed; choose 1 for minimal latency, or more if performance is a concern
 	 * @param restart         flag indicating whether the audio thread should be stopped if it is currently running
 	 * @throws IOException    if the audio parameters are not supported by the device
 	 */
 	public synchronized static void initAudio(int sampleRate, int inChannels, int outChannels, int ticksPerBuffer, boolean restart)
 			throws IOException {
+		initAudio(sampleRate, inChannels, outChannels, ticksPerBuffer, AudioRecordWrapper.DEFAULT_INPUT_BLOCKS, restart);
+	}
+
+	/**
+	 * initialize Pure Data as well as {@link AudioWrapper} instance
+	 * 
+	 * @param sampleRate
+	 * @param inChannels      number of input channels
+	 * @param outChannels     number of output channels
+	 * @param ticksPerBuffer  number of Pure Data ticks (i.e., blocks of 64 samples) per buffer; Pure Data processes one
+	 *                            buffer per callback, and one buffer is queued up in the device while the next one is
+	 *                            being computed; choose 1 for minimal latency, or more if performance is a concern
+	 * @param inputBlocks     number of input buffers (of up to ticksPerBuffer ticks each) that may queue up while the audio
+	 *                            thread is busy
+	 * @param restart         flag indicating whether the audio thread should be stopped if it is currently running
+	 * @throws IOException    if the audio parameters are not supported by the device
+	 */
+	public synchronized static void initAudio(int sampleRate, int inChannels, int outChannels, int ticksPerBuffer, int inputBlocks,
+			boolean restart) throws IOException {
 		if (isRunning() && !restart) return;
-		if (!AudioParameters.checkParameters(sampleRate, inChannels, outChannels) || ticksPerBuffer <= 0) {
+		if (ticksPerBuffer <= 0 || inputBlocks <= 0) {
+			throw new IOException("bad audio parameters: " + sampleRate + ", " + inChannels + ", " + outChannels + ", " +
+					ticksPerBuffer + ", " + inputBlocks);
+		}
+		initAudio(deviceBackend(inputBlocks, sampleRate, outChannels), sampleRate, inChannels, outChannels, ticksPerBuffer,
+				new LatencyController(1));
+	}
+
+	/**
+	 * initialize Pure Data as well as {@link AudioWrapper} instance, with an amount of buffering that adapts to the
+	 * performance of the device at runtime; the number of buffers queued up in the device grows when the audio thread
+	 * runs into xruns and shrinks again after a stable period.  The buffer size itself stays fixed, so that the latency
+	 * changes in steps of whole buffers; small buffers, e.g., the native burst size of the device, give finer steps at
+	 * the price of more callbacks.
+	 * 
+	 * @param sampleRate
+	 * @param inChannels      number of input channels
+	 * @param outChannels     number of output channels
+	 * @param ticksPerBuffer  number of Pure Data ticks (i.e., blocks of 64 samples) per buffer
+	 * @param buffers         initial number of buffers queued up in the device
+	 * @param minBuffers      lower bound for the number of buffers
+	 * @param maxBuffers      upper bound for the number of buffers
+	 * @param restart         flag indicating whether the audio thread should be stopped if it is currently running
+	 * @throws IOException    if the audio parameters are not supported by the device
+	 */
+	public synchronized static void initAudio(int sampleRate, int inChannels, int outChannels, int ticksPerBuffer, int buffers,
+			int minBuffers, int maxBuffers, boolean restart) throws IOException {
+		if (isRunning() && !restart) return;
+		if (ticksPerBuffer <= 0 || minBuffers <= 0 || minBuffers > buffers || buffers > maxBuffers) {
+			throw new IOException("bad audio parameters: " + sampleRate + ", " + inChannels + ", " + outChannels + ", " +
+					ticksPerBuffer + ", " + buffers + ", " + minBuffers + ", " + maxBuffers);
+		}
+		LatencyController controller =
+			new LatencyController(buffers, minBuffers, maxBuffers, LatencyController.DEFAULT_STABLE_MILLIS);
+		int inputBlocks = AudioRecordWrapper.DEFAULT_INPUT_BLOCKS * maxBuffers;
+		initAudio(deviceBackend(inputBlocks, sampleRate, outChannels), sampleRate, inChannels, outChannels, ticksPerBuffer,
+				controller);
+	}
+
+	// Runs the audio device at its native rate, with a resampler in between, if resampling is enabled and Pure Data
+	// runs at a different rate, and mixes the output of Pure Data to the channels of the device if they differ.  The
+	// mixer comes first, so that the resampler only sees the device channels.
+	private static AudioBackend deviceBackend(int inputBlocks, int sampleRate, int outChannels) {
+		AudioBackend device = new AudioTrackBackend(inputBlocks);
+		int deviceRate = resampling ? AudioParameters.suggestSampleRate() : 0;
+		if (deviceRate > 0 && deviceRate != sampleRate) {
+			device = new ResamplingBackend(device, deviceRate, resamplingQuality);
+		}
+		if (deviceOutputChannels > 0 && deviceOutputChannels != outChannels) {
+			device = new MixingBackend(device, deviceOutputChannels);
+		}
+		return device;
+	}
+
+	/**
+	 * Lets Pure Data render any number of output channels; if the number of output channels given to initAudio
+	 * differs from the given number of device channels, a {@link MixingBackend} mixes the output of Pure Data down or
+	 * up to the device channels, with the gains of {@link MixingBackend#defaultGains(int, int)} until
+	 * {@link #setOutputGains(float[][])} sets others.  Takes effect the next time audio is initialized.
+	 *
+	 * @param channels  number of output channels of the device, e.g., 2 for stereo; 0 disables mixing
+	 */
+	public synchronized static void setDeviceOutputChannels(int channels) {
+		if (channels < 0) {
+			throw new IllegalArgumentException("negative number of channels: " + channels);
+		}
+		deviceOutputChannels = channels;
+	}
+
+	/**
+	 * Replaces the gain matrix of the mixer between Pure Data and the device; may be called while audio is running
+	 *
+	 * @param gains  gain matrix, with one row per device channel, and one column per output channel of Pure Data
+	 * @throws IllegalStateException if the output of Pure Data is not being mixed, see {@link #setDeviceOutputChannels(int)}
+	 */
+	public synchronized static void setOutputGains(float gains[][]) {
+		if (mixer == null) {
+			throw new IllegalStateException("output not mixed");
+		}
+		mixer.setGains(gains);
+	}
+
+	/**
+	 * Enables or disables resampling between Pure Data and the audio device; when enabled, the device runs at its
+	 * native sample rate (see {@link AudioParameters#suggestSampleRate()}) and Pure Data runs at the rate given to
+	 * initAudio, e.g., the rate that a patch was designed for, with a {@link ResamplingBackend} in between.  Takes
+	 * effect the next time audio is initialized.
+	 *
+	 * @param enabled  flag indicating whether to resample
+	 * @param quality  quality of the conversion, e.g., {@link Resampler#QUALITY_MEDIUM}
+	 */
+	public synchronized static void setResampling(boolean enabled, int quality) {
+		if (quality < Resampler.QUALITY_LOW || quality > Resampler.QUALITY_HIGH) {
+			throw new IllegalArgumentException("unknown resampler quality: " + quality);
+		}
+		resampling = enabled;
+		resamplingQuality = quality;
+	}
+
+	/**
+	 * initialize Pure Data as well as {@link AudioWrapper} instance that runs on the given backend, e.g., a
+	 * {@link WavFileBackend} or a {@link NullBackend} for running the audio thread without any audio hardware
+	 * 
+	 * @param backend         backend that consumes output and provides input; it is opened here and released along with
+	 *                            the audio wrapper
+	 * @param sampleRate
+	 * @param inChannels      number of input channels
+	 * @param outChannels     number of output channels
+	 * @param ticksPerBuffer  number of Pure Data ticks (i.e., blocks of 64 samples) per buffer
+	 * @param restart         flag indicating whether the audio thread should be stopped if it is currently running
+	 * @throws IOException    if the audio parameters are not supported by the backend
+	 */
+	public synchronized static void initAudio(AudioBackend backend, int sampleRate, int inChannels, int outChannels,
+			int ticksPerBuffer, boolean restart) throws IOException {
+		if (isRunning() && !restart) return;
+		if (ticksPerBuffer <= 0) {
 			throw new IOException("bad audio parameters: " + sampleRate + ", " + inChannels + ", " + outChannels + ", " + ticksPerBuffer);
 		}
-		stopAudio();
-		PdBase.openAudio(inChannels, outChannels, sampleRate, ticksPerBuffer);
-		int bufferSizePerChannel = ticksPerBuffer * PdBase.blockSize();
-		audioWrapper = new AudioWrapper(sampleRate, inChannels, outChannels, bufferSizePerChannel) {
-			@Override
-			@Override
+		initAudio(backend, sampleRate, inChannels, outChannels, ticksPerBuffer, new LatencyController(1));
+	}
+
+	// Each callback covers the given number of ticks, which Pure Data renders one at a time, so that messages reach it
+	// right before the tick they belong to; the latency controller determines how many such buffers are queued up in
+	// the backend.
+	private static void initAudio(AudioBackend backend, int sampleRate, int inChannels, int outChannels, int ticksPerCallback,
+			LatencyController controller) throws IOException {
+		if (sampleRate <= 0 || inChannels < 0 || outChannels <= 0) {
+			throw new IOException("bad audio parameters: " + sampleRate + ", " + inChannels + ", " + outChannels);
+		}
+		checkDevice(backend, sampleRate, inChannels, outChannels);
+		release();
+		PdBase.openAudio(inChannels, outChannels, sampleRate, 1);
+		scheduler.reset(sampleRate);
+		final TickRenderer renderer = new TickRenderer(inChannels, outChannels, ticksPerCallback);
+		int framesPerBuffer = ticksPerCallback * PdBase.blockSize();
+		audioWrapper = new AudioWrapper(backend, sampleRate, inChannels, outChannels, framesPerBuffer, true, controller) {
 			@Override
 			protected int process(short[] inBuffer, short[] outBuffer) {
-				Arrays.fill(outBuffer, (short) 0);
-				return PdBase.process(inBuffer, outBuffer);
+				return renderer.process(inBuffer, outBuffer, getOutputLatencyFrames());
+			}
+
+			@Override
+			protected int process(float[] inBuffer, float[] outBuffer) {
+				return renderer.process(inBuffer, outBuffer, getOutputLatencyFrames());
 			}
 		};
+		audioWrapper.setAnalysis(inputAnalysis, outputAnalysis);
+		mixer = (backend instanceof MixingBackend) ? (MixingBackend) backend : null;
 	}
 	
+	// Only the audio device is subject to the restrictions of AudioParameters; resamplers and mixers in between change
+	// the rate and the number of output channels that it is opened with, so those are the ones to check.
+	private static void checkDevice(AudioBackend backend, int sampleRate, int inChannels, int outChannels) throws IOException {
+		while (true) {
+			if (backend instanceof ResamplingBackend) {
+				sampleRate = ((ResamplingBackend) backend).getDeviceSampleRate();
+				backend = ((ResamplingBackend) backend).getBackend();
+			} else if (backend instanceof MixingBackend) {
+				outChannels = ((MixingBackend) backend).getDeviceChannels();
+				backend = ((MixingBackend) backend).getBackend();
+			} else {
+				break;
+			}
+		}
+		if (backend instanceof AudioTrackBackend && !AudioParameters.checkParameters(sampleRate, inChannels, outChannels)) {
+			throw new IOException("bad device parameters: " + sampleRate + ", " + inChannels + ", " + outChannels);
+		}
+	}
+
+	// Delivers queued commands, lets tick listeners feed Pure Data, and delivers scheduled messages; invoked on the
+	// audio thread right before Pure Data renders the given number of frames.  The queue is drained again after the
+	// listeners, so that commands that they queue go out in the same tick.
+	private static void beginTick(int frames, int latencyFrames) {
+		commands.drain();
+		TickListener listeners[] = tickListeners;
+		long frame = scheduler.getCurrentFrame();
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].onTick(frame);
+		}
+		if (listeners.length > 0) commands.drain();
+		scheduler.advance(frames, latencyFrames);
+	}
+
+	// Renders buffers of several ticks one tick at a time, with Pure Data opened for one tick per process call, so that
+	// queued commands, tick listeners, and scheduled messages are handled right before the tick they belong to, whatever
+	// the buffer size.  Only one thread at a time may use an instance, i.e., the audio thread or the rendering loop.
+	private static final class TickRenderer {
+		private final int ticks;
+		private final int tick;
+		private final int inTickSize;
+		private final int outTickSize;
+		private final short inTick[];
+		private final short outTick[];
+		private final float inTickFloat[];
+		private final float outTickFloat[];
+
+		TickRenderer(int inChannels, int outChannels, int ticks) {
+			this.ticks = ticks;
+			tick = PdBase.blockSize();
+			inTickSize = inChannels * tick;
+			outTickSize = outChannels * tick;
+			inTick = new short[inTickSize];
+			outTick = new short[outTickSize];
+			inTickFloat = new float[inTickSize];
+			outTickFloat = new float[outTickSize];
+		}
+
+		// The latency of later ticks grows by a tick each, since they will be heard that much later.
+		int process(short inBuffer[], short outBuffer[], int latencyFrames) {
+			if (ticks == 1) {
+				beginTick(tick, latencyFrames);
+				Arrays.fill(outBuffer, (short) 0);
+				return PdBase.process(inBuffer, outBuffer);
+			}
+			for (int t = 0; t < ticks; t++) {
+				beginTick(tick, latencyFrames + t * tick);
+				System.arraycopy(inBuffer, t * inTickSize, inTick, 0, inTickSize);
+				Arrays.fill(outTick, (short) 0);
+				int err = PdBase.process(inTick, outTick);
+				if (err != 0) return err;
+				System.arraycopy(outTick, 0, outBuffer, t * outTickSize, outTickSize);
+			}
+			return 0;
+		}
+
+		int process(float inBuffer[], float outBuffer[], int latencyFrames) {
+			if (ticks == 1) {
+				beginTick(tick, latencyFrames);
+				return PdBase.process(inBuffer, outBuffer);  // libpd overwrites every output sample, no need to clear
+			}
+			for (int t = 0; t < ticks; t++) {
+				beginTick(tick, latencyFrames + t * tick);
+				System.arraycopy(inBuffer, t * inTickSize, inTickFloat, 0, inTickSize);
+				int err = PdBase.process(inTickFloat, outTickFloat);
+				if (err != 0) return err;
+				System.arraycopy(outTickFloat, 0, outBuffer, t * outTickSize, outTickSize);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Renders a patch offline, as fast as possible, and writes the result to a WAV file; see
+	 * {@link #renderOffline(File, float, int, int, int, AudioBackend)} for details
+	 * 
+	 * @param patch            patch to open for the duration of the rendering, or null to render the patches that are
+	 *                             already open
+	 * @param durationSeconds  duration of the rendering in seconds
+	 * @param sampleRate
+	 * @param channels         number of output channels
+	 * @param output           WAV file to write to
+	 * @return number of frames rendered
+	 * @throws IOException     if the patch or the file cannot be opened, or if the parameters are not supported
+	 */
+	public static long renderOffline(File patch, float durationSeconds, int sampleRate, int channels, File output)
+			throws IOException {
+		return renderOffline(patch, durationSeconds, sampleRate, 0, channels, new WavFileBackend(output, null));
+	}
+
+	/**
+	 * Renders a patch offline, as fast as possible, with input from a WAV file and output to a WAV file; see
+	 * {@link #renderOffline(File, float, int, int, int, AudioBackend)} for details
+	 * 
+	 * @param patch            patch to open for the duration of the rendering, or null to render the patches that are
+	 *                             already open
+	 * @param durationSeconds  duration of the rendering in seconds
+	 * @param sampleRate       sample rate; must match the sample rate of the input file
+	 * @param inChannels       number of input channels; input channels are mapped onto the channels of the input file
+	 * @param outChannels      number of output channels
+	 * @param input            WAV file to read input from; input is silent after the end of the file
+	 * @param output           WAV file to write to
+	 * @return number of frames rendered
+	 * @throws IOException     if the patch or the files cannot be opened, or if the parameters are not supported
+	 */
+	public static long renderOffline(File patch, float durationSeconds, int sampleRate, int inChannels, int outChannels,
+			File input, File output) throws IOException {
+		return renderOffline(patch, durationSeconds, sampleRate, inChannels, outChannels, new WavFileBackend(output, input));
+	}
+
+	/**
+	 * Renders a patch offline, i.e., drives Pure Data in a tight loop on the calling thread, without any audio device,
+	 * until the given duration has been rendered or the calling thread is interrupted.  Since Pure Data only has one
+	 * audio configuration, the real-time audio wrapper is released first, and audio needs to be initialized again
+	 * afterwards.  Pure Data remains in compute mode when the rendering is done.
+	 * 
+	 * The backend provides input and consumes output; its clock is ignored.  Custom sinks, e.g., for rendering into
+	 * memory, can extend {@link NullBackend} and override its read and write methods.
+	 * 
+	 * @param patch            patch to open for the duration of the rendering, or null to render the patches that are
+	 *                             already open
+	 * @param durationSeconds  duration of the rendering in seconds
+	 * @param sampleRate
+	 * @param inChannels       number of input channels
+	 * @param outChannels      number of output channels
+	 * @param backend          backend that provides input and consumes output; released when the rendering is done
+	 * @return number of frames rendered
+	 * @throws IOException     if the patch cannot be opened, or if the parameters are not supported by the backend
+	 */
+	public synchronized static long renderOffline(File patch, float durationSeconds, int sampleRate, int inChannels,
+			int outChannels, AudioBackend backend) throws IOException {
+		if (durationSeconds < 0 || sampleRate <= 0 || inChannels < 0 || outChannels <= 0) {
+			backend.release();
+			throw new IOException("bad offline parameters: " + durationSeconds + ", " + sampleRate + ", " + inChannels + ", " + outChannels);
+		}
+		release();
+		PdBase.openAudio(inChannels, outChannels, sampleRate, 1);
+		scheduler.reset(sampleRate);
+		TickRenderer renderer = new TickRenderer(inChannels, outChannels, OFFLINE_TICKS);
+		setDirectDelivery(false);  // the rendering loop delivers messages
+		int framesPerBuffer = PdBase.blockSize() * OFFLINE_TICKS;
+		long totalFrames = (long) Math.ceil(durationSeconds * sampleRate);
+		long frames = 0;
+		int handle = 0;
+		try {
+			backend.open(sampleRate, inChannels, outChannels, framesPerBuffer, framesPerBuffer, true);
+			if (patch != null) handle = PdBase.openPatch(patch);
+			PdBase.computeAudio(true);
+			boolean floatSamples = backend.usesFloatSamples();
+			short inBuf[] = floatSamples ? null : new short[inChannels * framesPerBuffer];
+			short outBuf[] = floatSamples ? null : new short[outChannels * framesPerBuffer];
+			float inBufFloat[] = floatSamples ? new float[inChannels * framesPerBuffer] : null;
+			float outBufFloat[] = floatSamples ? new float[outChannels * framesPerBuffer] : null;
+			backend.start();
+			while (frames < totalFrames && !Thread.interrupted()) {
+				int n = (int) Math.min(framesPerBuffer, totalFrames - frames);  // the last buffer may be partial
+				int err;
+				if (floatSamples) {
+					if (inChannels > 0 && !backend.read(inBufFloat)) Arrays.fill(inBufFloat, 0.0f);
+					if (renderer.process(inBufFloat, outBufFloat, 0) != 0) break;
+					err = backend.write(outBufFloat, 0, n * outChannels);
+				} else {
+					if (inChannels > 0 && !backend.read(inBuf)) Arrays.fill(inBuf, (short) 0);
+					if (renderer.process(inBuf, outBuf, 0) != 0) break;
+					err = backend.write(outBuf, 0, n * outChannels);
+				}
+				if (err < 0) throw new IOException("offline rendering failed after " + frames + " frames");
+				frames += n;
+			}
+			backend.stop();
+		} finally {
+			setDirectDelivery(true);
+			if (handle != 0) PdBase.closePatch(handle);
+			backend.release();
+		}
+		return frames;
+	}
+
+	/**
+	 * @return queue for sending messages to Pure Data from any thread without contending with the audio thread; the
+	 *             audio thread delivers queued messages at the start of each tick, and while audio isn't running,
+	 *             messages are delivered right away
+	 */
+	public static CommandQueue getCommandQueue() {
+		return commands;
+	}
+
+	/**
+	 * Adds a listener that the audio thread invokes once per tick, before Pure Data renders the tick; listeners stay
+	 * in place when audio is reinitialized
+	 * 
+	 * @param listener
+	 */
+	public synchronized static void addTickListener(TickListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		TickListener listeners[] = new TickListener[tickListeners.length + 1];
+		System.arraycopy(tickListeners, 0, listeners, 0, tickListeners.length);
+		listeners[listeners.length - 1] = listener;
+		tickListeners = listeners;  // copy on write, so that the audio thread never waits
+	}
+
+	/**
+	 * Removes a tick listener; it may still be invoked once if the audio thread is about to start a tick
+	 * 
+	 * @param listener
+	 */
+	public synchronized static void removeTickListener(TickListener listener) {
+		TickListener listeners[] = tickListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				TickListener rest[] = new TickListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, rest, 0, i);
+				System.arraycopy(listeners, i + 1, rest, i, rest.length - i);
+				tickListeners = rest;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return scheduler for delivering messages to Pure Data at a given frame of the audio clock, with the accuracy of
+	 *             one tick (64 frames) in real time and one buffer of 16 ticks in offline rendering;
+	 *             the audio clock restarts whenever audio is initialized
+	 */
+	public static MessageScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return current number of Pure Data ticks queued up in the device, which may change at runtime if the buffer size
+	 *             is adaptive
+	 */
+	public synchronized static int getTicksPerBuffer() {
+		if (audioWrapper == null) return 0;
+		return audioWrapper.getControlledBuffers() * audioWrapper.getBufferSizePerChannel() / PdBase.blockSize();
+	}
+
+	/**
+	 * @return snapshot of the timing statistics of the audio thread, null if audio is not initialized
+	 */
+	public synchronized static AudioMetrics.Snapshot getMetrics() {
+		return (audioWrapper != null) ? audioWrapper.getMetrics() : null;
+	}
+
+	/**
+	 * @return peak and RMS levels of the input, and clip counts, null if audio is not initialized; doesn't lock, so that
+	 *             the UI thread can poll it while audio is being set up or torn down
+	 */
+	public static AudioMeter.Snapshot getInputLevels() {
+		AudioWrapper wrapper = audioWrapper;
+		return (wrapper != null) ? wrapper.getInputLevels() : null;
+	}
+
+	/**
+	 * @return peak and RMS levels of the output, and clip counts, null if audio is not initialized; doesn't lock
+	 */
+	public static AudioMeter.Snapshot getOutputLevels() {
+		AudioWrapper wrapper = audioWrapper;
+		return (wrapper != null) ? wrapper.getOutputLevels() : null;
+	}
+
+	/**
+	 * Connects analysis buses to the input and output of Pure Data; they stay connected when audio is initialized
+	 * again.  The buses compute spectra on their own threads, so that consumers don't need to build them in Pure Data.
+	 *
+	 * @param input   analysis bus for the input, or null
+	 * @param output  analysis bus for the output, or null
+	 */
+	public synchronized static void setAnalysis(AnalysisBus input, AnalysisBus output) {
+		inputAnalysis = input;
+		outputAnalysis = output;
+		if (audioWrapper != null) audioWrapper.setAnalysis(input, output);
+	}
+
+	/**
+	 * Starts recording the output of Pure Data to a 16bit WAV file, independently of the patch; see
+	 * {@link AudioWrapper#startRecording(File, float)}.  Recording stops when audio is released or initialized again.
+	 *
+	 * @param file  WAV file to write to
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if audio is not initialized or a recording is already in progress
+	 */
+	public static Recorder startRecording(File file) throws IOException {
+		return startRecording(file, false);
+	}
+
+	/**
+	 * Starts recording the output of Pure Data to a 16bit WAV or FLAC file, independently of the patch; see
+	 * {@link AudioWrapper#startRecording(File, float, boolean)}.
+	 *
+	 * @param file      file to write to
+	 * @param compress  true for a FLAC file, false for a WAV file
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if audio is not initialized or a recording is already in progress
+	 */
+	public synchronized static Recorder startRecording(File file, boolean compress) throws IOException {
+		if (audioWrapper == null) {
+			throw new IllegalStateException("audio not initialized");
+		}
+		return audioWrapper.startRecording(file, 2.0f, compress);
+	}
+
+	/**
+	 * Stops recording; returns once the file is complete
+	 *
+	 * @return recorder that was stopped, null if there was no recording in progress
+	 * @throws IOException  if writing failed at any point
+	 */
+	public synchronized static Recorder stopRecording() throws IOException {
+		return (audioWrapper != null) ? audioWrapper.stopRecording() : null;
+	}
+
+	/**
+	 * @return effective output latency in milliseconds, 0 if audio is not initialized
+	 */
+	public synchronized static float getEffectiveLatencyMillis() {
+		return (audioWrapper != null) ? audioWrapper.getLatencyMillis() : 0.0f;
+	}
+
 	/**
 	 * Start audio wrapper
 	 * 
-	 * @param context  current application context
+	 * @param context  current application context; may be null if the backend is not the audio device
 	 */
 	public synchronized static void startAudio(Context context) {
 		if (audioWrapper == null) {
 			throw new IllegalStateException("audio not initialized");
 		}
+		if (context != null) AudioParameters.init(context);  // writes the parameter cache if nothing else has
 		PdBase.computeAudio(true);
-		audioWrapper.start(context);
+		setDirectDelivery(false);
+		try {
+			audioWrapper.start(context);
+		} catch (RuntimeException e) {
+			setDirectDelivery(true);
+			throw e;
+		}
+	}
+
+	// Hands the delivery of queued and scheduled messages to the audio thread, or back to the sending threads when there
+	// is no audio thread.
+	private static void setDirectDelivery(boolean direct) {
+		commands.setDirect(direct);
+		scheduler.setDirect(direct);
+	}
+
+	/**
+	 * Sets the length of the fade-in and fade-out ramps of the audio wrapper
+	 * 
+	 * @param frames  length of the ramps in frames; 0 disables fades
+	 */
+	public synchronized static void setFadeFrames(int frames) {
+		if (audioWrapper == null) {
+			throw new IllegalStateException("audio not initialized");
+		}
+		audioWrapper.setFadeFrames(frames);
+	}
+
+	/**
+	 * Enables or disables pipelined mode of the audio wrapper, in which a separate render thread works ahead of the
+	 * thread that writes to the device; see {@link AudioWrapper#setRenderAhead(int)}
+	 * 
+	 * @param ticks  number of ticks that Pure Data may work ahead of the device; 0 means serial mode
+	 * @throws IllegalStateException if audio is not initialized or running
+	 */
+	public synchronized static void setRenderAhead(int ticks) {
+		if (audioWrapper == null) {
+			throw new IllegalStateException("audio not initialized");
+		}
+		audioWrapper.setRenderAhead(ticks);
+	}
+
+	/**
+	 * @return number of ticks that Pure Data currently has rendered ahead of the device, 0 in serial mode
+	 */
+	public synchronized static int getRenderAheadFill() {
+		return (audioWrapper != null) ? audioWrapper.getRenderAheadFill() : 0;
 	}
 
 	/**
 	 * Stop audio wrapper
 	 */
 	public synchronized static void stopAudio() {
-		if (!isRunning()) return;
-		audioWrapper.stop();
+		if (isRunning()) audioWrapper.stop();
+		setDirectDelivery(true);
 	}
 	
+	/**
+	 * @return true if and only if the audio wrapper renders float samples, false if it falls back to 16bit samples
+	 */
+	public synchronized static boolean usesFloatSamples() {
+		return audioWrapper != null && audioWrapper.usesFloatSamples();
+	}
+
 	/**
 	 * @return true if and only if the audio wrapper is running
 	 */
@@ -87,8 +646,10 @@ public class PdAudio {
 	 * Release resources held by audio wrapper
 	 */
 	public synchronized static void release() {
+		mixer = null;
 		if (audioWrapper == null) return;
 		audioWrapper.release();
 		audioWrapper = null;
+		setDirectDelivery(true);
 	}
 }
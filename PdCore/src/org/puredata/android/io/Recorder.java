@@ -0,0 +1,286 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Recorder records the output of {@link AudioWrapper} to a 16bit WAV file, without any disk I/O on the audio thread.
+ * The audio thread only copies each output buffer into a preallocated sample ring; a writer thread drains the ring
+ * through a FileChannel in large chunks at block-aligned file offsets, into a file that is preallocated and grown
+ * ahead of time.  If the writer falls behind and the ring fills up, whole buffers are dropped and counted.  When the
+ * recording stops, the header is fixed up and the file is truncated to the recorded length.
+ *
+ * Alternatively, the writer thread compresses the recording into a FLAC file as the chunks come in (see
+ * {@link FlacWriter}), which takes about half the space and write bandwidth of a WAV file for typical material.
+ *
+ * Instances are created by {@link AudioWrapper#startRecording(File, float, boolean)}.
+ *
+ */
+public final class Recorder {
+
+	private static final int DATA_OFFSET = 4096;  // sample data starts at a block boundary
+	private static final int CHUNK_BYTES = 65536;
+	private static final int CHUNK_SAMPLES = CHUNK_BYTES / 2;
+	private static final long PARK_NANOS = 50000000;  // fallback in case a wakeup is missed
+	private final File path;
+	private final int sampleRate;
+	private final int channels;
+	private final RandomAccessFile file;  // WAV only
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final FlacWriter flac;  // FLAC only
+	private final short chunk[];
+	private final short ring[];
+	private final int mask;
+	private final long growBytes;
+	private long allocated;
+	private volatile long head = 0;  // number of samples written; only written by the audio thread
+	private volatile long tail = 0;  // number of samples on disk; only written by the writer thread
+	private long nextWakeup = CHUNK_SAMPLES;  // only used by the audio thread
+	private volatile long droppedFrames = 0;
+	private volatile boolean writing = false;  // audio thread is inside write()
+	private volatile boolean closing = false;  // audio thread stops accepting buffers
+	private volatile boolean done = false;  // writer thread writes what's left and finishes
+	private volatile IOException error = null;
+	private final Thread writer;
+
+	/**
+	 * Constructor; creates the file, preallocates it, and starts the writer thread
+	 *
+	 * @param path            WAV or FLAC file to write to
+	 * @param sampleRate      sample rate in Hz
+	 * @param channels        number of channels
+	 * @param bufferSeconds   length of the sample ring, i.e., how long the writer may stall without losing audio;
+	 *                            WAV files are preallocated and grown in steps of ten times this length
+	 * @param compress        true for a FLAC file, false for a WAV file
+	 * @throws IOException  if the file cannot be written
+	 */
+	Recorder(File path, int sampleRate, int channels, float bufferSeconds, boolean compress) throws IOException {
+		if (sampleRate <= 0 || channels <= 0 || bufferSeconds <= 0) {
+			throw new IllegalArgumentException("bad recorder parameters: " + sampleRate + ", " + channels + ", " + bufferSeconds);
+		}
+		this.path = path;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		int samples = (int) Math.min(1 << 24, Math.max(2 * CHUNK_SAMPLES, bufferSeconds * sampleRate * channels));
+		ring = new short[Integer.highestOneBit(samples - 1) << 1];
+		mask = ring.length - 1;
+		growBytes = 20L * ring.length;  // ten ring lengths of 16bit samples
+		if (compress) {
+			flac = new FlacWriter(path, sampleRate, channels);
+			chunk = new short[CHUNK_SAMPLES];
+			file = null;
+			channel = null;
+			buffer = null;
+		} else {
+			flac = null;
+			chunk = null;
+			buffer = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, DATA_OFFSET)).order(ByteOrder.LITTLE_ENDIAN);
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			try {
+				file.setLength(0);
+				allocated = DATA_OFFSET + growBytes;
+				file.setLength(allocated);
+				writeHeader(0);
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+		}
+		writer = new Thread() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		writer.start();
+	}
+
+	/**
+	 * @return file that this recorder writes to
+	 */
+	public File getFile() {
+		return path;
+	}
+
+	/**
+	 * @return sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return number of frames recorded so far, including frames that haven't reached the disk yet
+	 */
+	public long getFrames() {
+		return head / channels;
+	}
+
+	/**
+	 * @return number of frames dropped because the writer thread fell behind
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * Audio thread; copies a buffer of interleaved 16bit samples into the ring
+	 *
+	 * @param samples  samples
+	 * @param n        number of samples, a multiple of the number of channels
+	 */
+	void write(short samples[], int n) {
+		writing = true;
+		if (!closing) {
+			long h = head;
+			if (h + n - tail > ring.length) {
+				droppedFrames += n / channels;
+			} else {
+				int i = (int) (h & mask);
+				int k = Math.min(n, ring.length - i);
+				System.arraycopy(samples, 0, ring, i, k);
+				System.arraycopy(samples, k, ring, 0, n - k);
+				publish(h + n);
+			}
+		}
+		writing = false;
+	}
+
+	/**
+	 * Audio thread; converts a buffer of interleaved float samples to 16bit and copies it into the ring
+	 *
+	 * @param samples  samples
+	 * @param n        number of samples, a multiple of the number of channels
+	 */
+	void write(float samples[], int n) {
+		writing = true;
+		if (!closing) {
+			long h = head;
+			if (h + n - tail > ring.length) {
+				droppedFrames += n / channels;
+			} else {
+				for (int i = 0; i < n; i++) {
+					ring[(int) ((h + i) & mask)] = WavWriter.toShort(samples[i]);
+				}
+				publish(h + n);
+			}
+		}
+		writing = false;
+	}
+
+	// Wakes up the writer thread at most once per chunk.
+	private void publish(long h) {
+		head = h;
+		if (h < nextWakeup) return;
+		nextWakeup = h + CHUNK_SAMPLES;
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Stops recording; waits for the writer thread to drain the ring, fixes up the header, truncates the file, and
+	 * closes it.  The audio thread may still call {@link #write(short[], int)} concurrently; buffers that come in
+	 * after this method has been called are ignored.
+	 *
+	 * @throws IOException  if the writer thread failed at any point
+	 */
+	void close() throws IOException {
+		closing = true;
+		while (writing) Thread.yield();  // the audio thread is in the middle of a buffer; give it a moment
+		done = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (flac != null) {
+			flac.close();  // encodes the last block even after an error, so that the file stays valid
+		} else try {
+			if (error == null) {
+				long dataBytes = 2 * tail;
+				writeHeader(dataBytes);
+				file.setLength(DATA_OFFSET + dataBytes);
+			}
+		} finally {
+			file.close();
+		}
+		if (error != null) throw error;
+	}
+
+	// Writer thread; writes full chunks while recording, and whatever is left once the audio thread is done.
+	private void drain() {
+		try {
+			while (true) {
+				boolean last = done;
+				long available = head - tail;
+				if (available >= CHUNK_SAMPLES || (last && available > 0)) {
+					writeChunk((int) Math.min(available, CHUNK_SAMPLES));
+				} else if (last) {
+					return;
+				} else {
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+	}
+
+	private void writeChunk(int n) throws IOException {
+		long t = tail;
+		if (flac != null) {
+			for (int i = 0; i < n; i++) {
+				chunk[i] = ring[(int) ((t + i) & mask)];
+			}
+			flac.write(chunk, 0, n);
+			tail = t + n;
+			return;
+		}
+		long position = DATA_OFFSET + 2 * t;
+		if (position + 2 * n > allocated) {  // grow ahead of time, so that the file system can allocate contiguously
+			allocated += growBytes;
+			file.setLength(allocated);
+		}
+		buffer.clear();
+		for (int i = 0; i < n; i++) {
+			buffer.putShort(ring[(int) ((t + i) & mask)]);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+		tail = t + n;
+	}
+
+	private void writeHeader(long dataBytes) throws IOException {
+		buffer.clear();
+		WavWriter.writeHeader(buffer, sampleRate, channels, false, dataBytes, DATA_OFFSET);
+		buffer.flip();
+		long position = 0;
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+	}
+}
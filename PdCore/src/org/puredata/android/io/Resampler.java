@@ -0,0 +1,224 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+/**
+ *
+ * Resampler converts interleaved float samples from one sample rate to another with a polyphase bank of Kaiser-windowed
+ * sinc filters.  The bank is computed once, in the constructor; processing neither allocates nor locks, so that the
+ * audio thread can use it.
+ *
+ * If the ratio of the two rates, in lowest terms, has a numerator of at most {@link #MAX_PHASES}, e.g., 22050 to 48000
+ * (320/147) or 44100 to 48000 (160/147), every output sample has a filter of its own.  Otherwise the filter is
+ * interpolated linearly between the two nearest of {@link #MAX_PHASES} phases.
+ *
+ * The quality tiers trade CPU for stopband attenuation and passband width:
+ * {@link #QUALITY_LOW} (8 taps, about 45dB, with some rolloff at the top of the passband), {@link #QUALITY_MEDIUM}
+ * (24 taps, about 75dB), and {@link #QUALITY_HIGH} (64 taps, about 100dB).  When downsampling, the filters grow in
+ * proportion to the ratio, so that the cutoff moves down to the new Nyquist frequency without widening the transition
+ * band.
+ *
+ */
+public final class Resampler {
+
+	public static final int QUALITY_LOW = 0;
+	public static final int QUALITY_MEDIUM = 1;
+	public static final int QUALITY_HIGH = 2;
+	public static final int MAX_PHASES = 512;
+	private static final int TAPS[] = { 8, 24, 64 };
+	private static final double PASSBAND[] = { 0.80, 0.90, 0.95 };  // cutoff relative to the lower Nyquist frequency
+	private static final double BETA[] = { 4.0, 7.0, 9.5 };  // Kaiser window parameter
+	private final int inRate;
+	private final int outRate;
+	private final int channels;
+	private final int maxInputFrames;
+	private final int up;    // output frames per 'down' input frames, in lowest terms
+	private final int down;
+	private final int phases;
+	private final int taps;
+	private final float bank[];  // (phases + 1) filters of 'taps' coefficients each
+	private final float history[];  // interleaved input, starting 'taps - 1' frames before the current frame
+	private int filled;  // frames in the history
+	private int base;    // frame of the history at which the filter of the next output sample ends
+	private int phase;   // fractional position of the next output sample, in units of 1/up input frames
+
+	/**
+	 * Constructor
+	 *
+	 * @param inRate          input sample rate in Hz
+	 * @param outRate         output sample rate in Hz
+	 * @param channels        number of interleaved channels
+	 * @param maxInputFrames  largest number of frames per call to {@link #process(float[], int, int, float[])}
+	 * @param quality         one of {@link #QUALITY_LOW}, {@link #QUALITY_MEDIUM}, or {@link #QUALITY_HIGH}
+	 */
+	public Resampler(int inRate, int outRate, int channels, int maxInputFrames, int quality) {
+		if (inRate <= 0 || outRate <= 0 || channels <= 0 || maxInputFrames <= 0) {
+			throw new IllegalArgumentException("bad resampler parameters: " + inRate + ", " + outRate + ", " + channels +
+					", " + maxInputFrames);
+		}
+		if (quality < QUALITY_LOW || quality > QUALITY_HIGH) {
+			throw new IllegalArgumentException("unknown resampler quality: " + quality);
+		}
+		this.inRate = inRate;
+		this.outRate = outRate;
+		this.channels = channels;
+		this.maxInputFrames = maxInputFrames;
+		int g = gcd(inRate, outRate);
+		up = outRate / g;
+		down = inRate / g;
+		phases = Math.min(up, MAX_PHASES);
+		double scale = Math.min(1.0, (double) up / down);  // cutoff relative to the input Nyquist frequency
+		taps = 2 * (int) Math.ceil(TAPS[quality] / (2 * scale));
+		bank = new float[(phases + 1) * taps];
+		double cutoff = PASSBAND[quality] * scale;
+		double beta = BETA[quality];
+		double norm = besselI0(beta);
+		for (int p = 0; p <= phases; p++) {
+			double sum = 0;
+			for (int k = 0; k < taps; k++) {
+				double t = k - (taps / 2 - 1) - (double) p / phases;  // distance from the output sample in input frames
+				double x = 2 * t / taps;
+				double w = (x * x < 1) ? besselI0(beta * Math.sqrt(1 - x * x)) / norm : 0;
+				double h = (t == 0) ? cutoff : Math.sin(Math.PI * cutoff * t) / (Math.PI * t);
+				bank[p * taps + k] = (float) (h * w);
+				sum += h * w;
+			}
+			for (int k = 0; k < taps; k++) {
+				bank[p * taps + k] /= sum;  // unity gain at DC for every phase
+			}
+		}
+		history = new float[channels * (taps + maxInputFrames)];
+		reset();
+	}
+
+	/**
+	 * Forgets all input; the next output sample lines up with the next input sample
+	 */
+	public void reset() {
+		for (int i = 0; i < (taps - 1) * channels; i++) {
+			history[i] = 0;
+		}
+		filled = taps - 1;
+		base = taps / 2 - 1;
+		phase = 0;
+	}
+
+	/**
+	 * @return input sample rate in Hz
+	 */
+	public int getInputRate() {
+		return inRate;
+	}
+
+	/**
+	 * @return output sample rate in Hz
+	 */
+	public int getOutputRate() {
+		return outRate;
+	}
+
+	/**
+	 * @return number of filter taps per output sample and channel
+	 */
+	public int getTaps() {
+		return taps;
+	}
+
+	/**
+	 * @return delay of the output relative to the input, in input frames
+	 */
+	public int getLatencyFrames() {
+		return taps / 2;
+	}
+
+	/**
+	 * @param inputFrames  number of input frames per call
+	 * @return largest number of output frames that one call with the given number of input frames may produce
+	 */
+	public int getMaxOutputFrames(int inputFrames) {
+		return (int) (((long) inputFrames * up + down - 1) / down) + 1;
+	}
+
+	/**
+	 * Converts a buffer of interleaved samples; the output lags behind the input by {@link #getLatencyFrames()}
+	 *
+	 * @param input        input samples
+	 * @param offset       offset of the first input sample
+	 * @param inputFrames  number of input frames, at most the maximum given to the constructor
+	 * @param output       output samples; must have room for {@link #getMaxOutputFrames(int)} frames
+	 * @return number of output frames
+	 */
+	public int process(float input[], int offset, int inputFrames, float output[]) {
+		if (inputFrames > maxInputFrames) {
+			throw new IllegalArgumentException("too many input frames: " + inputFrames);
+		}
+		System.arraycopy(input, offset, history, filled * channels, inputFrames * channels);
+		filled += inputFrames;
+		int n = 0;
+		while (base + taps / 2 < filled) {
+			int row, next;
+			float frac;
+			if (phases == up) {
+				row = phase;
+				next = row;
+				frac = 0;
+			} else {
+				long pos = (long) phase * phases;
+				row = (int) (pos / up);
+				next = row + 1;
+				frac = (float) (pos - (long) row * up) / up;
+			}
+			int start = (base - (taps / 2 - 1)) * channels;
+			int a = row * taps, b = next * taps;
+			for (int c = 0; c < channels; c++) {
+				float sum = 0;
+				if (frac == 0) {
+					for (int k = 0, j = start + c; k < taps; k++, j += channels) {
+						sum += history[j] * bank[a + k];
+					}
+				} else {
+					for (int k = 0, j = start + c; k < taps; k++, j += channels) {
+						float h = bank[a + k];
+						sum += history[j] * (h + frac * (bank[b + k] - h));
+					}
+				}
+				output[n * channels + c] = sum;
+			}
+			n++;
+			phase += down;
+			base += phase / up;
+			phase %= up;
+		}
+		int discard = Math.min(base - (taps / 2 - 1), filled);  // frames that no future output sample depends on
+		if (discard > 0) {
+			System.arraycopy(history, discard * channels, history, 0, (filled - discard) * channels);
+			filled -= discard;
+			base -= discard;
+		}
+		return n;
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int r = a % b;
+			a = b;
+			b = r;
+		}
+		return a;
+	}
+
+	private static double besselI0(double x) {
+		double sum = 1, term = 1;
+		for (int k = 1; k < 50; k++) {
+			term *= (x / (2 * k)) * (x / (2 * k));
+			sum += term;
+			if (term < 1e-12 * sum) break;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+/**
+ *
+ * ResamplingBackend runs another {@link AudioBackend}, usually the audio device, at a sample rate of its own, e.g., the
+ * native rate of the device, while the audio thread runs at the sample rate that it was opened with, e.g., the rate
+ * that a patch was designed for.  Output is converted on its way to the device and input on its way from the device,
+ * with a {@link Resampler} each, so that the system mixer doesn't need to resample behind our back.
+ *
+ * Queue sizes and the clock of the device are converted to frames at the rate of the audio thread, so that the
+ * latency control of {@link AudioWrapper} works as usual.  Since output buffers are converted as they come in, the
+ * device sees buffers of varying size; input is buffered until there is a full buffer at the rate of the audio thread.
+ *
+ */
+public class ResamplingBackend implements AudioBackend {
+
+	private final AudioBackend backend;
+	private final int deviceRate;
+	private final int quality;
+	private int sampleRate;
+	private int inChannels;
+	private int outChannels;
+	private int framesPerBuffer;
+	private boolean floatSamples;
+	private Resampler outResampler = null;
+	private Resampler inResampler = null;
+	private float outFloats[];       // output at the rate of the audio thread, if it uses 16bit samples
+	private float deviceOut[];       // output at the rate of the device
+	private short deviceOutShorts[];
+	private float deviceIn[];        // input at the rate of the device
+	private short deviceInShorts[];
+	private float inConverted[];     // input of one device buffer, converted to the rate of the audio thread
+	private float inFifo[];          // input at the rate of the audio thread
+	private int inFifoFrames;
+
+	/**
+	 * Constructor
+	 *
+	 * @param backend     backend to run at the given rate; it is opened, started, and released along with this one
+	 * @param deviceRate  sample rate of the backend in Hz
+	 * @param quality     quality of the conversion, e.g., {@link Resampler#QUALITY_MEDIUM}
+	 */
+	public ResamplingBackend(AudioBackend backend, int deviceRate, int quality) {
+		if (deviceRate <= 0) {
+			throw new IllegalArgumentException("bad device sample rate: " + deviceRate);
+		}
+		if (quality < Resampler.QUALITY_LOW || quality > Resampler.QUALITY_HIGH) {
+			throw new IllegalArgumentException("unknown resampler quality: " + quality);
+		}
+		this.backend = backend;
+		this.deviceRate = deviceRate;
+		this.quality = quality;
+	}
+
+	/**
+	 * @return sample rate of the wrapped backend in Hz
+	 */
+	public int getDeviceSampleRate() {
+		return deviceRate;
+	}
+
+	/**
+	 * @return wrapped backend
+	 */
+	public AudioBackend getBackend() {
+		return backend;
+	}
+
+	@Override
+	public void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames, boolean preferFloat)
+			throws IOException {
+		if (sampleRate <= 0 || outChannels <= 0 || framesPerBuffer <= 0) {
+			throw new IOException("bad parameters; sr: " + sampleRate + ", ch: " + outChannels + ", bufSize: " + framesPerBuffer);
+		}
+		this.sampleRate = sampleRate;
+		this.inChannels = inChannels;
+		this.outChannels = outChannels;
+		this.framesPerBuffer = framesPerBuffer;
+		int deviceFrames = toDevice(framesPerBuffer);
+		backend.open(deviceRate, inChannels, outChannels, deviceFrames, toDevice(maxFrames), preferFloat);
+		floatSamples = backend.usesFloatSamples();
+		outResampler = new Resampler(sampleRate, deviceRate, outChannels, framesPerBuffer, quality);
+		int maxOut = outResampler.getMaxOutputFrames(framesPerBuffer);
+		outFloats = floatSamples ? null : new float[outChannels * framesPerBuffer];
+		deviceOut = new float[outChannels * maxOut];
+		deviceOutShorts = floatSamples ? null : new short[outChannels * maxOut];
+		if (inChannels > 0) {
+			inResampler = new Resampler(deviceRate, sampleRate, inChannels, deviceFrames, quality);
+			deviceIn = new float[inChannels * deviceFrames];
+			deviceInShorts = floatSamples ? null : new short[inChannels * deviceFrames];
+			int maxIn = inResampler.getMaxOutputFrames(deviceFrames);
+			inConverted = new float[inChannels * maxIn];
+			inFifo = new float[inChannels * (framesPerBuffer + maxIn)];
+		}
+	}
+
+	// Converts a number of frames at the rate of the audio thread to frames at the rate of the device, rounding up.
+	private int toDevice(int frames) {
+		return (int) (((long) frames * deviceRate + sampleRate - 1) / sampleRate);
+	}
+
+	private int fromDevice(long frames) {
+		return (int) (frames * sampleRate / deviceRate);
+	}
+
+	@Override
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	@Override
+	public int getMinQueueFrames() {
+		return (int) (((long) backend.getMinQueueFrames() * sampleRate + deviceRate - 1) / deviceRate);
+	}
+
+	@Override
+	public int getMaxQueueFrames() {
+		return fromDevice(backend.getMaxQueueFrames());
+	}
+
+	@Override
+	public int setQueueFrames(int frames) {
+		int actual = backend.setQueueFrames(toDevice(frames));
+		return (actual < 0) ? actual : fromDevice(actual);
+	}
+
+	@Override
+	public void start() {
+		outResampler.reset();
+		if (inResampler != null) inResampler.reset();
+		inFifoFrames = 0;
+		backend.start();
+	}
+
+	@Override
+	public void stop() {
+		backend.stop();
+	}
+
+	@Override
+	public void release() {
+		backend.release();
+	}
+
+	@Override
+	public boolean read(short buffer[]) {
+		if (!fillInput()) return false;
+		for (int i = 0; i < buffer.length; i++) {
+			buffer[i] = WavWriter.toShort(inFifo[i]);
+		}
+		consumeInput();
+		return true;
+	}
+
+	@Override
+	public boolean read(float buffer[]) {
+		if (!fillInput()) return false;
+		System.arraycopy(inFifo, 0, buffer, 0, inChannels * framesPerBuffer);
+		consumeInput();
+		return true;
+	}
+
+	// Reads and converts device buffers until there is a full buffer of input at the rate of the audio thread; input
+	// that arrives while the fifo is short of a buffer stays in the fifo for the next read.
+	private boolean fillInput() {
+		if (inResampler == null) return false;
+		while (inFifoFrames < framesPerBuffer) {
+			if (floatSamples) {
+				if (!backend.read(deviceIn)) return false;
+			} else {
+				if (!backend.read(deviceInShorts)) return false;
+				for (int i = 0; i < deviceInShorts.length; i++) {
+					deviceIn[i] = deviceInShorts[i] * (1.0f / 32768.0f);
+				}
+			}
+			int n = inResampler.process(deviceIn, 0, deviceIn.length / inChannels, inConverted);
+			System.arraycopy(inConverted, 0, inFifo, inFifoFrames * inChannels, n * inChannels);
+			inFifoFrames += n;
+		}
+		return true;
+	}
+
+	private void consumeInput() {
+		int rest = inFifoFrames - framesPerBuffer;
+		System.arraycopy(inFifo, framesPerBuffer * inChannels, inFifo, 0, rest * inChannels);
+		inFifoFrames = rest;
+	}
+
+	@Override
+	public int write(short buffer[], int offset, int size) {
+		int frames = size / outChannels;
+		for (int i = 0; i < size; i++) {
+			outFloats[i] = buffer[offset + i] * (1.0f / 32768.0f);
+		}
+		int n = outResampler.process(outFloats, 0, frames, deviceOut) * outChannels;
+		for (int i = 0; i < n; i++) {
+			deviceOutShorts[i] = WavWriter.toShort(deviceOut[i]);
+		}
+		int err = (n > 0) ? backend.write(deviceOutShorts, 0, n) : 0;
+		return (err < 0) ? err : size;
+	}
+
+	@Override
+	public int write(float buffer[], int offset, int size) {
+		int n = outResampler.process(buffer, offset, size / outChannels, deviceOut) * outChannels;
+		int err = (n > 0) ? backend.write(deviceOut, 0, n) : 0;
+		return (err < 0) ? err : size;
+	}
+
+	@Override
+	public long getFramesPlayed() {
+		return backend.getFramesPlayed() * sampleRate / deviceRate;
+	}
+
+	@Override
+	public int getUnderrunCount() {
+		return backend.getUnderrunCount();
+	}
+
+	@Override
+	public long getDroppedInput() {
+		return backend.getDroppedInput();
+	}
+}
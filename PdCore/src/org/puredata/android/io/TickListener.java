@@ -0,0 +1,26 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+/**
+ *
+ * TickListener is the interface for components that feed Pure Data on the audio thread, once per tick, e.g., from
+ * mailboxes that other threads write to; see {@link PdAudio#addTickListener(TickListener)}.
+ *
+ */
+public interface TickListener {
+
+	/**
+	 * Invoked on the audio thread right before Pure Data renders a tick, after queued commands have been delivered;
+	 * implementations may call PdBase without contention, but they must not block; commands that they send through
+	 * {@link PdAudio#getCommandQueue()} are delivered before the tick as well
+	 *
+	 * @param frame  frame of the audio clock at which the tick starts
+	 */
+	void onTick(long frame);
+}
@@ -20,6 +20,8 @@ import org.puredata.android.utils.Properties;
 public final class VersionedAudioFormat {
 
 	private static final boolean hasEclair = Properties.version >= 5;
+	private static final boolean hasMarshmallow = Properties.version >= 23;
+	private static final boolean hasNougat = Properties.version >= 24;
 	
 	private VersionedAudioFormat() {
 		// do nothing
@@ -74,6 +76,96 @@ public final class VersionedAudioFormat {
 		}
 	}
 	
+	private static class FormatMarshmallow {
+
+		static {
+			Log.i("Pd Version", "loading class for Marshmallow");
+		}
+
+		static int write(AudioTrack track, float buffer[], int offset, int size) {
+			return track.write(buffer, offset, size, AudioTrack.WRITE_BLOCKING);
+		}
+
+		static int read(AudioRecord rec, float buffer[], int offset, int size) {
+			return rec.read(buffer, offset, size, AudioRecord.READ_BLOCKING);
+		}
+	}
+
+	private static class FormatNougat {
+
+		static {
+			Log.i("Pd Version", "loading class for Nougat");
+		}
+
+		static int setBufferSizeInFrames(AudioTrack track, int frames) {
+			return track.setBufferSizeInFrames(frames);
+		}
+
+		static int getUnderrunCount(AudioTrack track) {
+			return track.getUnderrunCount();
+		}
+	}
+
+	/**
+	 * @return true if and only if the effective buffer size of {@link AudioTrack} can be changed without recreating it
+	 */
+	public static boolean hasBufferSizeControl() {
+		return hasNougat;
+	}
+
+	/**
+	 * Limits the amount of data that an {@link AudioTrack} will queue up
+	 * 
+	 * @return the actual buffer size in frames, or a negative value if this device does not support buffer size control
+	 */
+	public static int setBufferSizeInFrames(AudioTrack track, int frames) {
+		return hasNougat ? FormatNougat.setBufferSizeInFrames(track, frames) : -1;
+	}
+
+	/**
+	 * @return number of underruns reported by the {@link AudioTrack}, or a negative value if the device cannot tell
+	 */
+	public static int getUnderrunCount(AudioTrack track) {
+		return hasNougat ? FormatNougat.getUnderrunCount(track) : -1;
+	}
+
+	/**
+	 * @return true if and only if {@link AudioTrack} and {@link AudioRecord} accept float samples on this device
+	 */
+	public static boolean hasFloatSupport() {
+		return hasMarshmallow;
+	}
+
+	/**
+	 * @param floatSamples  flag indicating float rather than 16bit samples
+	 * @return the corresponding {@link AudioFormat} encoding
+	 */
+	public static int getEncoding(boolean floatSamples) {
+		return floatSamples ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+	}
+
+	/**
+	 * @param floatSamples  flag indicating float rather than 16bit samples
+	 * @return size of one sample in bytes
+	 */
+	public static int getBytesPerSample(boolean floatSamples) {
+		return floatSamples ? 4 : 2;
+	}
+
+	/**
+	 * Blocking write of float samples; only call this if {@link #hasFloatSupport()} returns true
+	 */
+	public static int write(AudioTrack track, float buffer[], int offset, int size) {
+		return FormatMarshmallow.write(track, buffer, offset, size);
+	}
+
+	/**
+	 * Blocking read of float samples; only call this if {@link #hasFloatSupport()} returns true
+	 */
+	public static int read(AudioRecord rec, float buffer[], int offset, int size) {
+		return FormatMarshmallow.read(rec, buffer, offset, size);
+	}
+
 	public static int getInFormat(int inChannels) {
 		return hasEclair ? FormatEclair.getInFormat(inChannels) : FormatCupcake.getInFormat(inChannels); // crucial: lazy class loading
 	}
@@ -0,0 +1,225 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ *
+ * WavFileBackend is an {@link AudioBackend} that writes its output to a WAV file and reads its input from another
+ * WAV file.  Either file may be omitted, in which case output is discarded or input is silent.  Input channels are
+ * mapped onto the channels of the input file round robin, and the input falls silent when the file runs out.
+ *
+ * The backend runs as fast as the audio thread can go, i.e., its clock advances with every buffer written.
+ *
+ */
+public class WavFileBackend implements AudioBackend {
+
+	private static final String TAG = "WavFileBackend";
+	private final File outputFile;
+	private final File inputFile;
+	private WavWriter writer = null;
+	private WavReader reader = null;
+	private int inChannels;
+	private int outChannels;
+	private int maxQueueFrames;
+	private boolean floatSamples;
+	private short fileBuf[];
+	private float fileBufFloat[];
+	private long framesWritten;
+
+	/**
+	 * Constructor
+	 *
+	 * @param outputFile  WAV file to write output to, or null to discard output
+	 * @param inputFile   WAV file to read input from, or null for silent input
+	 */
+	public WavFileBackend(File outputFile, File inputFile) {
+		this.outputFile = outputFile;
+		this.inputFile = inputFile;
+	}
+
+	@Override
+	public void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxFrames, boolean preferFloat)
+			throws IOException {
+		if (sampleRate <= 0 || outChannels <= 0 || framesPerBuffer <= 0) {
+			throw new IOException("bad parameters; sr: " + sampleRate + ", ch: " + outChannels + ", bufSize: " + framesPerBuffer);
+		}
+		this.inChannels = inChannels;
+		this.outChannels = outChannels;
+		floatSamples = preferFloat;
+		maxQueueFrames = Math.max(maxFrames, 2 * framesPerBuffer);
+		if (inputFile != null && inChannels > 0) {
+			reader = new WavReader(inputFile);
+			if (reader.getSampleRate() != sampleRate) {
+				int sr = reader.getSampleRate();
+				release();
+				throw new IOException("sample rate of input file (" + sr + ") does not match sample rate (" + sampleRate + ")");
+			}
+			int fileSamples = reader.getChannels() * framesPerBuffer;
+			if (floatSamples) {
+				fileBufFloat = new float[fileSamples];
+			} else {
+				fileBuf = new short[fileSamples];
+			}
+		}
+		if (outputFile != null) {
+			try {
+				writer = new WavWriter(outputFile, sampleRate, outChannels, floatSamples);
+			} catch (IOException e) {
+				release();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public boolean usesFloatSamples() {
+		return floatSamples;
+	}
+
+	@Override
+	public int getMinQueueFrames() {
+		return 0;
+	}
+
+	@Override
+	public int getMaxQueueFrames() {
+		return maxQueueFrames;
+	}
+
+	@Override
+	public int setQueueFrames(int frames) {
+		return Math.min(frames, maxQueueFrames);
+	}
+
+	@Override
+	public void start() {
+		framesWritten = 0;
+	}
+
+	@Override
+	public void stop() {
+		// do nothing; files stay open until the backend is released
+	}
+
+	@Override
+	public void release() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+			writer = null;
+		}
+		if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+			reader = null;
+		}
+	}
+
+	@Override
+	public boolean read(short buffer[]) {
+		int n = 0;
+		if (reader != null) {
+			try {
+				n = reader.read(fileBuf, 0, fileBuf.length);
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+		}
+		if (n <= 0) {
+			Arrays.fill(buffer, (short) 0);
+			return true;
+		}
+		Arrays.fill(fileBuf, n, fileBuf.length, (short) 0);
+		int fileChannels = reader.getChannels();
+		for (int i = 0, j = 0; i < buffer.length; i += inChannels, j += fileChannels) {
+			for (int c = 0; c < inChannels; c++) {
+				buffer[i + c] = fileBuf[j + c % fileChannels];
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean read(float buffer[]) {
+		int n = 0;
+		if (reader != null) {
+			try {
+				n = reader.read(fileBufFloat, 0, fileBufFloat.length);
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+		}
+		if (n <= 0) {
+			Arrays.fill(buffer, 0.0f);
+			return true;
+		}
+		Arrays.fill(fileBufFloat, n, fileBufFloat.length, 0.0f);
+		int fileChannels = reader.getChannels();
+		for (int i = 0, j = 0; i < buffer.length; i += inChannels, j += fileChannels) {
+			for (int c = 0; c < inChannels; c++) {
+				buffer[i + c] = fileBufFloat[j + c % fileChannels];
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int write(short buffer[], int offset, int size) {
+		if (writer != null) {
+			try {
+				writer.write(buffer, offset, size);
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+				return -1;
+			}
+		}
+		framesWritten += size / outChannels;
+		return size;
+	}
+
+	@Override
+	public int write(float buffer[], int offset, int size) {
+		if (writer != null) {
+			try {
+				writer.write(buffer, offset, size);
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+				return -1;
+			}
+		}
+		framesWritten += size / outChannels;
+		return size;
+	}
+
+	@Override
+	public long getFramesPlayed() {
+		return framesWritten;
+	}
+
+	@Override
+	public int getUnderrunCount() {
+		return -1;
+	}
+
+	@Override
+	public long getDroppedInput() {
+		return 0;
+	}
+}
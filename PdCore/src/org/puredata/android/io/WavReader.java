@@ -0,0 +1,197 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * WavReader reads interleaved samples from a WAV file with 16bit PCM or 32bit float samples.  Samples are delivered
+ * as either type, regardless of the format of the file.
+ *
+ */
+public class WavReader {
+
+	private static final int CHUNK_BYTES = 16384;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final int sampleRate;
+	private final int channels;
+	private final boolean floatSamples;
+	private final long dataStart;
+	private final long frames;
+	private long samplesLeft;
+
+	/**
+	 * Constructor; opens the file and parses its header
+	 *
+	 * @param file  WAV file to read from
+	 * @throws IOException  if the file cannot be read or is not a supported WAV file
+	 */
+	public WavReader(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "r");
+		channel = this.file.getChannel();
+		buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(header, 0);
+			if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {  // "RIFF", "WAVE"
+				throw new IOException("not a WAV file: " + file);
+			}
+			int format = -1, ch = 0, sr = 0, bits = 0;
+			long pos = 12, dataPos = -1, dataBytes = 0;
+			ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			while (pos + 8 <= channel.size()) {
+				chunk.clear().limit(8);
+				readFully(chunk, pos);
+				int id = chunk.getInt(0);
+				long size = chunk.getInt(4) & 0xffffffffL;
+				if (id == 0x20746d66) {  // "fmt "
+					chunk.clear();
+					readFully(chunk, pos + 8);
+					format = chunk.getShort(0) & 0xffff;
+					ch = chunk.getShort(2) & 0xffff;
+					sr = chunk.getInt(4);
+					bits = chunk.getShort(14) & 0xffff;
+				} else if (id == 0x61746164) {  // "data"
+					dataPos = pos + 8;
+					dataBytes = Math.min(size, channel.size() - dataPos);  // size may be bogus if the writer never finished
+					break;
+				}
+				pos += 8 + size + (size & 1);
+			}
+			if (format == 0xfffe && bits == 16) format = 1;  // WAVE_FORMAT_EXTENSIBLE; only the bit depth matters here
+			if (format == 0xfffe && bits == 32) format = 3;
+			if (dataPos < 0 || ch <= 0 || sr <= 0 || !((format == 1 && bits == 16) || (format == 3 && bits == 32))) {
+				throw new IOException("unsupported WAV format (16bit PCM or 32bit float only): " + file);
+			}
+			sampleRate = sr;
+			channels = ch;
+			floatSamples = (format == 3);
+			dataStart = dataPos;
+			frames = dataBytes / (channels * (floatSamples ? 4 : 2));
+			samplesLeft = frames * channels;
+			channel.position(dataStart);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+		buffer.limit(0);
+	}
+
+	/**
+	 * @return sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return total number of frames in the file
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return true if and only if the file contains float samples
+	 */
+	public boolean hasFloatSamples() {
+		return floatSamples;
+	}
+
+	/**
+	 * Reads interleaved 16bit samples
+	 *
+	 * @param samples  sample buffer
+	 * @param offset   offset of the first sample
+	 * @param size     maximum number of samples to read
+	 * @return number of samples read, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(short samples[], int offset, int size) throws IOException {
+		int n = prepare(size);
+		for (int i = 0; i < n; i++) {
+			if (!fill()) return (i > 0) ? i : -1;
+			samples[offset + i] = floatSamples ? WavWriter.toShort(buffer.getFloat()) : buffer.getShort();
+			samplesLeft--;
+		}
+		return (n > 0) ? n : -1;
+	}
+
+	/**
+	 * Reads interleaved float samples
+	 *
+	 * @param samples  sample buffer
+	 * @param offset   offset of the first sample
+	 * @param size     maximum number of samples to read
+	 * @return number of samples read, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	public int read(float samples[], int offset, int size) throws IOException {
+		int n = prepare(size);
+		for (int i = 0; i < n; i++) {
+			if (!fill()) return (i > 0) ? i : -1;
+			samples[offset + i] = floatSamples ? buffer.getFloat() : buffer.getShort() * (1.0f / 32768.0f);
+			samplesLeft--;
+		}
+		return (n > 0) ? n : -1;
+	}
+
+	/**
+	 * Moves to the beginning of the sample data
+	 *
+	 * @throws IOException
+	 */
+	public void rewind() throws IOException {
+		channel.position(dataStart);
+		buffer.limit(0);
+		samplesLeft = frames * channels;
+	}
+
+	/**
+	 * Closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private int prepare(int size) {
+		return (int) Math.min(size, samplesLeft);
+	}
+
+	private boolean fill() throws IOException {
+		if (buffer.remaining() >= 4 || (!floatSamples && buffer.remaining() >= 2)) return true;
+		buffer.compact();
+		int n = channel.read(buffer);
+		buffer.flip();
+		return n >= 0 || buffer.remaining() >= (floatSamples ? 4 : 2);
+	}
+
+	private void readFully(ByteBuffer b, long pos) throws IOException {
+		while (b.hasRemaining()) {
+			int n = channel.read(b, pos + b.position());
+			if (n < 0) throw new IOException("unexpected end of WAV file");
+		}
+	}
+}
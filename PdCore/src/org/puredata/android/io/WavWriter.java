@@ -0,0 +1,205 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * WavWriter writes interleaved samples to a WAV file, either as 16bit PCM or as 32bit float.  Samples of either
+ * type are accepted and converted as needed.  The header is written up front and fixed up when the file is closed.
+ * Samples are collected in a buffer and go to the file whenever the buffer fills up, so that small writes don't each
+ * cost a system call; the rest goes out when the file is closed.
+ *
+ */
+public class WavWriter {
+
+	static final int HEADER_SIZE = 44;
+	private static final int CHUNK_BYTES = 16384;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final int sampleRate;
+	private final int channels;
+	private final boolean floatSamples;
+	private long samplesWritten = 0;
+
+	/**
+	 * Constructor; creates the file, or truncates it if it already exists
+	 *
+	 * @param file          WAV file to write to
+	 * @param sampleRate    sample rate in Hz
+	 * @param channels      number of channels
+	 * @param floatSamples  true for 32bit float samples, false for 16bit PCM samples
+	 * @throws IOException  if the file cannot be written
+	 */
+	public WavWriter(File file, int sampleRate, int channels, boolean floatSamples) throws IOException {
+		if (sampleRate <= 0 || channels <= 0) {
+			throw new IllegalArgumentException("bad WAV parameters; sr: " + sampleRate + ", ch: " + channels);
+		}
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.floatSamples = floatSamples;
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		channel = this.file.getChannel();
+		buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		writeHeader(buffer, sampleRate, channels, floatSamples, 0);
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @return number of frames written so far
+	 */
+	public long getFrames() {
+		return samplesWritten / channels;
+	}
+
+	/**
+	 * @return sample rate in Hz
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Writes interleaved 16bit samples
+	 *
+	 * @param samples  sample buffer
+	 * @param offset   offset of the first sample
+	 * @param size     number of samples; should be a multiple of the number of channels
+	 * @throws IOException
+	 */
+	public void write(short samples[], int offset, int size) throws IOException {
+		int end = offset + size;
+		for (int i = offset; i < end; i++) {
+			if (buffer.remaining() < 4) flush();
+			if (floatSamples) {
+				buffer.putFloat(samples[i] * (1.0f / 32768.0f));
+			} else {
+				buffer.putShort(samples[i]);
+			}
+		}
+		samplesWritten += size;
+	}
+
+	/**
+	 * Writes interleaved float samples
+	 *
+	 * @param samples  sample buffer; values range from -1 to 1
+	 * @param offset   offset of the first sample
+	 * @param size     number of samples; should be a multiple of the number of channels
+	 * @throws IOException
+	 */
+	public void write(float samples[], int offset, int size) throws IOException {
+		int end = offset + size;
+		for (int i = offset; i < end; i++) {
+			if (buffer.remaining() < 4) flush();
+			if (floatSamples) {
+				buffer.putFloat(samples[i]);
+			} else {
+				buffer.putShort(toShort(samples[i]));
+			}
+		}
+		samplesWritten += size;
+	}
+
+	/**
+	 * Writes any buffered samples, fixes up the header, and closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+			buffer.clear();
+			writeHeader(buffer, sampleRate, channels, floatSamples, samplesWritten * (floatSamples ? 4 : 2));
+			buffer.flip();
+			channel.position(0);
+			while (buffer.hasRemaining()) channel.write(buffer);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	static short toShort(float x) {
+		return (short) (x >= 1.0f ? Short.MAX_VALUE : x <= -1.0f ? Short.MIN_VALUE : x * 32767.0f);
+	}
+
+	/**
+	 * Puts a canonical 44-byte WAV header into the given little-endian buffer
+	 *
+	 * @param buffer        target buffer
+	 * @param sampleRate    sample rate in Hz
+	 * @param channels      number of channels
+	 * @param floatSamples  true for 32bit float samples, false for 16bit PCM samples
+	 * @param dataBytes     size of the sample data in bytes
+	 */
+	static void writeHeader(ByteBuffer buffer, int sampleRate, int channels, boolean floatSamples, long dataBytes) {
+		writeHeader(buffer, sampleRate, channels, floatSamples, dataBytes, HEADER_SIZE);
+	}
+
+	/**
+	 * Puts a WAV header into the given little-endian buffer, padded with a JUNK chunk so that the sample data starts
+	 * at the given offset, e.g., at a block boundary of the file system
+	 *
+	 * @param buffer        target buffer
+	 * @param sampleRate    sample rate in Hz
+	 * @param channels      number of channels
+	 * @param floatSamples  true for 32bit float samples, false for 16bit PCM samples
+	 * @param dataBytes     size of the sample data in bytes
+	 * @param dataOffset    offset of the sample data; either 44 or at least 52, since the JUNK chunk takes 8 bytes
+	 */
+	static void writeHeader(ByteBuffer buffer, int sampleRate, int channels, boolean floatSamples, long dataBytes,
+			int dataOffset) {
+		if (dataOffset != HEADER_SIZE && (dataOffset < HEADER_SIZE + 8 || (dataOffset & 1) != 0)) {
+			throw new IllegalArgumentException("bad data offset: " + dataOffset);
+		}
+		int bytesPerSample = floatSamples ? 4 : 2;
+		long riffBytes = Math.min(0xffffffffL, dataBytes + dataOffset - 8);
+		buffer.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+		buffer.putInt((int) riffBytes);
+		buffer.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+		buffer.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+		buffer.putInt(16);
+		buffer.putShort((short) (floatSamples ? 3 : 1));  // 3: IEEE float, 1: PCM
+		buffer.putShort((short) channels);
+		buffer.putInt(sampleRate);
+		buffer.putInt(sampleRate * channels * bytesPerSample);
+		buffer.putShort((short) (channels * bytesPerSample));
+		buffer.putShort((short) (8 * bytesPerSample));
+		if (dataOffset > HEADER_SIZE) {
+			int junk = dataOffset - HEADER_SIZE - 8;
+			buffer.put((byte) 'J').put((byte) 'U').put((byte) 'N').put((byte) 'K');
+			buffer.putInt(junk);
+			for (int i = 0; i < junk; i++) buffer.put((byte) 0);
+		}
+		buffer.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+		buffer.putInt((int) Math.min(0xffffffffL, dataBytes));
+	}
+}
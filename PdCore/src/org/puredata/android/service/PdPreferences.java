@@ -8,6 +8,7 @@
 package org.puredata.android.service;
 
 import org.puredata.android.io.AudioParameters;
+import org.puredata.android.io.LatencyCalibrator;
 
 /**
  * 
@@ -19,6 +20,9 @@ import org.puredata.android.io.AudioParameters;
  */
 public class PdPreferences extends PreferenceActivity {
 
+	private static final String MEASURED_LATENCY = "pd_measured_latency_";
+	private static final String MEASURED_STDDEV = "pd_measured_latency_stddev_";
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -32,11 +36,13 @@ public class PdPreferences extends PreferenceActivity {
 	}
 	
 	/**
-	 * If no preferences are available, initialize preferences with defaults suggested by {@link AudioParameters}
+	 * If no preferences are available, initialize preferences with defaults suggested by {@link AudioParameters},
+	 * i.e., with cached results of probing the device
 	 * 
 	 * @param context  current application context
 	 */
 	public static void initPreferences(Context context) {
+		AudioParameters.init(context);
 		Resources res = context.getResources();
 		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 		if (!prefs.contains(res.getString(R.string.pref_key_srate))) {
@@ -48,4 +54,41 @@ public class PdPreferences extends PreferenceActivity {
 			editor.commit();
 		}
 	}
+
+	/**
+	 * Stores the result of a latency measurement alongside the audio preferences
+	 * 
+	 * @param context  current application context
+	 * @param result   result of {@link LatencyCalibrator#measure(int, int)}
+	 */
+	public static void storeMeasuredLatency(Context context, LatencyCalibrator.Result result) {
+		String suffix = result.getSampleRate() + "_" + result.getTicksPerBuffer();
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putFloat(MEASURED_LATENCY + suffix, result.getLatencyMillis());
+		editor.putFloat(MEASURED_STDDEV + suffix, result.getStdDevMillis());
+		editor.commit();
+	}
+
+	/**
+	 * @param context         current application context
+	 * @param sampleRate
+	 * @param ticksPerBuffer
+	 * @return measured round-trip latency in milliseconds for the given parameters, or -1 if it hasn't been measured
+	 */
+	public static float getMeasuredLatencyMillis(Context context, int sampleRate, int ticksPerBuffer) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getFloat(MEASURED_LATENCY + sampleRate + "_" + ticksPerBuffer, -1.0f);
+	}
+
+	/**
+	 * @param context         current application context
+	 * @param sampleRate
+	 * @param ticksPerBuffer
+	 * @return standard deviation of the measured round-trip latency in milliseconds, or -1 if it hasn't been measured
+	 */
+	public static float getMeasuredLatencyStdDevMillis(Context context, int sampleRate, int ticksPerBuffer) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getFloat(MEASURED_STDDEV + sampleRate + "_" + ticksPerBuffer, -1.0f);
+	}
 }
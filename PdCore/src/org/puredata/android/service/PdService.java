@@ -7,8 +7,12 @@
 
 package org.puredata.android.service;
 
+import org.puredata.android.io.AudioMeter;
+import org.puredata.android.io.AudioMetrics;
 import org.puredata.android.io.AudioParameters;
 import org.puredata.android.io.PdAudio;
+import org.puredata.android.io.Recorder;
+import org.puredata.android.io.Resampler;
 import org.puredata.android.utils.Properties;
 import org.puredata.core.PdBase;
 import org.puredata.core.utils.IoUtils;
@@ -32,19 +36,89 @@ public class PdService extends Service {
 	private final ForegroundManager fgManager = hasEclair ? new ForegroundEclair() : new ForegroundCupcake();
 
 	private static final String PD_SERVICE = "PD Service";
+	private static final float MAX_BUFFER_MILLIS = 200.0f;  // upper bound for adaptive buffer sizes
 	private volatile int sampleRate = 0;
 	private volatile int inputChannels = 0;
 	private volatile int outputChannels = 0;
 	private volatile float bufferSizeMillis = 0.0f;
+	private volatile boolean adaptiveLatency = false;
 
 	/**
-	 * @return the current audio buffer size in milliseconds (approximate value;
+	 * @return the requested audio buffer size in milliseconds (approximate value;
 	 * the exact value is a multiple of the Pure Data tick size (64 samples))
 	 */
 	public float getBufferSizeMillis() {
 		return bufferSizeMillis;
 	}
 
+	/**
+	 * @return the effective output latency in milliseconds; the buffer size starts out at the value requested
+	 * in {@link #initAudio(int, int, int, float)} and, if enabled with {@link #setAdaptiveLatency(boolean)}, adapts to
+	 * the performance of the device at runtime
+	 */
+	public float getEffectiveLatencyMillis() {
+		return PdAudio.getEffectiveLatencyMillis();
+	}
+
+	/**
+	 * @return snapshot of the timing statistics of the audio thread (process time, device wait time, jitter, input
+	 * starvation, output underruns), or null if audio is not initialized
+	 */
+	public AudioMetrics.Snapshot getAudioMetrics() {
+		return PdAudio.getMetrics();
+	}
+
+	/**
+	 * @return peak and RMS levels of the input in the most recent 20ms, and clip counts, or null if audio is not
+	 * initialized; cheap enough to be polled once per frame
+	 */
+	public AudioMeter.Snapshot getInputLevels() {
+		return PdAudio.getInputLevels();
+	}
+
+	/**
+	 * @return peak and RMS levels of the output in the most recent 20ms, and clip counts, or null if audio is not
+	 * initialized; cheap enough to be polled once per frame
+	 */
+	public AudioMeter.Snapshot getOutputLevels() {
+		return PdAudio.getOutputLevels();
+	}
+
+	/**
+	 * Starts recording the output of Pure Data to a 16bit WAV file, without any disk I/O on the audio thread
+	 *
+	 * @param file  WAV file to write to
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if audio is not initialized or a recording is already in progress
+	 */
+	public Recorder startRecording(File file) throws IOException {
+		return PdAudio.startRecording(file);
+	}
+
+	/**
+	 * Starts recording the output of Pure Data to a 16bit WAV or FLAC file, without any disk I/O on the audio thread
+	 *
+	 * @param file      file to write to
+	 * @param compress  true for a FLAC file, compressed on the writer thread; false for a WAV file
+	 * @return recorder, e.g., for checking the number of dropped frames
+	 * @throws IOException  if the file cannot be written
+	 * @throws IllegalStateException if audio is not initialized or a recording is already in progress
+	 */
+	public Recorder startRecording(File file, boolean compress) throws IOException {
+		return PdAudio.startRecording(file, compress);
+	}
+
+	/**
+	 * Stops recording; returns once the file is complete
+	 *
+	 * @return recorder that was stopped, null if there was no recording in progress
+	 * @throws IOException  if writing failed at any point
+	 */
+	public Recorder stopRecording() throws IOException {
+		return PdAudio.stopRecording();
+	}
+
 	/**
 	 * @return number of input channels
 	 */
@@ -66,6 +140,49 @@ public class PdService extends Service {
 		return sampleRate;
 	}
 
+	/**
+	 * Enables or disables resampling between Pure Data and the audio device, so that Pure Data can run at the rate
+	 * of a patch while the device runs at its native rate; takes effect the next time audio is initialized
+	 *
+	 * @param enabled  flag indicating whether to resample
+	 * @param quality  quality of the conversion, e.g., {@link Resampler#QUALITY_MEDIUM}
+	 */
+	public void setResampling(boolean enabled, int quality) {
+		PdAudio.setResampling(enabled, quality);
+	}
+
+	/**
+	 * Enables or disables adaptive latency; when enabled, the audio thread renders buffers of the native burst size
+	 * of the device and queues up as many of them as the device needs to play without glitches, starting at the
+	 * requested buffer size.  Smaller buffers mean more callbacks, i.e., more CPU load, and so adaptive latency is off
+	 * by default.  Takes effect the next time audio is initialized.
+	 *
+	 * @param enabled  flag indicating whether the latency adapts to the performance of the device
+	 */
+	public void setAdaptiveLatency(boolean enabled) {
+		adaptiveLatency = enabled;
+	}
+
+	/**
+	 * Lets Pure Data render any number of output channels, mixed down or up to the given number of device channels;
+	 * takes effect the next time audio is initialized
+	 *
+	 * @param channels  number of output channels of the device, e.g., 2 for stereo; 0 disables mixing
+	 */
+	public void setDeviceOutputChannels(int channels) {
+		PdAudio.setDeviceOutputChannels(channels);
+	}
+
+	/**
+	 * Replaces the gain matrix of the mixer between Pure Data and the device; may be called while audio is running
+	 *
+	 * @param gains  gain matrix, with one row per device channel, and one column per output channel of Pure Data
+	 * @throws IllegalStateException if the output of Pure Data is not being mixed
+	 */
+	public void setOutputGains(float gains[][]) {
+		PdAudio.setOutputGains(gains);
+	}
+
 	/**
 	 * Initialize Pure Data and audio thread
 	 * 
@@ -96,7 +213,16 @@ public class PdService extends Service {
 			millis = (s == null) ? AudioParameters.suggestBufferSizeMillis() : Float.parseFloat(s);
 		}
 		int tpb = (int) (0.001f * millis * srate / PdBase.blockSize()) + 1;
-		PdAudio.initAudio(srate, nic, noc, tpb, true);
+		if (adaptiveLatency) {
+			int burst = AudioParameters.suggestBurstFrames();
+			int ticks = Math.max(1, (burst + PdBase.blockSize() - 1) / PdBase.blockSize());
+			int buffers = Math.max(1, (tpb + ticks - 1) / ticks);
+			int maxTicks = (int) (0.001f * MAX_BUFFER_MILLIS * srate / PdBase.blockSize()) + 1;
+			int maxBuffers = Math.max(2 * buffers, (maxTicks + ticks - 1) / ticks);
+			PdAudio.initAudio(srate, nic, noc, ticks, buffers, 1, maxBuffers, true);
+		} else {
+			PdAudio.initAudio(srate, nic, noc, tpb, true);
+		}
 		sampleRate = srate;
 		inputChannels = nic;
 		outputChannels = noc;
@@ -161,6 +287,7 @@ public class PdService extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
+		AudioParameters.init(this);  // loads cached device parameters, or probes in the background
 		Resources res = getResources();
 		File dir = getFilesDir();
 		try {
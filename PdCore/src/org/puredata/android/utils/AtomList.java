@@ -0,0 +1,106 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.utils;
+
+/**
+ *
+ * AtomList is a reusable, unboxed view of the arguments of a list or message from Pure Data, with floats in a float
+ * array and symbols in a string array.  Instances are owned by an {@link AtomListener} and only valid for the
+ * duration of the callback that receives them; they grow as needed, so that steady streams of lists don't allocate.
+ *
+ */
+public final class AtomList {
+
+	private float floats[];
+	private String symbols[];
+	private int size = 0;
+	private boolean allFloats = true;
+
+	AtomList(int capacity) {
+		floats = new float[capacity];
+		symbols = new String[capacity];
+	}
+
+	// Unboxes the given arguments; arguments that are neither numbers nor strings become empty symbols.
+	void set(Object args[]) {
+		int n = args.length;
+		if (n > floats.length) {
+			floats = new float[n];
+			symbols = new String[n];
+		}
+		allFloats = true;
+		for (int i = 0; i < n; i++) {
+			Object x = args[i];
+			if (x instanceof Number) {
+				floats[i] = ((Number) x).floatValue();
+				symbols[i] = null;
+			} else {
+				floats[i] = 0;
+				symbols[i] = (x != null) ? x.toString() : "";
+				allFloats = false;
+			}
+		}
+		for (int i = n; i < size; i++) symbols[i] = null;
+		size = n;
+	}
+
+	/**
+	 * @return number of atoms
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if and only if all atoms are floats
+	 */
+	public boolean isFloatList() {
+		return allFloats;
+	}
+
+	/**
+	 * @param i  index of an atom
+	 * @return true if and only if the atom is a float
+	 */
+	public boolean isFloat(int i) {
+		checkIndex(i);
+		return symbols[i] == null;
+	}
+
+	/**
+	 * @param i  index of an atom
+	 * @return value of the atom if it is a float, 0 otherwise
+	 */
+	public float getFloat(int i) {
+		checkIndex(i);
+		return floats[i];
+	}
+
+	/**
+	 * @param i  index of an atom
+	 * @return value of the atom if it is a symbol, null otherwise
+	 */
+	public String getSymbol(int i) {
+		checkIndex(i);
+		return symbols[i];
+	}
+
+	/**
+	 * @return backing array of float values, starting at index 0; only the first {@link #size()} entries are valid,
+	 *             and entries of symbol atoms are 0
+	 */
+	public float[] getFloats() {
+		return floats;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.utils;
+
+import org.puredata.core.PdListener;
+
+/**
+ *
+ * AtomListener is a {@link PdListener} that receives lists and messages as unboxed, reusable views rather than
+ * arrays of objects.  Lists that consist of floats only are passed to
+ * {@link #receiveList(String, float[], int, int)}, which delegates to {@link #receiveList(String, AtomList)} by
+ * default; all other lists and all messages come as an {@link AtomList}.  The arrays and views that are passed to
+ * the callbacks are only valid for the duration of the callback.
+ *
+ * Instances are not thread-safe, i.e., a listener should only be registered with one dispatcher.
+ *
+ */
+public abstract class AtomListener implements PdListener {
+
+	private static final int INITIAL_CAPACITY = 16;
+	private final AtomList view = new AtomList(INITIAL_CAPACITY);
+
+	@Override
+	public void receiveBang(String source) {
+		// do nothing
+	}
+
+	@Override
+	public void receiveFloat(String source, float x) {
+		// do nothing
+	}
+
+	@Override
+	public void receiveSymbol(String source, String symbol) {
+		// do nothing
+	}
+
+	@Override
+	public final void receiveList(String source, Object... args) {
+		view.set(args);
+		if (view.isFloatList()) {
+			receiveList(source, view.getFloats(), 0, view.size());
+		} else {
+			receiveList(source, view);
+		}
+	}
+
+	@Override
+	public final void receiveMessage(String source, String symbol, Object... args) {
+		view.set(args);
+		receiveMessage(source, symbol, view);
+	}
+
+	/**
+	 * Receives a list that consists of floats only
+	 *
+	 * @param source  source symbol
+	 * @param list    array that holds the values of the list
+	 * @param offset  index of the first value
+	 * @param length  number of values
+	 */
+	public void receiveList(String source, float list[], int offset, int length) {
+		receiveList(source, view);
+	}
+
+	/**
+	 * Receives a list
+	 *
+	 * @param source  source symbol
+	 * @param list    atoms of the list
+	 */
+	public void receiveList(String source, AtomList list) {
+		// do nothing
+	}
+
+	/**
+	 * Receives a typed message
+	 *
+	 * @param source  source symbol
+	 * @param symbol  message selector
+	 * @param args    atoms of the message
+	 */
+	public void receiveMessage(String source, String symbol, AtomList args) {
+		// do nothing
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.utils;
+
+import org.puredata.core.PdReceiver;
+
+/**
+ *
+ * PdMessageRing is a {@link PdReceiver} that decouples Java listeners from the thread that runs Pure Data.  When
+ * installed with PdBase.setReceiver, it doesn't call any listeners; it only copies each message from Pure Data into a
+ * preallocated ring, with floats unboxed and symbols by reference, so that the audio thread never waits for Java
+ * code.  Any other thread drains the ring at its own pace with {@link #pollMessages(PdReceiver)}, e.g., the UI
+ * thread once per frame, handing the messages to a receiver such as a PdDispatcher.
+ *
+ * If the consumer falls behind, new messages are dropped when the ring is full, and lists and messages with more
+ * atoms than a slot holds are truncated; both are counted.
+ *
+ * The ring has a single producer, i.e., the thread that runs Pure Data (libpd serializes its callbacks), and a single
+ * consumer.
+ *
+ */
+public class PdMessageRing implements PdReceiver {
+
+	/**
+	 * Default number of messages that the ring holds
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Default maximum number of atoms per list or message
+	 */
+	public static final int DEFAULT_MAX_ATOMS = 16;
+	private static final int PRINT = 0;
+	private static final int BANG = 1;
+	private static final int FLOAT = 2;
+	private static final int SYMBOL = 3;
+	private static final int LIST = 4;
+	private static final int MESSAGE = 5;
+	private final int capacity;
+	private final int maxAtoms;
+	private final int types[];
+	private final String sources[];
+	private final String symbols[];  // print string, symbol, or message selector
+	private final float values[];  // float value
+	private final int sizes[];
+	private final float atomFloats[];  // capacity slots of maxAtoms atoms
+	private final String atomSymbols[];  // null for float atoms
+	private volatile long head = 0;  // number of messages written; only written by the producer
+	private volatile long tail = 0;  // number of messages consumed; only written by the consumer
+	private volatile long dropped = 0;
+	private volatile long truncated = 0;
+
+	/**
+	 * Constructor with default capacity and default maximum number of atoms
+	 */
+	public PdMessageRing() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_ATOMS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity  number of messages that the ring holds
+	 * @param maxAtoms  maximum number of atoms per list or message; additional atoms are truncated
+	 */
+	public PdMessageRing(int capacity, int maxAtoms) {
+		if (capacity <= 0 || maxAtoms < 0) {
+			throw new IllegalArgumentException("bad ring parameters: " + capacity + ", " + maxAtoms);
+		}
+		this.capacity = capacity;
+		this.maxAtoms = maxAtoms;
+		types = new int[capacity];
+		sources = new String[capacity];
+		symbols = new String[capacity];
+		values = new float[capacity];
+		sizes = new int[capacity];
+		atomFloats = new float[capacity * maxAtoms];
+		atomSymbols = new String[capacity * maxAtoms];
+	}
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return number of lists and messages that were truncated because they had too many atoms
+	 */
+	public long getTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return number of messages waiting to be polled
+	 */
+	public int getPending() {
+		return (int) (head - tail);
+	}
+
+	/**
+	 * Delivers all messages that are currently in the ring, in order; to be invoked on the consumer thread.  Lists and
+	 * messages are delivered as fresh arrays of Float and String objects, so that receivers may keep them.
+	 *
+	 * @param receiver  receiver of the messages, e.g., a PdDispatcher
+	 * @return number of messages delivered
+	 */
+	public int pollMessages(PdReceiver receiver) {
+		long t = tail;
+		long h = head;
+		for (long k = t; k < h; k++) {
+			int i = (int) (k % capacity);
+			String source = sources[i];
+			String symbol = symbols[i];
+			switch (types[i]) {
+			case PRINT:
+				receiver.print(symbol);
+				break;
+			case BANG:
+				receiver.receiveBang(source);
+				break;
+			case FLOAT:
+				receiver.receiveFloat(source, values[i]);
+				break;
+			case SYMBOL:
+				receiver.receiveSymbol(source, symbol);
+				break;
+			case LIST:
+				receiver.receiveList(source, unpack(i));
+				break;
+			case MESSAGE:
+				receiver.receiveMessage(source, symbol, unpack(i));
+				break;
+			default:
+				break;
+			}
+			sources[i] = null;
+			symbols[i] = null;
+			tail = k + 1;
+		}
+		return (int) (h - t);
+	}
+
+	@Override
+	public void print(String s) {
+		int i = claim(PRINT, null);
+		if (i < 0) return;
+		symbols[i] = s;
+		head++;
+	}
+
+	@Override
+	public void receiveBang(String source) {
+		if (claim(BANG, source) < 0) return;
+		head++;
+	}
+
+	@Override
+	public void receiveFloat(String source, float x) {
+		int i = claim(FLOAT, source);
+		if (i < 0) return;
+		values[i] = x;
+		head++;
+	}
+
+	@Override
+	public void receiveSymbol(String source, String symbol) {
+		int i = claim(SYMBOL, source);
+		if (i < 0) return;
+		symbols[i] = symbol;
+		head++;
+	}
+
+	@Override
+	public void receiveList(String source, Object... args) {
+		int i = claim(LIST, source);
+		if (i < 0) return;
+		pack(i, args);
+		head++;
+	}
+
+	@Override
+	public void receiveMessage(String source, String symbol, Object... args) {
+		int i = claim(MESSAGE, source);
+		if (i < 0) return;
+		symbols[i] = symbol;
+		pack(i, args);
+		head++;
+	}
+
+	// Producer; returns the next free slot with type and source filled in, or -1 if the ring is full.
+	private int claim(int type, String source) {
+		long h = head;
+		if (h - tail >= capacity) {
+			dropped++;
+			return -1;
+		}
+		int i = (int) (h % capacity);
+		types[i] = type;
+		sources[i] = source;
+		return i;
+	}
+
+	private void pack(int i, Object args[]) {
+		int n = args.length;
+		if (n > maxAtoms) {
+			truncated++;
+			n = maxAtoms;
+		}
+		int offset = i * maxAtoms;
+		for (int j = 0; j < n; j++) {
+			Object x = args[j];
+			if (x instanceof Number) {
+				atomFloats[offset + j] = ((Number) x).floatValue();
+				atomSymbols[offset + j] = null;
+			} else {
+				atomFloats[offset + j] = 0;
+				atomSymbols[offset + j] = (x != null) ? x.toString() : "";
+			}
+		}
+		sizes[i] = n;
+	}
+
+	// Consumer
+	private Object[] unpack(int i) {
+		int n = sizes[i];
+		int offset = i * maxAtoms;
+		Object args[] = new Object[n];
+		for (int j = 0; j < n; j++) {
+			String s = atomSymbols[offset + j];
+			args[j] = (s != null) ? s : (Object) Float.valueOf(atomFloats[offset + j]);
+			atomSymbols[offset + j] = null;
+		}
+		return args;
+	}
+}
@@ -7,8 +7,16 @@
 
 package org.puredata.android.utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.puredata.core.utils.PdDispatcher;
 
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
 /**
  * Subclass of {@link PdDispatcher} for executing callbacks on the main UI thread
  * of an Android app.  It is actually more general than that; instances of this
@@ -16,18 +24,146 @@ import org.puredata.core.utils.PdDispatcher;
  * but in practice it really only makes sense to create instances of this class
  * in the main UI thread.
  * 
+ * By default, every message from Pd is posted to the UI thread as it comes in.
+ * In coalescing mode, messages are collected and handed to the UI thread in
+ * batches, at most once per frame, with a single preallocated Runnable.  Floats
+ * and symbols only keep the latest value per source, so that patches that send
+ * meter values every tick don't flood the main looper; bangs, lists, and
+ * messages go through a bounded queue.  The {@link DropPolicy} of each source
+ * can be configured.  Queued messages are delivered in order, followed by the
+ * latest values.
+ * 
  * @author Peter Brinkmann (peter.brinkmann@gmail.com)
  */
 public class PdUiDispatcher extends PdDispatcher {
-	
+
+	/**
+	 * What to do with messages from a source in coalescing mode
+	 */
+	public static enum DropPolicy {
+		/** keep only the latest message of each type */
+		LATEST,
+		/** queue messages; drop the oldest queued message if the queue is full */
+		DROP_OLDEST,
+		/** queue messages; drop new messages if the queue is full */
+		DROP_NEWEST
+	}
+
+	/**
+	 * Default capacity of the message queue in coalescing mode
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
 	private final static String TAG = PdUiDispatcher.class.getSimpleName();
+	private final static long FRAME_MILLIS = 16;
+	private static final int BANG = 0;
+	private static final int FLOAT = 1;
+	private static final int SYMBOL = 2;
+	private static final int LIST = 3;
+	private static final int MESSAGE = 4;
 	private final Handler handler;
-	
+	private final boolean coalesce;
+	private final Object lock = new Object();
+	private final Map<String, DropPolicy> policies = new HashMap<String, DropPolicy>();
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+	private ArrayList<Slot> dirty = new ArrayList<Slot>();
+	private ArrayList<Slot> dirtyDrain = new ArrayList<Slot>();
+	private Event queue[];
+	private Event queueDrain[];
+	private int queueHead = 0;
+	private int queueCount = 0;
+	private boolean scheduled = false;
+	private long lastDrain = 0;
+	private volatile long dropped = 0;
+	private final Runnable drainer = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	// One message, recycled by the queue.
+	private static final class Event {
+		int type;
+		String source;
+		float x;
+		String symbol;
+		Object args[];
+	}
+
+	// Latest values of one source; pending values are written by the Pd thread, delivered values are owned by the UI
+	// thread while it drains.
+	private static final class Slot {
+		final String source;
+		boolean dirty = false;
+		final boolean pending[] = new boolean[MESSAGE + 1];
+		float x;
+		String symbol;
+		Object args[];
+		String message;
+		Object messageArgs[];
+		final boolean delivered[] = new boolean[MESSAGE + 1];
+		float dx;
+		String dSymbol;
+		Object dArgs[];
+		String dMessage;
+		Object dMessageArgs[];
+
+		Slot(String source) {
+			this.source = source;
+		}
+	}
+
 	/**
 	 * Constructor; invoke from the main UI thread
 	 */
 	public PdUiDispatcher() {
+		this(false, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor; invoke from the main UI thread
+	 *
+	 * @param coalesce  true for coalescing mode, false for posting every message as it comes in
+	 * @param capacity  capacity of the message queue in coalescing mode
+	 */
+	public PdUiDispatcher(boolean coalesce, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("bad queue capacity: " + capacity);
+		}
 		handler = new Handler();
+		this.coalesce = coalesce;
+		if (coalesce) {
+			queue = new Event[capacity];
+			queueDrain = new Event[capacity];
+			for (int i = 0; i < capacity; i++) {
+				queue[i] = new Event();
+				queueDrain[i] = new Event();
+			}
+		}
+	}
+
+	/**
+	 * Sets the drop policy for messages from the given source in coalescing mode; by default, floats and symbols are
+	 * subject to {@link DropPolicy#LATEST}, and bangs, lists, and messages to {@link DropPolicy#DROP_NEWEST}
+	 *
+	 * @param source  source symbol
+	 * @param policy  drop policy for all messages from the source, or null to restore the default
+	 */
+	public void setDropPolicy(String source, DropPolicy policy) {
+		synchronized (lock) {
+			if (policy != null) {
+				policies.put(source, policy);
+			} else {
+				policies.remove(source);
+			}
+		}
+	}
+
+	/**
+	 * @return number of messages dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped;
 	}
 
 	@Override
@@ -36,11 +172,15 @@ public class PdUiDispatcher extends PdDispatcher {
 	public void print(String s) {
 		Log.i(TAG, "print: " + s);
 	}
-	
+
 	@Override
 	@Override
 	@Override
-	public synchronized void receiveBang(final String source) {
+	public void receiveBang(final String source) {
+		if (coalesce) {
+			collect(BANG, source, 0, null, null);
+			return;
+		}
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
@@ -52,7 +192,11 @@ public class PdUiDispatcher extends PdDispatcher {
 	@Override
 	@Override
 	@Override
-	public synchronized void receiveFloat(final String source, final float x) {
+	public void receiveFloat(final String source, final float x) {
+		if (coalesce) {
+			collect(FLOAT, source, x, null, null);
+			return;
+		}
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
@@ -64,7 +208,11 @@ public class PdUiDispatcher extends PdDispatcher {
 	@Override
 	@Override
 	@Override
-	public synchronized void receiveSymbol(final String source, final String symbol) {
+	public void receiveSymbol(final String source, final String symbol) {
+		if (coalesce) {
+			collect(SYMBOL, source, 0, symbol, null);
+			return;
+		}
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
@@ -72,11 +220,15 @@ public class PdUiDispatcher extends PdDispatcher {
 			}
 		});
 	}
-	
+
 	@Override
 	@Override
 	@Override
-	public synchronized void receiveList(final String source, final Object... args) {
+	public void receiveList(final String source, final Object... args) {
+		if (coalesce) {
+			collect(LIST, source, 0, null, args);
+			return;
+		}
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
@@ -84,11 +236,15 @@ public class PdUiDispatcher extends PdDispatcher {
 			}
 		});
 	}
-	
+
 	@Override
 	@Override
 	@Override
-	public synchronized void receiveMessage(final String source, final String symbol, final Object... args) {
+	public void receiveMessage(final String source, final String symbol, final Object... args) {
+		if (coalesce) {
+			collect(MESSAGE, source, 0, symbol, args);
+			return;
+		}
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
@@ -96,4 +252,134 @@ public class PdUiDispatcher extends PdDispatcher {
 			}
 		});
 	}
+
+	// Coalescing mode; files the message in the latest-value slot of its source or in the queue, and makes sure that
+	// a drain is scheduled.
+	private void collect(int type, String source, float x, String symbol, Object args[]) {
+		synchronized (lock) {
+			DropPolicy policy = policies.get(source);
+			if (policy == null) policy = (type == FLOAT || type == SYMBOL) ? DropPolicy.LATEST : DropPolicy.DROP_NEWEST;
+			if (policy == DropPolicy.LATEST) {
+				Slot slot = slots.get(source);
+				if (slot == null) {
+					slot = new Slot(source);
+					slots.put(source, slot);
+				}
+				slot.pending[type] = true;
+				switch (type) {
+				case FLOAT:
+					slot.x = x;
+					break;
+				case SYMBOL:
+					slot.symbol = symbol;
+					break;
+				case LIST:
+					slot.args = args;
+					break;
+				case MESSAGE:
+					slot.message = symbol;
+					slot.messageArgs = args;
+					break;
+				default:
+					break;
+				}
+				if (!slot.dirty) {
+					slot.dirty = true;
+					dirty.add(slot);
+				}
+			} else {
+				if (queueCount == queue.length) {
+					dropped++;
+					if (policy == DropPolicy.DROP_NEWEST) return;
+					queueHead = (queueHead + 1) % queue.length;
+					queueCount--;
+				}
+				Event e = queue[(queueHead + queueCount++) % queue.length];
+				e.type = type;
+				e.source = source;
+				e.x = x;
+				e.symbol = symbol;
+				e.args = args;
+			}
+			if (!scheduled) {
+				scheduled = true;
+				handler.postAtTime(drainer, Math.max(SystemClock.uptimeMillis(), lastDrain + FRAME_MILLIS));
+			}
+		}
+	}
+
+	// UI thread; takes over the collected messages and delivers them outside the lock, so that listeners don't hold
+	// up the thread that Pd sends from.
+	private void drain() {
+		int head, count;
+		synchronized (lock) {
+			scheduled = false;
+			lastDrain = SystemClock.uptimeMillis();
+			Event q[] = queueDrain;
+			queueDrain = queue;
+			queue = q;
+			head = queueHead;
+			count = queueCount;
+			queueHead = 0;
+			queueCount = 0;
+			ArrayList<Slot> d = dirtyDrain;
+			dirtyDrain = dirty;
+			dirty = d;
+			for (int i = 0; i < dirtyDrain.size(); i++) {
+				Slot slot = dirtyDrain.get(i);
+				for (int t = 0; t <= MESSAGE; t++) {
+					slot.delivered[t] = slot.pending[t];
+					slot.pending[t] = false;
+				}
+				slot.dx = slot.x;
+				slot.dSymbol = slot.symbol;
+				slot.dArgs = slot.args;
+				slot.dMessage = slot.message;
+				slot.dMessageArgs = slot.messageArgs;
+				slot.args = null;
+				slot.messageArgs = null;
+				slot.dirty = false;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			Event e = queueDrain[(head + i) % queueDrain.length];
+			deliver(e.type, e.source, e.x, e.symbol, e.args);
+			e.source = null;
+			e.symbol = null;
+			e.args = null;
+		}
+		for (int i = 0; i < dirtyDrain.size(); i++) {
+			Slot slot = dirtyDrain.get(i);
+			if (slot.delivered[BANG]) deliver(BANG, slot.source, 0, null, null);
+			if (slot.delivered[FLOAT]) deliver(FLOAT, slot.source, slot.dx, null, null);
+			if (slot.delivered[SYMBOL]) deliver(SYMBOL, slot.source, 0, slot.dSymbol, null);
+			if (slot.delivered[LIST]) deliver(LIST, slot.source, 0, null, slot.dArgs);
+			if (slot.delivered[MESSAGE]) deliver(MESSAGE, slot.source, 0, slot.dMessage, slot.dMessageArgs);
+			slot.dArgs = null;
+			slot.dMessageArgs = null;
+		}
+		dirtyDrain.clear();
+	}
+
+	private void deliver(int type, String source, float x, String symbol, Object args[]) {
+		switch (type) {
+		case BANG:
+			super.receiveBang(source);
+			break;
+		case FLOAT:
+			super.receiveFloat(source, x);
+			break;
+		case SYMBOL:
+			super.receiveSymbol(source, symbol);
+			break;
+		case LIST:
+			super.receiveList(source, args);
+			break;
+		case MESSAGE:
+			super.receiveMessage(source, symbol, args);
+			break;
+		default:
+			break;
+		}
+	}
 }
@@ -0,0 +1,198 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.puredata.android.io.CommandQueue;
+import org.puredata.android.io.PdAudio;
+import org.puredata.android.io.TickListener;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ *
+ * SensorBridge streams sensor readings, e.g., from the accelerometer, gyroscope, magnetometer, or orientation sensor,
+ * into Pure Data.  Sensor events only update a mailbox per sensor, where the latest reading wins; the audio thread
+ * checks the mailboxes once per tick and sends at most one list per sensor, and only if the reading has moved out of
+ * the dead band around the last reading that was sent, and if the last message is at least as old as the maximum
+ * rate of the sensor allows.  The sensors are registered with the slowest Android sensor rate that keeps up with the
+ * maximum rate.  Lists go out through the float arrays of the {@link CommandQueue} of {@link PdAudio}, which
+ * delivers them in the same tick, so that readings aren't boxed into argument lists by the bridge.
+ *
+ * Sensors are configured with {@link #addSensor(int, String, float, float, float...)} before the bridge is started.
+ * Readings are delivered while audio is running; readings that come in while it isn't are held back until it runs.
+ *
+ */
+public class SensorBridge implements SensorEventListener, TickListener {
+
+	private static final int MAX_VALUES = 3;
+	private final SensorManager sensorManager;
+	private volatile Stream streams[] = new Stream[0];
+	private boolean running = false;
+
+	// Mailbox and delivery state for one sensor; values travel as raw float bits in an atomic array, guarded by a
+	// version counter that is odd while the sensor thread is writing.
+	private static final class Stream {
+		final int type;
+		final String receiver;
+		final long minIntervalNanos;
+		final float threshold;
+		final float scale[];
+		final Sensor sensor;
+		final AtomicIntegerArray mailbox = new AtomicIntegerArray(MAX_VALUES);
+		volatile int version = 0;
+		final float values[] = new float[MAX_VALUES];
+		final float sent[] = new float[MAX_VALUES];
+		int seen = 0;
+		boolean hasSent = false;
+		long lastSent = 0;
+
+		Stream(int type, String receiver, float maxRate, float threshold, float scale[], Sensor sensor) {
+			this.type = type;
+			this.receiver = receiver;
+			this.minIntervalNanos = (long) (1e9 / maxRate);
+			this.threshold = threshold;
+			this.scale = scale;
+			this.sensor = sensor;
+		}
+
+		void post(float v[]) {  // sensor thread
+			int n = Math.min(MAX_VALUES, v.length);
+			int ver = version;
+			version = ver + 1;
+			for (int i = 0; i < n; i++) {
+				mailbox.set(i, Float.floatToRawIntBits(v[i] * scale[i]));
+			}
+			version = ver + 2;
+		}
+
+		void deliver(CommandQueue queue, long now) {  // audio thread
+			int ver = version;
+			if (ver == seen || (ver & 1) != 0 || now - lastSent < minIntervalNanos) return;
+			for (int i = 0; i < MAX_VALUES; i++) {
+				values[i] = Float.intBitsToFloat(mailbox.get(i));
+			}
+			if (version != ver) return;  // torn read; try again on the next tick
+			if (hasSent) {
+				float d = 0;
+				for (int i = 0; i < MAX_VALUES; i++) d = Math.max(d, Math.abs(values[i] - sent[i]));
+				if (d <= threshold) {  // inside the dead band; small changes accumulate until they count
+					seen = ver;
+					return;
+				}
+			}
+			if (!queue.sendList(receiver, values, 0, MAX_VALUES)) return;  // queue full; try again on the next tick
+			seen = ver;
+			System.arraycopy(values, 0, sent, 0, MAX_VALUES);
+			hasSent = true;
+			lastSent = now;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param sensorManager  sensor manager of the current context
+	 */
+	public SensorBridge(SensorManager sensorManager) {
+		this.sensorManager = sensorManager;
+	}
+
+	/**
+	 * Adds a sensor whose readings are to be sent to Pure Data as lists of three floats
+	 *
+	 * @param type       sensor type, e.g., {@link Sensor#TYPE_ACCELEROMETER}, {@link Sensor#TYPE_GYROSCOPE},
+	 *                       {@link Sensor#TYPE_MAGNETIC_FIELD}, or {@link Sensor#TYPE_ORIENTATION}
+	 * @param receiver   receiver symbol in Pure Data
+	 * @param maxRate    maximum number of messages per second
+	 * @param threshold  dead band; a reading is only sent if one of its (scaled) values differs from the last reading
+	 *                       that was sent by more than this amount
+	 * @param scale      factors for the values of the sensor, e.g., for unit conversion or flipping axes; values
+	 *                       without a factor are passed on as they are
+	 * @return true if the sensor is available on this device, false otherwise
+	 * @throws IllegalStateException if the bridge is running
+	 */
+	public synchronized boolean addSensor(int type, String receiver, float maxRate, float threshold, float... scale) {
+		if (running) {
+			throw new IllegalStateException("can't add sensors while the bridge is running");
+		}
+		if (receiver == null || maxRate <= 0 || threshold < 0 || scale.length > MAX_VALUES) {
+			throw new IllegalArgumentException("bad sensor parameters: " + receiver + ", " + maxRate + ", " + threshold);
+		}
+		Sensor sensor = sensorManager.getDefaultSensor(type);
+		if (sensor == null) return false;
+		float factors[] = new float[MAX_VALUES];
+		for (int i = 0; i < MAX_VALUES; i++) {
+			factors[i] = (i < scale.length) ? scale[i] : 1.0f;
+		}
+		Stream s[] = new Stream[streams.length + 1];
+		System.arraycopy(streams, 0, s, 0, streams.length);
+		s[streams.length] = new Stream(type, receiver, maxRate, threshold, factors, sensor);
+		streams = s;
+		return true;
+	}
+
+	/**
+	 * Registers the sensors and starts streaming readings into Pure Data
+	 */
+	public synchronized void start() {
+		if (running) return;
+		for (Stream s: streams) {
+			sensorManager.registerListener(this, s.sensor, getDelay(s.minIntervalNanos));
+		}
+		PdAudio.addTickListener(this);
+		running = true;
+	}
+
+	/**
+	 * Unregisters the sensors and stops streaming
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		sensorManager.unregisterListener(this);
+		PdAudio.removeTickListener(this);
+		running = false;
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		int type = event.sensor.getType();
+		Stream s[] = streams;
+		for (int i = 0; i < s.length; i++) {
+			if (s[i].type == type) s[i].post(event.values);
+		}
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+		// don't care
+	}
+
+	@Override
+	public void onTick(long frame) {
+		Stream s[] = streams;
+		if (s.length == 0) return;
+		CommandQueue queue = PdAudio.getCommandQueue();
+		long now = System.nanoTime();
+		for (int i = 0; i < s.length; i++) {
+			s[i].deliver(queue, now);
+		}
+	}
+
+	// The nominal rates of the Android sensor delays are 5Hz (normal), 16Hz (UI), and 50Hz (game).
+	private static int getDelay(long minIntervalNanos) {
+		if (minIntervalNanos >= 200000000L) return SensorManager.SENSOR_DELAY_NORMAL;
+		if (minIntervalNanos >= 60000000L) return SensorManager.SENSOR_DELAY_UI;
+		if (minIntervalNanos >= 20000000L) return SensorManager.SENSOR_DELAY_GAME;
+		return SensorManager.SENSOR_DELAY_FASTEST;
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.utils;
+
+import java.util.Arrays;
+
+import org.puredata.android.io.CommandQueue;
+import org.puredata.android.io.PdAudio;
+import org.puredata.android.io.TickListener;
+
+import android.view.MotionEvent;
+
+/**
+ *
+ * TouchBridge streams touch events into Pure Data, in the format of RjDj scenes, i.e., messages of the form
+ * "down|up|xy pointer x y" to a receiver such as "#touch", with pointers numbered from 1 and coordinates scaled to a
+ * fixed range.  The UI thread only writes touch events into a preallocated ring; the audio thread drains the ring
+ * once per tick, coalesces the moves of each pointer into the latest one, and sends at most one xy message per
+ * pointer and tick.  Downs and ups are never dropped by coalescing.  Messages go out through the float arrays of the
+ * {@link CommandQueue} of {@link PdAudio}, which delivers them in the same tick, so that the bridge itself doesn't
+ * build argument lists on the audio thread.
+ *
+ * Optionally, the intermediate points that Android batches into move events, and the points of coalesced moves,
+ * are delivered as well, as one list "pointer x1 y1 x2 y2 ..." per xy message, sent to a separate receiver right
+ * before the xy message.  Since the list has to fit into one message of the queue, it holds up to
+ * {@link #MAX_HISTORY} points.
+ *
+ * Multitouch requires Eclair; on earlier versions, only the primary pointer is reported (same lazy class loading
+ * hack as in VersionedAudioFormat).
+ *
+ */
+public class TouchBridge implements TickListener {
+
+	/**
+	 * Receiver of touch events in RjDj scenes
+	 */
+	public static final String DEFAULT_RECEIVER = "#touch";
+
+	/**
+	 * Maximum number of simultaneous pointers; events of pointers with higher ids are ignored
+	 */
+	public static final int MAX_POINTERS = 16;
+
+	/**
+	 * Maximum number of points per list of intermediate points
+	 */
+	public static final int MAX_HISTORY = (CommandQueue.MAX_ARGS - 1) / 2;
+	private static final int DOWN = 0;
+	private static final int UP = 1;
+	private static final int XY = 2;
+	private static final String TAGS[] = { "down", "up", "xy" };
+	private static final int CAPACITY = 256;
+	private static final boolean hasEclair = Properties.version >= 5;
+	private final String receiver;
+	private final float xRange;
+	private final float yRange;
+	private final int actions[] = new int[CAPACITY];
+	private final int ids[] = new int[CAPACITY];
+	private final float xs[] = new float[CAPACITY];
+	private final float ys[] = new float[CAPACITY];
+	private final int historySizes[] = new int[CAPACITY];
+	private float history[] = null;  // CAPACITY slots of 2 * maxHistory coordinates
+	private String historyReceiver = null;
+	private int maxHistory = 0;
+	private volatile long head = 0;  // number of events written; only written by the UI thread
+	private volatile long tail = 0;  // number of events consumed; only written by the audio thread
+	private volatile long dropped = 0;
+	private boolean running = false;
+	private final boolean superseded[] = new boolean[CAPACITY];
+	private final boolean laterMove[] = new boolean[MAX_POINTERS];
+	private final float args[] = new float[3];
+	private float path[][] = null;  // pointer number followed by the accumulated points, for the history receiver
+	private final int pathSizes[] = new int[MAX_POINTERS];
+
+	/**
+	 * Constructor
+	 *
+	 * @param receiver  receiver symbol for touch events, e.g., {@link #DEFAULT_RECEIVER}
+	 * @param xRange    x coordinates are scaled from the width of the view to [0, xRange]
+	 * @param yRange    y coordinates are scaled from the height of the view to [0, yRange]
+	 */
+	public TouchBridge(String receiver, float xRange, float yRange) {
+		if (receiver == null || xRange <= 0 || yRange <= 0) {
+			throw new IllegalArgumentException("bad touch parameters: " + receiver + ", " + xRange + ", " + yRange);
+		}
+		this.receiver = receiver;
+		this.xRange = xRange;
+		this.yRange = yRange;
+	}
+
+	/**
+	 * Enables or disables the delivery of intermediate points
+	 *
+	 * @param receiver   receiver symbol for lists of intermediate points, or null to disable them
+	 * @param maxPoints  maximum number of points per list, up to {@link #MAX_HISTORY}; the most recent points are kept
+	 *                       if there are more
+	 * @throws IllegalStateException if the bridge is running
+	 */
+	public synchronized void setHistory(String receiver, int maxPoints) {
+		if (running) {
+			throw new IllegalStateException("can't change history while the bridge is running");
+		}
+		if (receiver != null && (maxPoints <= 0 || maxPoints > MAX_HISTORY)) {
+			throw new IllegalArgumentException("bad history size: " + maxPoints);
+		}
+		historyReceiver = receiver;
+		maxHistory = (receiver != null) ? maxPoints : 0;
+		history = (receiver != null) ? new float[CAPACITY * 2 * maxPoints] : null;
+		path = null;
+		if (receiver != null) {
+			path = new float[MAX_POINTERS][1 + 2 * maxPoints];
+			for (int p = 0; p < MAX_POINTERS; p++) path[p][0] = p + 1;
+		}
+	}
+
+	/**
+	 * Starts delivering touch events to Pure Data; events that were evaluated before are discarded
+	 */
+	public synchronized void start() {
+		if (running) return;
+		tail = head;
+		Arrays.fill(pathSizes, 0);
+		PdAudio.addTickListener(this);
+		running = true;
+	}
+
+	/**
+	 * Stops delivering touch events
+	 */
+	public synchronized void stop() {
+		if (!running) return;
+		PdAudio.removeTickListener(this);
+		running = false;
+	}
+
+	/**
+	 * @return number of touch events dropped because the audio thread didn't keep up, e.g., because audio wasn't
+	 *             running
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Evaluates a touch event; to be invoked on the UI thread, e.g., from View.OnTouchListener.onTouch
+	 *
+	 * @param event   touch event
+	 * @param width   width of the view that received the event
+	 * @param height  height of the view that received the event
+	 * @return true
+	 */
+	public boolean evaluateTouch(MotionEvent event, int width, int height) {
+		return hasEclair ? TouchEclair.evaluateTouch(this, event, width, height) :
+			TouchCupcake.evaluateTouch(this, event, width, height);
+	}
+
+	@Override
+	public void onTick(long frame) {
+		long t = tail;
+		long h = head;
+		if (t == h) return;
+		CommandQueue queue = PdAudio.getCommandQueue();
+		Arrays.fill(laterMove, false);
+		for (long k = h - 1; k >= t; k--) {  // marks every move that is followed by another move of the same pointer
+			int i = (int) (k % CAPACITY);
+			int p = ids[i];
+			if (actions[i] == XY) {
+				superseded[i] = laterMove[p];
+				laterMove[p] = true;
+			} else {
+				superseded[i] = false;
+				laterMove[p] = false;
+			}
+		}
+		for (long k = t; k < h; k++) {
+			int i = (int) (k % CAPACITY);
+			int p = ids[i];
+			if (actions[i] == XY) {
+				if (historyReceiver != null) extendPath(i, p);
+				if (superseded[i]) continue;
+				if (historyReceiver != null) sendPath(queue, p);
+			} else if (historyReceiver != null) {
+				pathSizes[p] = 0;
+			}
+			args[0] = p + 1;
+			args[1] = xs[i];
+			args[2] = ys[i];
+			queue.sendMessage(receiver, TAGS[actions[i]], args, 0, 3);
+		}
+		tail = h;
+	}
+
+	// Appends the intermediate points of the event in the given slot, followed by its final point, to the path of the
+	// pointer, keeping the most recent points if the path is full.
+	private void extendPath(int slot, int p) {
+		float pts[] = path[p];
+		int n = historySizes[slot];
+		int offset = slot * 2 * maxHistory;
+		for (int j = 0; j <= n; j++) {
+			if (pathSizes[p] == maxHistory) {
+				System.arraycopy(pts, 3, pts, 1, pts.length - 3);
+				pathSizes[p]--;
+			}
+			int q = 1 + 2 * pathSizes[p]++;
+			pts[q] = (j < n) ? history[offset + 2 * j] : xs[slot];
+			pts[q + 1] = (j < n) ? history[offset + 2 * j + 1] : ys[slot];
+		}
+	}
+
+	private void sendPath(CommandQueue queue, int p) {
+		queue.sendList(historyReceiver, path[p], 0, 1 + 2 * pathSizes[p]);
+		pathSizes[p] = 0;
+	}
+
+	// Writes one event into the ring; returns the slot for intermediate points, or -1 if the event was dropped.
+	private int post(int action, int pointerId, float x, float y, int width, int height) {
+		if (pointerId < 0 || pointerId >= MAX_POINTERS) return -1;
+		long h = head;
+		if (h - tail >= CAPACITY) {
+			dropped++;
+			return -1;
+		}
+		int i = (int) (h % CAPACITY);
+		actions[i] = action;
+		ids[i] = pointerId;
+		xs[i] = normalize(x, xRange, width);
+		ys[i] = normalize(y, yRange, height);
+		historySizes[i] = 0;
+		return i;
+	}
+
+	private void addHistory(int slot, int index, float x, float y, int width, int height) {
+		if (index >= maxHistory) return;
+		int offset = slot * 2 * maxHistory + 2 * index;
+		history[offset] = normalize(x, xRange, width);
+		history[offset + 1] = normalize(y, yRange, height);
+		historySizes[slot] = index + 1;
+	}
+
+	private void commit() {
+		head++;
+	}
+
+	private static float normalize(float v, float range, int dim) {
+		float t = v * range / dim;
+		if (t < 0) t = 0;
+		else if (t > range) t = range;
+		return t;
+	}
+
+	private static class TouchEclair {
+
+		static boolean evaluateTouch(TouchBridge bridge, MotionEvent event, int width, int height) {
+			int action = event.getAction();
+			switch (action & MotionEvent.ACTION_MASK) {
+			case MotionEvent.ACTION_POINTER_DOWN:
+			case MotionEvent.ACTION_POINTER_UP: {
+				int tag = ((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_POINTER_DOWN) ? DOWN : UP;
+				int pointerIndex = (action & MotionEvent.ACTION_POINTER_ID_MASK) >> MotionEvent.ACTION_POINTER_ID_SHIFT; // funny misnomer in Eclair...
+				if (bridge.post(tag, event.getPointerId(pointerIndex), event.getX(pointerIndex), event.getY(pointerIndex),
+						width, height) >= 0) bridge.commit();
+				break;
+			}
+			default: {
+				int masked = action & MotionEvent.ACTION_MASK;
+				int tag = (masked == MotionEvent.ACTION_DOWN) ? DOWN : (masked == MotionEvent.ACTION_MOVE) ? XY : UP;
+				int historySize = (tag == XY && bridge.maxHistory > 0) ? event.getHistorySize() : 0;
+				for (int i = 0; i < event.getPointerCount(); i++) {
+					int slot = bridge.post(tag, event.getPointerId(i), event.getX(i), event.getY(i), width, height);
+					if (slot < 0) continue;
+					for (int j = Math.max(0, historySize - bridge.maxHistory), k = 0; j < historySize; j++, k++) {
+						bridge.addHistory(slot, k, event.getHistoricalX(i, j), event.getHistoricalY(i, j), width, height);
+					}
+					bridge.commit();
+				}
+				break;
+			}
+			}
+			return true;
+		}
+	}
+
+	private static class TouchCupcake {
+
+		static boolean evaluateTouch(TouchBridge bridge, MotionEvent event, int width, int height) {
+			int tag;
+			switch (event.getAction()) {
+			case MotionEvent.ACTION_DOWN:
+				tag = DOWN;
+				break;
+			case MotionEvent.ACTION_MOVE:
+				tag = XY;
+				break;
+			default:
+				tag = UP;
+				break;
+			}
+			int slot = bridge.post(tag, 0, event.getX(), event.getY(), width, height);
+			if (slot < 0) return true;
+			int historySize = (tag == XY && bridge.maxHistory > 0) ? event.getHistorySize() : 0;
+			for (int j = Math.max(0, historySize - bridge.maxHistory), k = 0; j < historySize; j++, k++) {
+				bridge.addHistory(slot, k, event.getHistoricalX(j), event.getHistoricalY(j), width, height);
+			}
+			bridge.commit();
+			return true;
+		}
+	}
+}
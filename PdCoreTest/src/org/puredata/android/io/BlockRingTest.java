@@ -0,0 +1,117 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * Tests for {@link BlockRing}: ordering, full and empty rings, and the hand-off between a producer thread and a consumer
+ * thread.
+ *
+ */
+public class BlockRingTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 16;
+
+	public void testDeliversBlocksInOrder() {
+		BlockRing<short[]> ring = new BlockRing<short[]>(new short[4][BLOCK_SIZE]);
+		short out[] = new short[BLOCK_SIZE];
+		for (int round = 0; round < 10; round++) {  // wraps around the ring a few times
+			for (int b = 0; b < 3; b++) {
+				short block[] = ring.claim();
+				assertNotNull(block);
+				Arrays.fill(block, (short) (round * 3 + b));
+				ring.commit();
+			}
+			assertEquals(3, ring.available());
+			for (int b = 0; b < 3; b++) {
+				assertTrue(ring.poll(out));
+				assertEquals((short) (round * 3 + b), out[0]);
+				assertEquals((short) (round * 3 + b), out[BLOCK_SIZE - 1]);
+			}
+			assertEquals(0, ring.available());
+		}
+		assertEquals(0, ring.getOverruns());
+	}
+
+	public void testCountsOverrunsWhenFull() {
+		BlockRing<float[]> ring = new BlockRing<float[]>(new float[2][BLOCK_SIZE]);
+		for (int b = 0; b < 2; b++) {
+			assertNotNull(ring.claim());
+			ring.commit();
+		}
+		assertNull(ring.claim());
+		assertNull(ring.claim());
+		assertEquals(2, ring.getOverruns());
+		assertTrue(ring.skip());
+		assertNotNull(ring.claim());
+	}
+
+	public void testCountsUnderrunsOnlyAfterFirstBlock() {
+		BlockRing<short[]> ring = new BlockRing<short[]>(new short[2][BLOCK_SIZE]);
+		short out[] = new short[BLOCK_SIZE];
+		assertFalse(ring.poll(out));
+		assertEquals(0, ring.getUnderruns());  // the producer hasn't started yet
+		ring.claim();
+		ring.commit();
+		assertTrue(ring.poll(out));
+		assertFalse(ring.poll(out));
+		assertEquals(1, ring.getUnderruns());
+	}
+
+	public void testPeekAndSkip() {
+		BlockRing<float[]> ring = new BlockRing<float[]>(new float[2][BLOCK_SIZE]);
+		assertNull(ring.peek());
+		assertFalse(ring.skip());
+		float block[] = ring.claim();
+		block[0] = 42;
+		ring.commit();
+		assertSame(block, ring.peek());
+		assertSame(block, ring.peek());  // peeking doesn't consume
+		assertTrue(ring.skip());
+		assertNull(ring.peek());
+	}
+
+	public void testClear() {
+		BlockRing<short[]> ring = new BlockRing<short[]>(new short[2][BLOCK_SIZE]);
+		ring.claim();
+		ring.commit();
+		ring.clear();
+		assertEquals(0, ring.available());
+		assertNull(ring.peek());
+	}
+
+	public void testProducerAndConsumerThreads() throws InterruptedException {
+		final int blocks = 20000;
+		final BlockRing<float[]> ring = new BlockRing<float[]>(new float[4][BLOCK_SIZE]);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int n = 0; n < blocks; n++) {
+					float block[];
+					while ((block = ring.claim()) == null) Thread.yield();
+					for (int i = 0; i < BLOCK_SIZE; i++) block[i] = n;
+					ring.commit();
+				}
+			}
+		};
+		producer.start();
+		float out[] = new float[BLOCK_SIZE];
+		for (int n = 0; n < blocks; n++) {
+			while (!ring.poll(out)) Thread.yield();
+			for (int i = 0; i < BLOCK_SIZE; i++) {
+				if (out[i] != n) fail("block " + n + " torn or out of order: " + out[i] + " at " + i);
+			}
+		}
+		producer.join();
+		assertEquals(0, ring.available());
+	}
+}
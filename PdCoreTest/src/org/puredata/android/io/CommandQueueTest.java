@@ -0,0 +1,198 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.puredata.core.PdBase;
+import org.puredata.core.PdReceiver;
+
+/**
+ *
+ * Tests for {@link CommandQueue}: message types, argument ranges, bounded capacity, direct delivery while no audio
+ * thread is running, and several producer threads sending while the test thread plays the audio thread.
+ *
+ */
+public class CommandQueueTest extends TestCase {
+
+	private static final String RECEIVER = "queue_test";
+	private final Recorder recorder = new Recorder();
+	private CommandQueue queue;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		PdBase.setReceiver(recorder);
+		PdBase.subscribe(RECEIVER);
+		queue = new CommandQueue(CommandQueue.DEFAULT_CAPACITY);
+		queue.setDirect(false);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PdBase.unsubscribe(RECEIVER);
+		PdBase.setReceiver(null);
+		super.tearDown();
+	}
+
+	public void testDeliversOnDrain() {
+		assertTrue(queue.sendBang(RECEIVER));
+		assertTrue(queue.sendFloat(RECEIVER, 1.5f));
+		assertTrue(queue.sendSymbol(RECEIVER, "foo"));
+		assertTrue(queue.sendList(RECEIVER, 1, 2, 3));
+		assertTrue(queue.sendMessage(RECEIVER, "bar", 4, 5));
+		assertEquals(0, recorder.messages.size());
+		queue.drain();
+		assertEquals("bang", recorder.messages.get(0));
+		assertEquals("float 1.5", recorder.messages.get(1));
+		assertEquals("symbol foo", recorder.messages.get(2));
+		assertEquals("list 1.0 2.0 3.0", recorder.messages.get(3));
+		assertEquals("bar 4.0 5.0", recorder.messages.get(4));
+		assertEquals(5, recorder.messages.size());
+	}
+
+	public void testArgumentRanges() {
+		float values[] = { 9, 1, 2, 3, 9 };
+		queue.sendList(RECEIVER, values, 1, 3);
+		queue.sendMessage(RECEIVER, "range", values, 2, 2);
+		values[2] = 7;  // the queue has copied the values
+		queue.drain();
+		assertEquals("list 1.0 2.0 3.0", recorder.messages.get(0));
+		assertEquals("range 2.0 3.0", recorder.messages.get(1));
+		try {
+			queue.sendList(RECEIVER, values, 3, 3);
+			fail("range beyond the end of the array");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+		try {
+			queue.sendList(RECEIVER, new float[CommandQueue.MAX_ARGS + 1]);
+			fail("too many arguments");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testRepeatedArgumentsKeepTheirValues() {
+		queue.sendList(RECEIVER, 1, 2);
+		queue.sendList(RECEIVER, 1, 3);  // reuses the box of the first argument
+		queue.sendList(RECEIVER, -0.0f, 3);
+		queue.sendList(RECEIVER, 0.0f, 3);
+		queue.drain();
+		assertEquals("list 1.0 2.0", recorder.messages.get(0));
+		assertEquals("list 1.0 3.0", recorder.messages.get(1));
+		assertEquals("list -0.0 3.0", recorder.messages.get(2));
+		assertEquals("list 0.0 3.0", recorder.messages.get(3));
+	}
+
+	public void testDropsWhenFull() {
+		queue = new CommandQueue(4);
+		queue.setDirect(false);
+		for (int i = 0; i < 4; i++) assertTrue(queue.sendFloat(RECEIVER, i));
+		assertFalse(queue.sendFloat(RECEIVER, 4));
+		assertEquals(1, queue.getDropped());
+		queue.drain();
+		assertEquals(4, recorder.messages.size());
+		assertTrue(queue.sendFloat(RECEIVER, 5));  // room again
+	}
+
+	public void testDirectDeliveryWithoutAudioThread() {
+		queue.sendFloat(RECEIVER, 1);
+		queue.setDirect(true);  // what's still queued goes out right away
+		assertEquals(1, recorder.messages.size());
+		queue.sendFloat(RECEIVER, 2);
+		assertEquals(2, recorder.messages.size());
+		assertEquals("float 2.0", recorder.messages.get(1));
+	}
+
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int messages = 20000;
+		Thread threads[] = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					float args[] = new float[3];
+					for (int n = 0; n < messages; n++) {
+						args[0] = id;
+						args[1] = n;
+						args[2] = id * messages + n;
+						while (!queue.sendList(RECEIVER, args, 0, 3)) Thread.yield();
+					}
+				}
+			};
+			threads[p].start();
+		}
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread t: threads) running |= t.isAlive();
+			queue.drain();
+		}
+		for (Thread t: threads) t.join();
+		queue.drain();
+		assertEquals(producers * messages, recorder.lists.size());
+		int next[] = new int[producers];
+		for (Object args[]: recorder.lists) {
+			int id = ((Number) args[0]).intValue();
+			int n = ((Number) args[1]).intValue();
+			assertEquals("message of producer " + id + " lost or out of order", next[id], n);
+			assertEquals("arguments of different messages mixed up", id * messages + n, ((Number) args[2]).intValue());
+			next[id]++;
+		}
+	}
+
+	// Records what Pure Data would receive.
+	private static final class Recorder implements PdReceiver {
+
+		final List<String> messages = new ArrayList<String>();
+		final List<Object[]> lists = new ArrayList<Object[]>();
+
+		@Override
+		public void print(String s) {
+			// do nothing
+		}
+
+		@Override
+		public void receiveBang(String source) {
+			messages.add("bang");
+		}
+
+		@Override
+		public void receiveFloat(String source, float x) {
+			messages.add("float " + x);
+		}
+
+		@Override
+		public void receiveSymbol(String source, String symbol) {
+			messages.add("symbol " + symbol);
+		}
+
+		@Override
+		public void receiveList(String source, Object... args) {
+			lists.add(args.clone());
+			messages.add(format("list", args));
+		}
+
+		@Override
+		public void receiveMessage(String source, String symbol, Object... args) {
+			messages.add(format(symbol, args));
+		}
+
+		private static String format(String selector, Object args[]) {
+			StringBuilder sb = new StringBuilder(selector);
+			for (Object arg: args) sb.append(' ').append(arg);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * Tests for {@link DriftCompensator}, with simulated input whose clock runs at a fixed ratio to the output clock.
+ *
+ */
+public class DriftCompensatorTest extends TestCase {
+
+	private static final int SAMPLE_RATE = 8000;
+	private static final int FRAMES = 64;
+	private SimulatedInput input = null;
+
+	// Input ring whose producer is driven by the test rather than by AudioRecord; the samples count up, so that any
+	// dropped, repeated, or interpolated frame shows.
+	private static final class SimulatedInput extends AudioRecordWrapper {
+
+		private final double blocksPerCycle;
+		private double produced;
+		private long consumed = 0;
+		private long sample = 0;
+
+		SimulatedInput(double drift, int initialBlocks) throws IOException {
+			super(SAMPLE_RATE, 1, FRAMES);
+			blocksPerCycle = 1.0 + drift;
+			produced = initialBlocks;
+		}
+
+		// Lets one output buffer's worth of time pass on the input clock.
+		void cycle() {
+			produced += blocksPerCycle;
+		}
+
+		static float value(long n) {
+			return (n % 4096) / 4096.0f;
+		}
+
+		@Override
+		public boolean usesFloatSamples() {
+			return true;
+		}
+
+		@Override
+		public int available() {
+			return (int) ((long) produced - consumed);
+		}
+
+		@Override
+		public boolean poll(float buf[]) {
+			if (available() <= 0) return false;
+			for (int i = 0; i < FRAMES; i++) buf[i] = value(sample++);
+			consumed++;
+			return true;
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (input != null) input.release();
+		input = null;
+		super.tearDown();
+	}
+
+	public void testNoInputNoOutput() throws IOException {
+		input = new SimulatedInput(0, 0);
+		DriftCompensator drift = new DriftCompensator(input, SAMPLE_RATE, 1, FRAMES);
+		assertFalse(drift.read(new float[FRAMES]));
+	}
+
+	public void testLosslessWithoutDrift() throws IOException {
+		input = new SimulatedInput(0, 2);
+		DriftCompensator drift = new DriftCompensator(input, SAMPLE_RATE, 1, FRAMES);
+		float out[] = new float[FRAMES];
+		long delay = -1;
+		for (int n = 0; n < 2000; n++) {
+			input.cycle();
+			assertTrue(drift.read(out));
+			if (n < 2) continue;  // the first frames interpolate into the silent history
+			if (delay < 0) delay = (long) n * FRAMES - Math.round(out[0] * 4096);  // input frame n * FRAMES - delay
+			for (int i = 0; i < FRAMES; i++) {
+				long frame = (long) n * FRAMES + i - delay;
+				if (out[i] != SimulatedInput.value(frame)) fail("frame " + frame + " altered: " + out[i]);
+			}
+		}
+		assertEquals(0.0f, drift.getDriftPpm(), 0.0f);
+	}
+
+	public void testTracksFastInput() throws IOException {
+		checkTracking(500e-6);
+	}
+
+	public void testTracksSlowInput() throws IOException {
+		checkTracking(-500e-6);
+	}
+
+	// Runs for ten minutes of simulated time; the ratio has to settle at the drift, and the fill level of the input ring
+	// has to stay bounded, i.e., no blocks are dropped and the input never runs dry once it has started.
+	private void checkTracking(double drift) throws IOException {
+		input = new SimulatedInput(drift, 2);
+		DriftCompensator comp = new DriftCompensator(input, SAMPLE_RATE, 1, FRAMES);
+		float out[] = new float[FRAMES];
+		int cycles = 600 * SAMPLE_RATE / FRAMES;
+		int minFill = Integer.MAX_VALUE, maxFill = 0;
+		for (int n = 0; n < cycles; n++) {
+			input.cycle();
+			assertTrue("input ran dry after " + n + " cycles", comp.read(out));
+			if (n > cycles / 2) {
+				minFill = Math.min(minFill, input.available());
+				maxFill = Math.max(maxFill, input.available());
+			}
+		}
+		assertEquals(drift * 1e6, comp.getDriftPpm(), 50.0);
+		assertTrue("fill level drifts: " + minFill + ".." + maxFill, maxFill - minFill <= 2);
+	}
+}
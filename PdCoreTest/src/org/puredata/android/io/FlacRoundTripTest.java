@@ -0,0 +1,151 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * Tests for {@link FlacWriter} and {@link FlacReader}: whatever goes into the encoder has to come out of the decoder
+ * unchanged, for signals that exercise the different subframe types and for writes that don't line up with blocks.
+ *
+ */
+public class FlacRoundTripTest extends TestCase {
+
+	private static final int SAMPLE_RATE = 44100;
+	private File file = null;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("roundtrip", ".flac");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	public void testMono() throws IOException {
+		checkRoundTrip(makeSignal(1, 3 * FlacWriter.BLOCK_SIZE + 123), 1, 1000);
+	}
+
+	public void testStereo() throws IOException {
+		checkRoundTrip(makeSignal(2, 5 * FlacWriter.BLOCK_SIZE + 7), 2, 999);  // odd writes end in the middle of a frame
+	}
+
+	public void testSixChannels() throws IOException {
+		checkRoundTrip(makeSignal(6, 2 * FlacWriter.BLOCK_SIZE), 6, FlacWriter.BLOCK_SIZE * 6);
+	}
+
+	public void testFullScale() throws IOException {
+		int frames = 2 * FlacWriter.BLOCK_SIZE + 1;
+		short samples[] = new short[2 * frames];
+		for (int i = 0; i < frames; i++) {  // square wave at both extremes, with channels in opposite phase
+			samples[2 * i] = ((i / 3) & 1) == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+			samples[2 * i + 1] = ((i / 3) & 1) == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+		}
+		checkRoundTrip(samples, 2, 4096);
+	}
+
+	public void testFloatSamples() throws IOException {
+		int frames = FlacWriter.BLOCK_SIZE + 100;
+		float in[] = new float[frames];
+		for (int i = 0; i < frames; i++) in[i] = (float) Math.sin(0.01 * i);
+		FlacWriter writer = new FlacWriter(file, SAMPLE_RATE, 1);
+		writer.write(in, 0, frames);
+		writer.close();
+		FlacReader reader = new FlacReader(file);
+		float out[] = new float[frames];
+		assertEquals(frames, reader.read(out, 0, frames));
+		reader.close();
+		for (int i = 0; i < frames; i++) assertEquals(in[i], out[i], 2.0f / 32768.0f);  // truncated, and scaled by 32767 on the way in
+	}
+
+	public void testDropsIncompleteFrameAndRewinds() throws IOException {
+		short in[] = makeSignal(2, 1001);
+		FlacWriter writer = new FlacWriter(file, SAMPLE_RATE, 2);
+		writer.write(in, 0, in.length - 1);
+		writer.close();
+		FlacReader reader = new FlacReader(file);
+		assertEquals(1000, reader.getFrames());
+		short out[] = new short[in.length];
+		assertEquals(2000, reader.read(out, 0, out.length));
+		assertEquals(-1, reader.read(out, 0, out.length));
+		reader.rewind();
+		short again[] = new short[in.length];
+		assertEquals(2000, reader.read(again, 0, again.length));
+		reader.close();
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(in[i], out[i]);
+			assertEquals(in[i], again[i]);
+		}
+	}
+
+	public void testRejectsOtherFiles() throws IOException {
+		WavWriter wav = new WavWriter(file, SAMPLE_RATE, 1, false);
+		wav.close();
+		try {
+			new FlacReader(file).close();
+			fail("read a WAV file as FLAC");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	// Writes the samples in chunks of the given size, reads them back in chunks of a different size, and compares.
+	private void checkRoundTrip(short in[], int channels, int chunk) throws IOException {
+		FlacWriter writer = new FlacWriter(file, SAMPLE_RATE, channels);
+		for (int i = 0; i < in.length; i += chunk) writer.write(in, i, Math.min(chunk, in.length - i));
+		assertEquals(in.length / channels, writer.getFrames());
+		writer.close();
+		FlacReader reader = new FlacReader(file);
+		try {
+			assertEquals(SAMPLE_RATE, reader.getSampleRate());
+			assertEquals(channels, reader.getChannels());
+			assertEquals(in.length / channels, reader.getFrames());
+			short out[] = new short[in.length];
+			int n = 0, k;
+			while (n < out.length && (k = reader.read(out, n, Math.min(777, out.length - n))) > 0) n += k;
+			assertEquals(in.length, n);
+			assertEquals(-1, reader.read(out, 0, 1));
+			for (int i = 0; i < in.length; i++) {
+				if (in[i] != out[i]) fail("sample " + i + " altered: " + in[i] + " -> " + out[i]);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Sections of silence, of a sine with a little noise, and of full-range noise, so that the encoder gets to pick
+	// constant, predicted, and verbatim subframes; the channels are correlated, but not identical.
+	private static short[] makeSignal(int channels, int frames) {
+		Random random = new Random(frames);
+		short samples[] = new short[channels * frames];
+		for (int i = 0; i < frames; i++) {
+			int section = (i / 1500) % 3;
+			for (int c = 0; c < channels; c++) {
+				int v;
+				if (section == 0) {
+					v = 0;
+				} else if (section == 1) {
+					v = (int) (12000 * Math.sin(0.02 * i + 0.3 * c)) + random.nextInt(64) - 32;
+				} else {
+					v = random.nextInt(65536) - 32768;
+				}
+				samples[channels * i + c] = (short) v;
+			}
+		}
+		return samples;
+	}
+}
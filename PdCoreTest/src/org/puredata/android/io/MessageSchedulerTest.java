@@ -0,0 +1,204 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.puredata.core.PdBase;
+import org.puredata.core.PdReceiver;
+
+/**
+ *
+ * Tests for {@link MessageScheduler}: tick-accurate delivery in frame order, direct delivery while no audio thread is
+ * running, bounded capacity, and scheduling from several threads while the test thread plays the audio thread.
+ *
+ */
+public class MessageSchedulerTest extends TestCase {
+
+	private static final String RECEIVER = "scheduler_test";
+	private static final int TICK = 64;
+	private final Recorder recorder = new Recorder();
+	private MessageScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		PdBase.setReceiver(recorder);
+		PdBase.subscribe(RECEIVER);
+		scheduler = new MessageScheduler(MessageScheduler.DEFAULT_CAPACITY);
+		scheduler.reset(44100);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		PdBase.unsubscribe(RECEIVER);
+		PdBase.setReceiver(null);
+		super.tearDown();
+	}
+
+	public void testDeliversInFrameOrderBeforeTheirTick() {
+		scheduler.setDirect(false);
+		long frames[] = { 1000, 130, 0, 127, 128, 1000, 64 };
+		for (int i = 0; i < frames.length; i++) {
+			assertTrue(scheduler.scheduleFloat(frames[i], RECEIVER, i));
+		}
+		assertEquals(0, recorder.size());  // nothing goes out before the audio thread gets to it
+		for (int t = 0; t < 20; t++) {
+			recorder.tick = t;
+			scheduler.advance(TICK, 0);
+		}
+		float order[] = { 2, 6, 3, 4, 1, 0, 5 };  // by frame, and first come, first served within a frame
+		assertEquals(order.length, recorder.size());
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(order[i], recorder.values.get(i), 0.0f);
+			long frame = frames[(int) order[i]];
+			assertEquals("tick of message at frame " + frame, frame / TICK, (long) recorder.ticks.get(i));
+		}
+		assertEquals(20 * TICK, scheduler.getCurrentFrame());
+	}
+
+	public void testLateMessagesGoOutBeforeNextTick() {
+		scheduler.setDirect(false);
+		scheduler.advance(TICK, 0);
+		scheduler.advance(TICK, 0);
+		assertTrue(scheduler.scheduleBang(10, RECEIVER));
+		scheduler.advance(TICK, 0);
+		assertEquals(1, recorder.size());
+	}
+
+	public void testDirectDeliveryWithoutAudioThread() {
+		assertTrue(scheduler.scheduleFloat(0, RECEIVER, 1));
+		assertEquals(1, recorder.size());  // due right away
+		assertTrue(scheduler.scheduleFloat(500, RECEIVER, 2));
+		assertEquals(1, recorder.size());  // waits for audio
+		scheduler.setDirect(false);
+		for (int t = 0; t < 8; t++) scheduler.advance(TICK, 0);
+		assertEquals(2, recorder.size());
+		assertEquals(2.0f, recorder.values.get(1), 0.0f);
+	}
+
+	public void testClearDiscardsPendingMessages() {
+		scheduler.setDirect(false);
+		scheduler.scheduleFloat(100, RECEIVER, 1);
+		scheduler.advance(TICK, 0);  // moves the message into the heap
+		scheduler.scheduleFloat(200, RECEIVER, 2);  // still in the ring
+		scheduler.clear();
+		scheduler.scheduleFloat(300, RECEIVER, 3);
+		for (int t = 0; t < 8; t++) scheduler.advance(TICK, 0);
+		assertEquals(1, recorder.size());
+		assertEquals(3.0f, recorder.values.get(0), 0.0f);
+	}
+
+	public void testDropsWhenFull() {
+		scheduler = new MessageScheduler(4);
+		scheduler.reset(44100);
+		scheduler.setDirect(false);
+		for (int i = 0; i < 4; i++) assertTrue(scheduler.scheduleFloat(10000, RECEIVER, i));
+		assertFalse(scheduler.scheduleFloat(10000, RECEIVER, 4));  // ring is full
+		assertEquals(1, scheduler.getDropped());
+		scheduler.advance(TICK, 0);  // ring into heap, which is now full as well
+		for (int i = 0; i < 4; i++) assertTrue(scheduler.scheduleFloat(10000, RECEIVER, 5 + i));
+		scheduler.advance(TICK, 0);
+		assertEquals(5, scheduler.getDropped());
+		for (int t = 0; t < 200; t++) scheduler.advance(TICK, 0);
+		assertEquals(4, recorder.size());
+	}
+
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int messages = 5000;
+		scheduler = new MessageScheduler(producers * messages);  // room for all of them, however far the producers get ahead
+		scheduler.reset(44100);
+		scheduler.setDirect(false);
+		final long horizon = 1000L * TICK;
+		Thread threads[] = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int id = p;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int n = 0; n < messages; n++) {
+						long frame = (n * 7919L) % horizon;  // scattered, with many messages at the same frame
+						while (!scheduler.scheduleList(frame, RECEIVER, (float) id, (float) n, (float) frame)) Thread.yield();
+					}
+				}
+			};
+			threads[p].start();
+		}
+		boolean running = true;
+		while (running) {
+			running = false;
+			for (Thread t: threads) running |= t.isAlive();
+			scheduler.advance(TICK, 0);
+		}
+		for (Thread t: threads) t.join();
+		while (scheduler.getCurrentFrame() <= horizon) scheduler.advance(TICK, 0);
+		scheduler.advance(TICK, 0);
+		assertEquals(producers * messages, recorder.size());
+		int next[][] = new int[producers][(int) horizon];  // messages of one producer for one frame keep their order
+		int seen[] = new int[producers];
+		for (Object args[]: recorder.lists) {
+			int id = ((Number) args[0]).intValue();
+			int n = ((Number) args[1]).intValue();
+			int frame = ((Number) args[2]).intValue();
+			seen[id]++;
+			assertTrue("message " + n + " of producer " + id + " out of order", n >= next[id][frame]);
+			next[id][frame] = n + 1;
+		}
+		for (int p = 0; p < producers; p++) assertEquals(messages, seen[p]);
+		assertEquals(0, scheduler.getDropped());
+	}
+
+	// Records what Pure Data would receive, along with the tick during which it came in.
+	private static final class Recorder implements PdReceiver {
+
+		final List<Float> values = new ArrayList<Float>();
+		final List<Integer> ticks = new ArrayList<Integer>();
+		final List<Object[]> lists = new ArrayList<Object[]>();
+		int tick = 0;
+		int bangs = 0;
+
+		int size() {
+			return values.size() + lists.size() + bangs;
+		}
+
+		@Override
+		public void print(String s) {
+			// do nothing
+		}
+
+		@Override
+		public void receiveBang(String source) {
+			bangs++;
+		}
+
+		@Override
+		public void receiveFloat(String source, float x) {
+			values.add(x);
+			ticks.add(tick);
+		}
+
+		@Override
+		public void receiveSymbol(String source, String symbol) {
+			// do nothing
+		}
+
+		@Override
+		public void receiveList(String source, Object... args) {
+			lists.add(args.clone());
+		}
+
+		@Override
+		public void receiveMessage(String source, String symbol, Object... args) {
+			// do nothing
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * Tests for {@link MixingBackend}: default gain matrices, mixing of short and float samples, clipping, replacing the
+ * gains, and pass-through of everything but the output.
+ *
+ */
+public class MixingBackendTest extends TestCase {
+
+	private static final int FRAMES = 4;
+	private static final float CENTER = 0.70710677f;
+
+	// Backend that keeps what was written to it, and feeds a fixed value to reads.
+	private static final class RecordingBackend implements AudioBackend {
+
+		final boolean floatSamples;
+		int inChannels = -1;
+		int outChannels = -1;
+		short shorts[] = null;
+		float floats[] = null;
+		boolean started = false;
+		boolean released = false;
+
+		RecordingBackend(boolean floatSamples) {
+			this.floatSamples = floatSamples;
+		}
+
+		@Override
+		public void open(int sampleRate, int inChannels, int outChannels, int framesPerBuffer, int maxQueueFrames,
+				boolean preferFloat) throws IOException {
+			this.inChannels = inChannels;
+			this.outChannels = outChannels;
+		}
+
+		@Override
+		public boolean usesFloatSamples() {
+			return floatSamples;
+		}
+
+		@Override
+		public int getMinQueueFrames() {
+			return 0;
+		}
+
+		@Override
+		public int getMaxQueueFrames() {
+			return 0;
+		}
+
+		@Override
+		public int setQueueFrames(int frames) {
+			return frames;
+		}
+
+		@Override
+		public void start() {
+			started = true;
+		}
+
+		@Override
+		public void stop() {
+			started = false;
+		}
+
+		@Override
+		public void release() {
+			released = true;
+		}
+
+		@Override
+		public boolean read(short buffer[]) {
+			for (int i = 0; i < buffer.length; i++) buffer[i] = 7;
+			return true;
+		}
+
+		@Override
+		public boolean read(float buffer[]) {
+			for (int i = 0; i < buffer.length; i++) buffer[i] = 0.25f;
+			return true;
+		}
+
+		@Override
+		public int write(short buffer[], int offset, int size) {
+			shorts = new short[size];
+			System.arraycopy(buffer, offset, shorts, 0, size);
+			return size;
+		}
+
+		@Override
+		public int write(float buffer[], int offset, int size) {
+			floats = new float[size];
+			System.arraycopy(buffer, offset, floats, 0, size);
+			return size;
+		}
+
+		@Override
+		public long getFramesPlayed() {
+			return 0;
+		}
+
+		@Override
+		public int getUnderrunCount() {
+			return 0;
+		}
+
+		@Override
+		public long getDroppedInput() {
+			return 0;
+		}
+	}
+
+	public void testDefaultGains() {
+		float identity[][] = MixingBackend.defaultGains(2, 2);
+		assertRow(identity[0], 1, 0);
+		assertRow(identity[1], 0, 1);
+		float mono[][] = MixingBackend.defaultGains(1, 2);  // mono to both sides
+		assertRow(mono[0], 1);
+		assertRow(mono[1], 1);
+		float toMono[][] = MixingBackend.defaultGains(2, 1);
+		assertRow(toMono[0], 0.5f, 0.5f);
+		float quad[][] = MixingBackend.defaultGains(4, 2);  // wraps around
+		assertRow(quad[0], 0.5f, 0, 0.5f, 0);
+		assertRow(quad[1], 0, 0.5f, 0, 0.5f);
+	}
+
+	public void testSurroundToStereo() {
+		for (int channels: new int[] { 6, 8 }) {
+			float g[][] = MixingBackend.defaultGains(channels, 2);
+			for (int m = 0; m < 2; m++) {
+				assertEquals(0.0f, g[m][3], 0.0f);  // no LFE
+				assertEquals(0.0f, g[m][1 - m], 0.0f);  // front channels stay on their side
+				assertEquals(0.0f, g[m][5 - m], 0.0f);
+				assertEquals(CENTER * g[m][m], g[m][2], 1e-6f);  // -3dB relative to the front
+				assertEquals(CENTER * g[m][m], g[m][4 + m], 1e-6f);
+				float sum = 0;
+				for (float x: g[m]) sum += x;
+				assertEquals(1.0f, sum, 1e-6f);  // scaled down so that it never clips
+			}
+		}
+	}
+
+	public void testMixesFloatSamples() throws IOException {
+		RecordingBackend device = new RecordingBackend(true);
+		MixingBackend mixer = new MixingBackend(device, new float[][] { { 1, 0, 0.5f }, { 0, 0.25f, 0.5f } });
+		mixer.open(44100, 1, 3, FRAMES, 0, true);
+		assertTrue(mixer.usesFloatSamples());
+		assertEquals(1, device.inChannels);
+		assertEquals(2, device.outChannels);
+		float in[] = new float[3 * FRAMES];
+		for (int i = 0; i < in.length; i++) in[i] = 0.1f * i;
+		assertEquals(in.length, mixer.write(in, 0, in.length));
+		assertEquals(2 * FRAMES, device.floats.length);
+		for (int f = 0; f < FRAMES; f++) {
+			float a = in[3 * f], b = in[3 * f + 1], c = in[3 * f + 2];
+			assertEquals(a + 0.5f * c, device.floats[2 * f], 1e-6f);
+			assertEquals(0.25f * b + 0.5f * c, device.floats[2 * f + 1], 1e-6f);
+		}
+	}
+
+	public void testMixesAndClipsShortSamples() throws IOException {
+		RecordingBackend device = new RecordingBackend(false);
+		MixingBackend mixer = new MixingBackend(device, new float[][] { { 1, 1 } });  // summed without scaling
+		mixer.open(44100, 0, 2, FRAMES, 0, false);
+		assertFalse(mixer.usesFloatSamples());
+		short in[] = { 1000, 2000, 30000, 30000, -30000, -30000, 0, -5 };
+		mixer.write(in, 0, in.length);
+		assertEquals(FRAMES, device.shorts.length);
+		assertEquals(3000, device.shorts[0]);
+		assertEquals(Short.MAX_VALUE, device.shorts[1]);
+		assertEquals(Short.MIN_VALUE, device.shorts[2]);
+		assertEquals(-5, device.shorts[3]);
+	}
+
+	public void testReplacesGains() throws IOException {
+		RecordingBackend device = new RecordingBackend(true);
+		MixingBackend mixer = new MixingBackend(device, 2);
+		try {
+			mixer.setGains(MixingBackend.defaultGains(2, 2));
+			fail("gains set before opening");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertNull(mixer.getGains());
+		mixer.open(44100, 0, 2, FRAMES, 0, true);
+		float in[] = { 1, 0, 1, 0, 1, 0, 1, 0 };
+		mixer.write(in, 0, in.length);
+		assertEquals(1.0f, device.floats[0], 0.0f);
+		assertEquals(0.0f, device.floats[1], 0.0f);
+		float swap[][] = { { 0, 1 }, { 1, 0 } };
+		mixer.setGains(swap);
+		swap[0][0] = 5;  // the mixer has its own copy
+		mixer.write(in, 0, in.length);
+		assertEquals(0.0f, device.floats[0], 0.0f);
+		assertEquals(1.0f, device.floats[1], 0.0f);
+		assertEquals(0.0f, mixer.getGains()[0][0], 0.0f);
+		try {
+			mixer.setGains(new float[][] { { 1, 0, 0 }, { 0, 1, 0 } });
+			fail("gains for the wrong number of channels");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testRejectsMismatchedGains() {
+		MixingBackend mixer = new MixingBackend(new RecordingBackend(true), new float[][] { { 1, 0 } });
+		try {
+			mixer.open(44100, 0, 3, FRAMES, 0, true);
+			fail("opened with gains for two channels and three channels of output");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testPassesThroughInputAndControl() throws IOException {
+		RecordingBackend device = new RecordingBackend(false);
+		MixingBackend mixer = new MixingBackend(device, 1);
+		assertSame(device, mixer.getBackend());
+		assertEquals(1, mixer.getDeviceChannels());
+		mixer.open(44100, 2, 2, FRAMES, 0, false);
+		assertEquals(2, device.inChannels);
+		short in[] = new short[2 * FRAMES];
+		assertTrue(mixer.read(in));
+		for (short s: in) assertEquals(7, s);
+		mixer.start();
+		assertTrue(device.started);
+		mixer.stop();
+		assertFalse(device.started);
+		mixer.release();
+		assertTrue(device.released);
+	}
+
+	private static void assertRow(float row[], float... expected) {
+		assertEquals(expected.length, row.length);
+		for (int n = 0; n < row.length; n++) assertEquals("gain " + n, expected[n], row[n], 1e-6f);
+	}
+}
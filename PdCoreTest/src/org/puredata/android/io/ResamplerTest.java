@@ -0,0 +1,150 @@
+/**
+ *
+ * For information on usage and redistribution, and for a DISCLAIMER OF ALL
+ * WARRANTIES, see the file, "LICENSE.txt," in this distribution.
+ *
+ */
+
+package org.puredata.android.io;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * Tests for {@link Resampler}: gain at DC, latency, number of output frames, and attenuation of frequencies above the
+ * new Nyquist frequency, for ratios with and without interpolation between filter phases.
+ *
+ */
+public class ResamplerTest extends TestCase {
+
+	private static final int RATES[][] = {
+			{ 44100, 48000 }, { 48000, 44100 }, { 22050, 48000 }, { 48000, 8000 }, { 48000, 48000 },
+			{ 44100, 48001 }  // more than MAX_PHASES phases
+	};
+	private static final int QUALITIES[] = { Resampler.QUALITY_LOW, Resampler.QUALITY_MEDIUM, Resampler.QUALITY_HIGH };
+	private static final int BLOCK = 256;
+
+	public void testUnityGainAtDC() {
+		for (int rates[]: RATES) {
+			for (int quality: QUALITIES) {
+				Resampler resampler = new Resampler(rates[0], rates[1], 2, BLOCK, quality);
+				float in[] = new float[2 * BLOCK];
+				for (int i = 0; i < BLOCK; i++) {
+					in[2 * i] = 1.0f;
+					in[2 * i + 1] = -0.5f;  // channels don't mix
+				}
+				float out[] = new float[2 * resampler.getMaxOutputFrames(BLOCK)];
+				int settled = (int) ((long) resampler.getTaps() * rates[1] / rates[0]) + 1;
+				int frames = 0;
+				for (int b = 0; b < 20; b++) {
+					int n = resampler.process(in, 0, BLOCK, out);
+					for (int i = 0; i < n; i++, frames++) {
+						if (frames < settled) continue;
+						String where = rates[0] + " -> " + rates[1] + ", quality " + quality + ", frame " + frames;
+						assertEquals(where, 1.0f, out[2 * i], 1e-4f);
+						assertEquals(where, -0.5f, out[2 * i + 1], 1e-4f);
+					}
+				}
+			}
+		}
+	}
+
+	public void testOutputFramesFollowRatio() {
+		int sizes[] = { 1, 7, 64, BLOCK, 100, 3 };
+		for (int rates[]: RATES) {
+			for (int quality: QUALITIES) {
+				Resampler resampler = new Resampler(rates[0], rates[1], 1, BLOCK, quality);
+				float in[] = new float[BLOCK];
+				float out[] = new float[resampler.getMaxOutputFrames(BLOCK)];
+				long inFrames = 0, outFrames = 0;
+				for (int b = 0; b < 600; b++) {
+					int size = sizes[b % sizes.length];
+					int n = resampler.process(in, 0, size, out);
+					assertTrue(n <= resampler.getMaxOutputFrames(size));
+					inFrames += size;
+					outFrames += n;
+					// the latency is made up of silence up front, so output keeps pace with input from the start
+					double expected = (double) inFrames * rates[1] / rates[0];
+					assertEquals(rates[0] + " -> " + rates[1] + ", quality " + quality, expected, outFrames,
+							(double) rates[1] / rates[0] + 1);
+				}
+			}
+		}
+	}
+
+	public void testLatency() {
+		for (int rates[]: RATES) {
+			for (int quality: QUALITIES) {
+				Resampler resampler = new Resampler(rates[0], rates[1], 1, BLOCK, quality);
+				int edge = 1000;  // input frame of a step from 0 to 1
+				float in[] = new float[BLOCK];
+				float out[] = new float[4 * BLOCK * rates[1] / rates[0] + 64];
+				float all[] = new float[20 * out.length];
+				int frames = 0;
+				for (int b = 0; b < 16; b++) {
+					for (int i = 0; i < BLOCK; i++) in[i] = (b * BLOCK + i >= edge) ? 1.0f : 0.0f;
+					int n = resampler.process(in, 0, BLOCK, out);
+					System.arraycopy(out, 0, all, frames, n);
+					frames += n;
+				}
+				int j = 0;
+				while (all[j + 1] < 0.5f) j++;
+				double crossing = j + (0.5f - all[j]) / (all[j + 1] - all[j]);  // in output frames
+				// the continuous step that the samples stand for is centered half a frame before the edge
+				double expected = (edge - 0.5 + resampler.getLatencyFrames()) * rates[1] / rates[0];
+				assertEquals(rates[0] + " -> " + rates[1] + ", quality " + quality, expected, crossing, 0.1);
+			}
+		}
+	}
+
+	public void testAttenuatesAboveNyquist() {
+		int inRate = 48000, outRate = 8000;
+		for (int quality: new int[] { Resampler.QUALITY_MEDIUM, Resampler.QUALITY_HIGH }) {
+			Resampler resampler = new Resampler(inRate, outRate, 1, BLOCK, quality);
+			float in[] = new float[BLOCK];
+			float out[] = new float[resampler.getMaxOutputFrames(BLOCK)];
+			double peak = 0;
+			long t = 0;
+			int frames = 0;
+			for (int b = 0; b < 200; b++) {  // 6kHz, which would alias to 2kHz
+				for (int i = 0; i < BLOCK; i++, t++) in[i] = (float) Math.sin(2 * Math.PI * 6000 * t / inRate);
+				int n = resampler.process(in, 0, BLOCK, out);
+				for (int i = 0; i < n; i++, frames++) {
+					if (frames > resampler.getTaps()) peak = Math.max(peak, Math.abs(out[i]));
+				}
+			}
+			assertTrue("quality " + quality + ", alias at " + 20 * Math.log10(peak) + "dB", peak < 1e-3);
+		}
+	}
+
+	public void testResetForgetsInput() {
+		Resampler resampler = new Resampler(44100, 48000, 1, BLOCK, Resampler.QUALITY_MEDIUM);
+		float in[] = new float[BLOCK];
+		Arrays.fill(in, 1.0f);
+		float out[] = new float[resampler.getMaxOutputFrames(BLOCK)];
+		resampler.process(in, 0, BLOCK, out);
+		resampler.reset();
+		Arrays.fill(in, 0.0f);
+		int n = resampler.process(in, 0, BLOCK, out);
+		assertTrue(n > 0);
+		for (int i = 0; i < n; i++) assertEquals(0.0f, out[i], 0.0f);
+	}
+
+	public void testRejectsBadParameters() {
+		try {
+			new Resampler(44100, 48000, 1, BLOCK, 3);
+			fail("unknown quality");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		Resampler resampler = new Resampler(44100, 48000, 1, BLOCK, Resampler.QUALITY_LOW);
+		try {
+			resampler.process(new float[BLOCK + 1], 0, BLOCK + 1, new float[2 * BLOCK]);
+			fail("too many input frames");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -41,8 +41,9 @@ public class PdP5Sample extends PApplet {
 		stroke(255, 0, 0);
 		ellipseMode(CENTER);
 		ellipse(mouseX, mouseY, 100, 100);
-		pd.sendFloat("pitch", (float)mouseX / (float)width); // Send float message to symbol "pitch" in Pd.
-		pd.sendFloat("volume", (float)mouseY / (float)height);
+		// Send float messages to symbols "pitch" and "volume" in Pd, without contending with the audio thread.
+		PdAudio.getCommandQueue().sendFloat("pitch", (float)mouseX / (float)width);
+		PdAudio.getCommandQueue().sendFloat("volume", (float)mouseY / (float)height);
 	}
 	
 	@Override
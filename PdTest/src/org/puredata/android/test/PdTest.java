@@ -14,6 +14,7 @@ package org.puredata.android.test;
 public class PdTest extends Activity implements OnClickListener, OnEditorActionListener, SharedPreferences.OnSharedPreferenceChangeListener {
 
 	private static final String TAG = "Pd Test";
+	private static final long POLL_MILLIS = 16;  // about once per frame
 
 	private CheckBox left, right, mic;
 	private EditText msg;
@@ -46,6 +47,18 @@ public class PdTest extends Activity implements OnClickListener, OnEditorActionL
 		});
 	}
 
+	// messages from Pd are collected on the audio thread and polled on the UI thread, so that toasts and logs never
+	// hold up audio
+	private final PdMessageRing messageRing = new PdMessageRing();
+	private final Handler handler = new Handler();
+	private final Runnable poller = new Runnable() {
+		@Override
+		public void run() {
+			messageRing.pollMessages(receiver);
+			handler.postDelayed(this, POLL_MILLIS);
+		}
+	};
+
 	private PdReceiver receiver = new PdReceiver() {
 
 		private void pdPost(String msg) {
@@ -136,7 +149,8 @@ public class PdTest extends Activity implements OnClickListener, OnEditorActionL
 		Resources res = getResources();
 		File patchFile = null;
 		try {
-			PdBase.setReceiver(receiver);
+			PdBase.setReceiver(messageRing);
+			handler.post(poller);
 			PdBase.subscribe("android");
 			InputStream in = res.openRawResource(R.raw.test);
 			patchFile = IoUtils.extractResource(in, "test.pd", getCacheDir());
@@ -161,6 +175,7 @@ public class PdTest extends Activity implements OnClickListener, OnEditorActionL
 	}
 
 	private void cleanup() {
+		handler.removeCallbacks(poller);
 		try {
 			unbindService(pdConnection);
 		} catch (IllegalArgumentException e) {
@@ -197,13 +212,13 @@ public class PdTest extends Activity implements OnClickListener, OnEditorActionL
 	public void onClick(View v) {
 		switch (v.getId()) {
 		case R.id.left_box:
-			PdBase.sendFloat("left", left.isChecked() ? 1 : 0);
+			PdAudio.getCommandQueue().sendFloat("left", left.isChecked() ? 1 : 0);
 			break;
 		case R.id.right_box:
-			PdBase.sendFloat("right", right.isChecked() ? 1 : 0);
+			PdAudio.getCommandQueue().sendFloat("right", right.isChecked() ? 1 : 0);
 			break;
 		case R.id.mic_box:
-			PdBase.sendFloat("mic", mic.isChecked() ? 1 : 0);
+			PdAudio.getCommandQueue().sendFloat("mic", mic.isChecked() ? 1 : 0);
 			break;
 		case R.id.pref_button:
 			startActivity(new Intent(this, PdPreferences.class));
@@ -244,23 +259,24 @@ public class PdTest extends Activity implements OnClickListener, OnEditorActionL
 				list.add(sc.next());
 			}
 		}
+		MessageScheduler scheduler = PdAudio.getScheduler();  // frame 0 means as soon as possible
 		if (isAny) {
-			PdBase.sendMessage(dest, symbol, list.toArray());
+			scheduler.scheduleMessage(0, dest, symbol, list.toArray());
 		} else {
 			switch (list.size()) {
 			case 0:
-				PdBase.sendBang(dest);
+				scheduler.scheduleBang(0, dest);
 				break;
 			case 1:
 				Object x = list.get(0);
 				if (x instanceof String) {
-					PdBase.sendSymbol(dest, (String) x);
+					scheduler.scheduleSymbol(0, dest, (String) x);
 				} else {
-					PdBase.sendFloat(dest, (Float) x);
+					scheduler.scheduleFloat(0, dest, (Float) x);
 				}
 				break;
 			default:
-				PdBase.sendList(dest, list.toArray());
+				scheduler.scheduleList(0, dest, list.toArray());
 				break;
 			}
 		}
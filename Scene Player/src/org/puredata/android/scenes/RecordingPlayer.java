@@ -28,6 +28,10 @@ public class RecordingPlayer extends Activity implements OnSeekBarChangeListener
 	private boolean playbackState;
 	private Thread updateThread = null;
 	private Toast toast = null;
+	private ProgressDialog progress = null;
+	private Thread decodeThread = null;
+	private boolean prepared = false;
+	private boolean resumed = false;
 	
 	private void toast(final String msg) {
 		runOnUiThread(new Runnable() {
@@ -80,12 +84,16 @@ public class RecordingPlayer extends Activity implements OnSeekBarChangeListener
 			mediaPlayer.setLooping(true);
 			String recPath = SceneDataBase.getString(cursor, RecordingColumn.RECORDING_PATH);
 			cursor.close();
-			try {
-				mediaPlayer.setDataSource(recPath);
-				mediaPlayer.prepare();
-			} catch (Exception e) {
-				toast(getResources().getString(R.string.open_recording_fail));
-				finish();
+			if (recPath.endsWith(".flac")) {
+				decodeRecording(recPath);
+			} else {
+				try {
+					mediaPlayer.setDataSource(recPath);
+					mediaPlayer.prepare();
+					prepared = true;
+				} catch (Exception e) {
+					openFailed();
+				}
 			}
 		} else {
 			toast(getResources().getString(R.string.no_such_recording));
@@ -93,6 +101,103 @@ public class RecordingPlayer extends Activity implements OnSeekBarChangeListener
 		}
 	}
 	
+	private void openFailed() {
+		toast(getResources().getString(R.string.open_recording_fail));
+		finish();
+	}
+
+	// MediaPlayer doesn't play FLAC on older devices, so compressed recordings are decoded to a temporary WAV file.
+	// Decoding takes a while, so it runs in a separate thread in order to keep the progress wheel spinning.
+	private void decodeRecording(final String path) {
+		progress = new ProgressDialog(this);
+		progress.setCancelable(false);
+		progress.setIndeterminate(true);
+		progress.setMessage("Decoding recording...");
+		progress.show();
+		decodeThread = new Thread() {
+			@Override
+			public void run() {
+				File wav = null;
+				boolean done = false;
+				try {
+					wav = File.createTempFile("recording", ".wav", getCacheDir());
+					done = decode(new File(path), wav);
+				} catch (IOException e) {
+					// Handled below.
+				}
+				if (!done && wav != null) {
+					wav.delete();
+				}
+				final File decoded = done ? wav : null;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						openDecoded(decoded);
+					}
+				});
+			}
+		};
+		decodeThread.start();
+	}
+
+	// Returns false if the decoding thread was interrupted.
+	private boolean decode(File flac, File wav) throws IOException {
+		FlacReader reader = new FlacReader(flac);
+		try {
+			WavWriter writer = new WavWriter(wav, reader.getSampleRate(), reader.getChannels(), false);
+			try {
+				short buffer[] = new short[4096 * reader.getChannels()];
+				int n;
+				while ((n = reader.read(buffer, 0, buffer.length)) > 0) {
+					if (Thread.interrupted()) return false;
+					writer.write(buffer, 0, n);
+				}
+			} finally {
+				writer.close();
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	// Called on the UI thread once decoding is done.  MediaPlayer keeps its own descriptor of the decoded file, so the
+	// file is deleted right away and its space goes back to the system when the player is released.
+	private void openDecoded(File decoded) {
+		if (decodeThread == null) {  // destroyed while decoding
+			if (decoded != null) decoded.delete();
+			return;
+		}
+		decodeThread = null;
+		dismissProgressDialog();
+		if (decoded == null) {
+			openFailed();
+			return;
+		}
+		try {
+			FileInputStream in = new FileInputStream(decoded);
+			try {
+				mediaPlayer.setDataSource(in.getFD());
+			} finally {
+				in.close();
+			}
+			mediaPlayer.prepare();
+			prepared = true;
+		} catch (Exception e) {
+			openFailed();
+		} finally {
+			decoded.delete();
+		}
+		if (prepared && resumed && playButton.isChecked()) {
+			startPlayback();
+		}
+	}
+
+	private void dismissProgressDialog() {
+		if (progress != null) progress.dismiss();
+		progress = null;
+	}
+
 	private void displaySceneInfo(long sceneId) {
 		Cursor cursor = db.getScene(sceneId);
 		if (cursor.getCount() > 0) {
@@ -110,6 +215,7 @@ public class RecordingPlayer extends Activity implements OnSeekBarChangeListener
 	@Override
 	protected void onResume() {
 		super.onResume();
+		resumed = true;
 		if (playButton.isChecked()) {
 			startPlayback();
 		}
@@ -118,28 +224,36 @@ public class RecordingPlayer extends Activity implements OnSeekBarChangeListener
 	@Override
 	protected void onPause() {
 		super.onPause();
+		resumed = false;
 		stopPlayback();
 	}
 	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		if (decodeThread != null) {
+			decodeThread.interrupt();
+			decodeThread = null;
+		}
+		dismissProgressDialog();
 		mediaPlayer.release();
 		db.close();
 	}
 
 	private void startPlayback() {
+		if (!prepared) return;
 		startUpdateThread();
 		mediaPlayer.start();
 	}
 
 	private void stopPlayback() {
+		if (!prepared) return;
 		mediaPlayer.pause();
 		stopUpdateThread();
 	}
 
 	public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-		if (fromUser) {
+		if (fromUser && prepared) {
 			mediaPlayer.seekTo(progress);
 		}
 	}
@@ -12,7 +12,7 @@ package org.puredata.android.scenes;
 import org.puredata.android.scenes.SceneDataBase.SceneColumn;
 
 
-public class ScenePlayer extends Activity implements SensorEventListener, OnTouchListener, OnClickListener, OnSeekBarChangeListener {
+public class ScenePlayer extends Activity implements OnTouchListener, OnClickListener, OnSeekBarChangeListener {
 
 	public static final String RECORDING_PATH = "recording_path";
 	private static final String TAG = "Pd Scene Player";
@@ -22,6 +22,11 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 	private static final String ACCELERATE = "#accelerate";
 	private static final String MICVOLUME = "#micvolume";
 	private static final int SAMPLE_RATE = 22050;
+	private static final float ACCELERATE_RATE = 50.0f;  // messages per second, same as SENSOR_DELAY_GAME
+	private static final float ACCELERATE_THRESHOLD = 0.005f;  // in units of g
+	private static final long POLL_MILLIS = 16;  // about once per frame
+	private SensorBridge sensorBridge = null;
+	private final TouchBridge touchBridge = new TouchBridge(TouchBridge.DEFAULT_RECEIVER, 319.0f, 319.0f);
 	private final Object lock = new Object();
 	private SceneDataBase db;
 	private ProgressDialog progress = null;
@@ -49,6 +54,19 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 		}
 	};
 
+	// messages from Pd are collected on the audio thread and handed to the dispatcher on the UI thread, so that
+	// overlay updates never hold up audio
+	private final PdMessageRing messageRing = new PdMessageRing();
+	private final Handler handler = new Handler();
+	private final Runnable poller = new Runnable() {
+		@Override
+		public void run() {
+			messageRing.pollMessages(dispatcher);
+			showMicLevel();
+			handler.postDelayed(this, POLL_MILLIS);
+		}
+	};
+
 	private void post(final String msg) {
 		Log.i(TAG, msg);
 	}
@@ -68,39 +86,40 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 		});
 	}
 
-	private final PdListener overlayListener = new PdListener.Adapter() {
+	private final PdListener overlayListener = new AtomListener() {
 
 		private final Map<String, Overlay> overlays = new HashMap<String, Overlay>();
 
 		@Override
-		public void receiveList(Object... args) {
-			String key = (String) args[0];
-			String cmd = (String) args[1];
+		public void receiveList(String source, AtomList args) {
+			String key = args.getSymbol(0);
+			String cmd = args.getSymbol(1);
+			if (key == null || cmd == null) return;
 			if (overlays.containsKey(key)) {
 				Overlay overlay = overlays.get(key);
 				if (cmd.equals("visible")) {
-					boolean flag = ((Float) args[2]).floatValue() > 0.5f;
+					boolean flag = args.getFloat(2) > 0.5f;
 					overlay.setVisible(flag);
 				} else if (cmd.equals("move")) {
-					float x = ((Float) args[2]).floatValue();
-					float y = ((Float) args[3]).floatValue();
+					float x = args.getFloat(2);
+					float y = args.getFloat(3);
 					overlay.setPosition(x, y);
 				} else {
 					if (overlay instanceof TextOverlay) {
 						TextOverlay textOverlay = (TextOverlay) overlay;
 						if (cmd.equals("text")) {
-							textOverlay.setText((String) args[2]);
+							textOverlay.setText(args.getSymbol(2));
 						} else if (cmd.equals("size")) {
-							textOverlay.setSize(((Float) args[2]).floatValue());
+							textOverlay.setSize(args.getFloat(2));
 						}
 					} else {
 						ImageOverlay imgOverlay = (ImageOverlay) overlay;
-						float val = ((Float) args[2]).floatValue();
+						float val = args.getFloat(2);
 						if (cmd.equals("ref")) {
 							boolean flag = val > 0.5f;
 							imgOverlay.setCentered(flag);
 						} else if (cmd.equals("scale")) {
-							float sy = ((Float) args[3]).floatValue();
+							float sy = args.getFloat(3);
 							imgOverlay.setScale(val, sy);
 						} else if (cmd.equals("rotate")) {
 							imgOverlay.setAngle(val);
@@ -110,7 +129,7 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 					}
 				}
 			} else {
-				String arg = (String) args[2];
+				String arg = args.getSymbol(2);
 				Overlay overlay;
 				if (cmd.equals("load")) {
 					overlay = new ImageOverlay(new File(sceneFolder, arg).getAbsolutePath());
@@ -181,8 +200,18 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 	}
 
 	private void initSystemServices() {
-		SensorManager sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-		sm.registerListener(this, sm.getDefaultSensor(Sensor.TYPE_ACCELEROMETER), SensorManager.SENSOR_DELAY_GAME);
+		sensorBridge = new SensorBridge((SensorManager) getSystemService(SENSOR_SERVICE));
+		final float q = 1.0f / SensorManager.GRAVITY_EARTH;  // convert acceleration units from m/s^2 to g
+		sensorBridge.addSensor(Sensor.TYPE_ACCELEROMETER, ACCELERATE, ACCELERATE_RATE, ACCELERATE_THRESHOLD, q, -q, -q);
+		/**
+		 * Explanation:  Observation of RjDj patches suggests that the z-axis points
+		 * downward on iPhones.  Since I'm pretty sure that the coordinate system is
+		 * supposed to be right-handed and that the x-axis points right, I've concluded
+		 * that the way to convert between Android and iPhone accelerometer values is to
+		 * flip the sign of the y and z coordinates.
+		 */
+		sensorBridge.start();
+		touchBridge.start();
 		TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
 		telephonyManager.listen(new PhoneStateListener() {
 			@Override
@@ -211,27 +240,9 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 		}
 	}
 
-	@Override
-	public void onSensorChanged(SensorEvent event) {
-		final float q = 1.0f / SensorManager.GRAVITY_EARTH;  // convert acceleration units from m/s^2 to g
-		PdBase.sendList(ACCELERATE, event.values[0] * q, -event.values[1] * q, -event.values[2] * q);
-		/**
-		 * Explanation:  Observation of RjDj patches suggests that the z-axis points
-		 * downward on iPhones.  Since I'm pretty sure that the coordinate system is
-		 * supposed to be right-handed and that the x-axis points right, I've concluded
-		 * that the way to convert between Android and iPhone accelerometer values is to
-		 * flip the sign of the y and z coordinates.
-		 */
-	}
-
-	@Override
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// don't care
-	}
-
 	@Override
 	public boolean onTouch(View v, MotionEvent event) {
-		return (v == sceneView) && VersionedTouch.evaluateTouch(event, sceneView.getWidth(), sceneView.getHeight());
+		return (v == sceneView) && touchBridge.evaluateTouch(event, sceneView.getWidth(), sceneView.getHeight());
 	}
 
 	@Override
@@ -273,9 +284,10 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 		new Thread() {
 			@Override
 			public void run() {
-				PdBase.setReceiver(dispatcher);
+				PdBase.setReceiver(messageRing);
 				dispatcher.addListener(RJ_IMAGE_ANDROID, overlayListener);
 				dispatcher.addListener(RJ_TEXT_ANDROID, overlayListener);
+				handler.post(poller);
 				startAudio();
 				dismissProgressDialog();
 			}
@@ -289,12 +301,15 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 	private void cleanup() {
 		synchronized (lock) {
 			// make sure to release all resources
+			if (sensorBridge != null) sensorBridge.stop();
+			touchBridge.stop();
 			stopRecording();
 			stopAudio();
 			if (patch != 0) {
 				PdBase.closePatch(patch);
 				patch = 0;
 			}
+			handler.removeCallbacks(poller);
 			dispatcher.release();
 			if (pdService != null) {
 				try {
@@ -313,6 +328,7 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 			if (play.isChecked()) {
 				startAudio();
 			} else {
+				stopRecording();
 				stopAudio();
 			}
 		} else if (v.equals(record)) {
@@ -332,17 +348,41 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 			return;
 		}
 		recStart = System.currentTimeMillis();
-		String fileName = "recording_" + recStart + ".wav";
-		recFile = new File(recDir, fileName).getAbsolutePath();
-		PdBase.sendMessage(TRANSPORT, "scene", recFile);
-		PdBase.sendMessage(TRANSPORT, "record", 1);
+		String fileName = "recording_" + recStart + ".flac";
+		File file = new File(recDir, fileName);
+		try {
+			if (pdService == null) throw new IllegalStateException("audio not initialized");
+			pdService.startRecording(file, true);  // records the output of any scene, whether it implements the transport or not
+		} catch (IOException e) {
+			toast("Unable to record: " + e.getMessage());
+			record.setChecked(false);
+			return;
+		} catch (IllegalStateException e) {
+			toast("Unable to record: " + e.getMessage());
+			record.setChecked(false);
+			return;
+		}
+		recFile = file.getAbsolutePath();
 		post("Recording...");
 	}
 
 	private void stopRecording() {
 		if (recFile == null) return;
-		PdBase.sendMessage(TRANSPORT, "record", 0);
-		long duration = System.currentTimeMillis() - recStart;
+		record.setChecked(false);
+		Recorder recorder;
+		try {
+			recorder = pdService.stopRecording();
+		} catch (IOException e) {
+			toast("Recording failed: " + e.getMessage());
+			recFile = null;
+			return;
+		}
+		if (recorder == null) {  // audio was released in the meantime
+			recFile = null;
+			return;
+		}
+		if (recorder.getDroppedFrames() > 0) post("Dropped " + recorder.getDroppedFrames() + " frames while recording");
+		long duration = recorder.getFrames() * 1000 / recorder.getSampleRate();
 		LocationManager locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 		Location location = locationManager.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
 		db.addRecording(recFile, recStart, duration, location.getLongitude(), location.getLatitude(), sceneId);
@@ -352,6 +392,7 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 
 	private boolean initAudio(int nIn, int nOut) {
 		try {
+			pdService.setResampling(true, Resampler.QUALITY_MEDIUM);  // scenes run at 22050, the device at its native rate
 			pdService.initAudio(SAMPLE_RATE, nIn, nOut, -1);   // negative values default to PdService preferences
 		} catch (IOException e) {
 			Log.e(TAG, e.toString());
@@ -397,12 +438,7 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 	private void stopAudio() {
 		synchronized (lock) {
 			if (pdService == null) return;
-			PdBase.sendMessage(TRANSPORT, "play", 0);
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-				// do nothing
-			}
+			PdBase.sendMessage(TRANSPORT, "play", 0);  // processed during the fade-out of the audio thread
 			pdService.stopAudio();
 		}
 	}
@@ -431,6 +467,14 @@ public class ScenePlayer extends Activity implements SensorEventListener, OnTouc
 		adjustMicVolume(progress);
 	}
 
+	// shows the input peak as the secondary progress of the mic volume slider, on the same fourth-root scale
+	private void showMicLevel() {
+		AudioMeter.Snapshot levels = (pdService != null) ? pdService.getInputLevels() : null;
+		if (micVolume == null || levels == null) return;
+		float peak = Math.min(levels.getMaxPeak(), 1.0f);
+		micVolume.setSecondaryProgress((int) (100 * Math.sqrt(Math.sqrt(peak))));
+	}
+
 	public void adjustMicVolume(int vol) {
 		float q = vol * 0.01f;
 		float volume = q * q * q * q;  // fourth power of mic volume slider value; somewhere between linear and exponential
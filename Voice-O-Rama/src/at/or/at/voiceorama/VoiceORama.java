@@ -17,6 +17,8 @@ public class VoiceORama extends Activity implements OnTouchListener, SharedPrefe
 
 	private TextView logs;
 
+	private final TouchBridge touchBridge = new TouchBridge(TouchBridge.DEFAULT_RECEIVER, 319.0f, 319.0f);
+
 	private PdService pdService = null;
 
 	private Toast toast = null;
@@ -99,6 +101,7 @@ public class VoiceORama extends Activity implements OnTouchListener, SharedPrefe
 		PdPreferences.initPreferences(getApplicationContext());
 		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).registerOnSharedPreferenceChangeListener(this);
 		initGui();
+		touchBridge.start();
 		bindService(new Intent(this, PdService.class), connection, BIND_AUTO_CREATE);
 		//requestWindowFeature(Window.FEATURE_NO_TITLE);
 	};
@@ -158,6 +161,7 @@ public class VoiceORama extends Activity implements OnTouchListener, SharedPrefe
 	}
 
 	private void cleanup() {
+		touchBridge.stop();
 		try {
 			unbindService(connection);
 		} catch (IllegalArgumentException e) {
@@ -193,6 +197,6 @@ public class VoiceORama extends Activity implements OnTouchListener, SharedPrefe
 
 	@Override
 	public boolean onTouch(View v, MotionEvent event) {
-		return (v == logs) && VersionedTouch.evaluateTouch(event, logs.getWidth(), logs.getHeight());
+		return (v == logs) && touchBridge.evaluateTouch(event, logs.getWidth(), logs.getHeight());
 	}
 }